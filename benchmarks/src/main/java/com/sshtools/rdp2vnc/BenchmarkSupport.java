@@ -0,0 +1,57 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Dimension;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Shared set up for the benchmarks.
+ */
+final class BenchmarkSupport {
+
+	private BenchmarkSupport() {
+	}
+
+	/**
+	 * Parse a resolution parameter such as <code>1920x1080</code>.
+	 *
+	 * @param resolution resolution
+	 * @return size
+	 */
+	static Dimension parseResolution(String resolution) {
+		int idx = resolution.indexOf('x');
+		return new Dimension(Integer.parseInt(resolution.substring(0, idx)), Integer.parseInt(resolution.substring(idx + 1)));
+	}
+
+	/**
+	 * Create an 8 bit palette with 3 bits of red, 3 of green and 2 of blue, as
+	 * an RDP server sends for 256 colour sessions.
+	 *
+	 * @return palette
+	 */
+	static IndexColorModel createPalette() {
+		byte[] r = new byte[256];
+		byte[] g = new byte[256];
+		byte[] b = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			r[i] = (byte) (((i >> 5) & 7) * 255 / 7);
+			g[i] = (byte) (((i >> 2) & 7) * 255 / 7);
+			b[i] = (byte) ((i & 3) * 255 / 3);
+		}
+		return new IndexColorModel(8, 256, r, g, b);
+	}
+
+	/**
+	 * Create some pixels that are not all the same, either palette indexes or
+	 * RGB colours.
+	 *
+	 * @param count number of pixels
+	 * @param indexed palette indexes
+	 * @return pixels
+	 */
+	static int[] createPixels(int count, boolean indexed) {
+		int[] pixels = new int[count];
+		for (int i = 0; i < count; i++)
+			pixels[i] = (i * 0x9e3779b1) & (indexed ? 0xff : 0xffffff);
+		return pixels;
+	}
+}
@@ -0,0 +1,82 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a 64x64 tile back from the display, a pixel at a time (as the RDP
+ * client does for screen to screen copies and cached bitmaps) and as a whole.
+ * The baselines read the same tile from a plain {@link BufferedImage}, as the
+ * driver did before it had a {@link FrameBuffer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class GetRGBBenchmark {
+	final static int TILE = 64;
+
+	@Param({ "false", "true" })
+	boolean offHeap;
+
+	private RDPDisplayDriver driver;
+	private BufferedImage image;
+	private int[] tile;
+
+	@Setup
+	public void setup() {
+		driver = new RDPDisplayDriver(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		driver.setOffHeap(offHeap);
+		image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		tile = BenchmarkSupport.createPixels(TILE * TILE, false);
+		driver.setRGB(0, 0, TILE, TILE, tile, 0, TILE);
+		image.setRGB(0, 0, TILE, TILE, tile, 0, TILE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		driver.destroy();
+	}
+
+	@Benchmark
+	public void single(Blackhole bh) {
+		for (int y = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++)
+				bh.consume(driver.getRGB(x, y));
+		}
+	}
+
+	@Benchmark
+	public int[] bulk() {
+		return driver.getRGB(0, 0, TILE, TILE, tile, 0, TILE);
+	}
+
+	@Benchmark
+	public void baselineSingle(Blackhole bh) {
+		for (int y = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++)
+				bh.consume(image.getRGB(x, y));
+		}
+	}
+
+	@Benchmark
+	public int[] baselineBulk() {
+		return image.getRGB(0, 0, TILE, TILE, tile, 0, TILE);
+	}
+}
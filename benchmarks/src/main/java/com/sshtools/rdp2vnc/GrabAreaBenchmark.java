@@ -0,0 +1,105 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoders reading an area of the display, the whole screen (as for a full
+ * update request) and a single tile, at 1080p and 4K. Covers
+ * {@link RDPDisplayDriver#grabArea(Rectangle)} and
+ * {@link RDPDisplayDriver#getRegion(Rectangle, PixelRegion)}, with the
+ * frame buffer on or off the heap and with or without snapshots. The
+ * baselines take a sub-image of a plain {@link BufferedImage}, as the driver
+ * did before it had a {@link FrameBuffer}. That copies nothing, but the
+ * pixels may change while they are being encoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class GrabAreaBenchmark {
+	final static int TILE = 64;
+
+	@Param({ "1920x1080", "3840x2160" })
+	String resolution;
+
+	@Param({ "false", "true" })
+	boolean offHeap;
+
+	@Param({ "false", "true" })
+	boolean snapshots;
+
+	private RDPDisplayDriver driver;
+	private BufferedImage image;
+	private Rectangle screen;
+	private Rectangle tile;
+	private PixelRegion region;
+
+	@Setup
+	public void setup() {
+		Dimension size = BenchmarkSupport.parseResolution(resolution);
+		driver = new RDPDisplayDriver(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+		driver.setOffHeap(offHeap);
+		if (snapshots) {
+			driver.setDamageCoalescing(TILE, 256, 10);
+			driver.setSnapshots(true);
+		}
+		image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+		screen = new Rectangle(0, 0, size.width, size.height);
+		tile = new Rectangle(size.width / 2, size.height / 2, TILE, TILE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (region != null)
+			region.release();
+		driver.destroy();
+	}
+
+	@Benchmark
+	public BufferedImage grabScreen() {
+		return driver.grabArea(screen);
+	}
+
+	@Benchmark
+	public BufferedImage grabTile() {
+		return driver.grabArea(tile);
+	}
+
+	@Benchmark
+	public PixelRegion regionScreen() {
+		return region = driver.getRegion(screen, region);
+	}
+
+	@Benchmark
+	public PixelRegion regionTile() {
+		return region = driver.getRegion(tile, region);
+	}
+
+	@Benchmark
+	public BufferedImage baselineScreen() {
+		return image.getSubimage(screen.x, screen.y, screen.width, screen.height);
+	}
+
+	@Benchmark
+	public BufferedImage baselineTile() {
+		return image.getSubimage(tile.x, tile.y, tile.width, tile.height);
+	}
+}
@@ -0,0 +1,168 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Component;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.image.BufferedImage;
+import java.util.EventListener;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.event.EventListenerList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Key and pointer events from a VNC client being passed to the listeners the
+ * RDP client adds to the display. A key stroke is a press and a release of
+ * <code>a</code>, a click is a press and release of the first button, and
+ * motion moves the pointer by one pixel. The baselines create a new AWT
+ * event for each listener found in an {@link EventListenerList}, as the
+ * driver did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class InputBenchmark {
+
+	@Param({ "1", "4" })
+	int listeners;
+
+	private RDPDisplayDriver driver;
+	private EventListenerList baseline;
+	private Component component;
+	private int x;
+
+	/* Written by the listeners so their calls are not removed */
+	volatile int events;
+
+	@SuppressWarnings("serial")
+	@Setup
+	public void setup() {
+		driver = new RDPDisplayDriver(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		baseline = new EventListenerList();
+		component = new Component() {
+		};
+		KeyListener keys = new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				events++;
+			}
+
+			@Override
+			public void keyReleased(KeyEvent e) {
+				events++;
+			}
+
+			@Override
+			public void keyTyped(KeyEvent e) {
+				events++;
+			}
+		};
+		MouseAdapter mouse = new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				events++;
+			}
+
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				events++;
+			}
+
+			@Override
+			public void mouseMoved(MouseEvent e) {
+				events++;
+			}
+		};
+		for (int i = 0; i < listeners; i++) {
+			driver.addKeyListener(keys);
+			driver.addMouseListener(mouse);
+			driver.addMouseMotionListener(mouse);
+			baseline.add(KeyListener.class, keys);
+			baseline.add(MouseListener.class, mouse);
+			baseline.add(MouseMotionListener.class, mouse);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		driver.destroy();
+	}
+
+	@Benchmark
+	public void keyStroke() {
+		driver.keyEvent(null, true, 'a');
+		driver.keyEvent(null, false, 'a');
+	}
+
+	@Benchmark
+	public void click() {
+		driver.mouseEvent(null, 1, x, 100);
+		driver.mouseEvent(null, 0, x, 100);
+	}
+
+	@Benchmark
+	public void motion() {
+		driver.mouseEvent(null, 0, nextX(), 100);
+	}
+
+	@Benchmark
+	public void baselineKeyStroke() {
+		EventListener[] l = baseline.getListeners(KeyListener.class);
+		for (int i = l.length - 1; i >= 0; i--)
+			((KeyListener) l[i]).keyPressed(new KeyEvent(component, KeyEvent.KEY_PRESSED, System.currentTimeMillis(), 0,
+					KeyEvent.VK_A, 'a', KeyEvent.KEY_LOCATION_UNKNOWN));
+		l = baseline.getListeners(KeyListener.class);
+		for (int i = l.length - 1; i >= 0; i--)
+			((KeyListener) l[i]).keyReleased(new KeyEvent(component, KeyEvent.KEY_RELEASED, System.currentTimeMillis(), 0,
+					KeyEvent.VK_A, 'a', KeyEvent.KEY_LOCATION_UNKNOWN));
+		for (int i = l.length - 1; i >= 0; i--)
+			((KeyListener) l[i]).keyTyped(new KeyEvent(component, KeyEvent.KEY_TYPED, System.currentTimeMillis(), 0,
+					KeyEvent.VK_UNDEFINED, 'a', KeyEvent.KEY_LOCATION_UNKNOWN));
+	}
+
+	@Benchmark
+	public void baselineClick() {
+		EventListener[] l = baseline.getListeners(MouseListener.class);
+		for (int i = l.length - 1; i >= 0; i--)
+			((MouseListener) l[i]).mousePressed(new MouseEvent(component, MouseEvent.MOUSE_PRESSED,
+					System.currentTimeMillis(), 0, x, 100, 0, false, 1));
+		l = baseline.getListeners(MouseListener.class);
+		for (int i = l.length - 1; i >= 0; i--)
+			((MouseListener) l[i]).mouseReleased(new MouseEvent(component, MouseEvent.MOUSE_RELEASED,
+					System.currentTimeMillis(), 0, x, 100, 0, false, 1));
+	}
+
+	@Benchmark
+	public void baselineMotion() {
+		int x = nextX();
+		EventListener[] l = baseline.getListeners(MouseMotionListener.class);
+		for (int i = l.length - 1; i >= 0; i--)
+			((MouseMotionListener) l[i]).mouseMoved(new MouseEvent(component, MouseEvent.MOUSE_MOVED,
+					System.currentTimeMillis(), 0, x, 100, 0, false));
+	}
+
+	private int nextX() {
+		x = (x + 1) % 1920;
+		return x;
+	}
+}
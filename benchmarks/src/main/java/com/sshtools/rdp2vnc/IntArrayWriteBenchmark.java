@@ -0,0 +1,101 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing pixels straight into the <code>int[]</code> behind a
+ * {@link BufferedImage#TYPE_INT_RGB} image, compared with
+ * {@link BufferedImage#setRGB(int, int, int)} and
+ * {@link BufferedImage#setRGB(int, int, int, int, int[], int, int)}, which
+ * pass every pixel through the colour model and sample model. The
+ * <code>frameBuffer</code> benchmarks do the same through the
+ * {@link FrameBuffer} the driver uses, to show what its bounds checks and
+ * clipping add to the raw array writes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class IntArrayWriteBenchmark {
+
+	/* A bitmap update tile, and a strip the width of the screen */
+	@Param({ "64x64", "1920x16" })
+	String area;
+
+	private int width;
+	private int height;
+	private int[] data;
+	private BufferedImage managed;
+	private int[] pixels;
+	private FrameBuffer frameBuffer;
+
+	@Setup
+	public void setup() {
+		Dimension size = BenchmarkSupport.parseResolution(area);
+		width = size.width;
+		height = size.height;
+		data = BenchmarkSupport.createPixels(width * height, false);
+		BufferedImage image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		/* Taking the array stops Java2D managing the image, which the old path never did */
+		managed = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		frameBuffer = FrameBuffer.create(1920, 1080, BufferedImage.TYPE_INT_RGB);
+	}
+
+	@Benchmark
+	public void arraySingle() {
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0, dst = y * 1920; x < width; x++)
+				pixels[dst + x] = data[i++];
+		}
+	}
+
+	@Benchmark
+	public void arrayRows() {
+		for (int y = 0; y < height; y++)
+			System.arraycopy(data, y * width, pixels, y * 1920, width);
+	}
+
+	@Benchmark
+	public void frameBufferSingle() {
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				frameBuffer.setRGB(x, y, data[i++]);
+		}
+	}
+
+	@Benchmark
+	public void frameBufferBulk() {
+		frameBuffer.setRGB(0, 0, width, height, data, 0, width);
+	}
+
+	@Benchmark
+	public void baselineImageSingle() {
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				managed.setRGB(x, y, data[i++]);
+		}
+	}
+
+	@Benchmark
+	public void baselineImageBulk() {
+		managed.setRGB(0, 0, width, height, data, 0, width);
+	}
+}
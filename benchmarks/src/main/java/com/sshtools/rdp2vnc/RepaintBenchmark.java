@@ -0,0 +1,103 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sshtools.rfbserver.DisplayDriver;
+import com.sshtools.rfbserver.DisplayDriver.DamageListener;
+
+/**
+ * The RDP client reporting a painted area, and the damage being passed on to
+ * each connected client's listener. Damage coalescing is off, so the cost of
+ * the fan-out itself is measured, either delivered straight to the listeners
+ * or through a queue per client. The baseline creates a rectangle and calls
+ * each listener, as the driver did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class RepaintBenchmark {
+	final static int TILE = 64;
+
+	@Param({ "1", "4", "16" })
+	int listeners;
+
+	@Param({ "false", "true" })
+	boolean clientQueues;
+
+	private RDPDisplayDriver driver;
+	private List<DamageListener> added;
+	private int x;
+	private int y;
+
+	/* Written by the listeners so their calls are not removed */
+	volatile int damaged;
+
+	@Setup
+	public void setup() {
+		driver = new RDPDisplayDriver(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		driver.setClientQueues(clientQueues);
+		added = new ArrayList<DamageListener>();
+		for (int i = 0; i < listeners; i++) {
+			DamageListener listener = new DamageListener() {
+				@Override
+				public void damage(DisplayDriver driver, String name, Rectangle rectangle, int preferredEncoding) {
+					damaged++;
+				}
+			};
+			added.add(listener);
+			driver.addDamageListener(listener);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (DamageListener listener : added)
+			driver.removeDamageListener(listener);
+		driver.destroy();
+	}
+
+	@Benchmark
+	public void repaint() {
+		driver.repaint(x, y, TILE, TILE);
+		next();
+	}
+
+	@Benchmark
+	public void baseline() {
+		Rectangle r = new Rectangle(x, y, TILE, TILE);
+		for (int i = 0; i < added.size(); i++)
+			added.get(i).damage(driver, "Repaint", r, -1);
+		next();
+	}
+
+	/* Move across the screen a tile at a time */
+	private void next() {
+		x += TILE;
+		if (x + TILE > 1920) {
+			x = 0;
+			y += TILE;
+			if (y + TILE > 1080)
+				y = 0;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resizing the display, as happens repeatedly while a client window is being
+ * dragged to a new size. Each call switches between the full size and one
+ * a little smaller, keeping the content. The baseline creates a new
+ * {@link BufferedImage} and draws the old one into it, as the driver did
+ * before it had a {@link FrameBuffer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class ResizeBenchmark {
+
+	@Param({ "1920x1080", "3840x2160" })
+	String resolution;
+
+	@Param({ "false", "true" })
+	boolean offHeap;
+
+	private RDPDisplayDriver driver;
+	private BufferedImage image;
+	private Dimension large;
+	private Dimension small;
+	private boolean toSmall;
+
+	@Setup
+	public void setup() {
+		large = BenchmarkSupport.parseResolution(resolution);
+		small = new Dimension(large.width - 16, large.height - 16);
+		driver = new RDPDisplayDriver(large.width, large.height, BufferedImage.TYPE_INT_RGB);
+		driver.setOffHeap(offHeap);
+		image = new BufferedImage(large.width, large.height, BufferedImage.TYPE_INT_RGB);
+	}
+
+	@TearDown
+	public void tearDown() {
+		driver.destroy();
+	}
+
+	@Benchmark
+	public void resizeDisplay() {
+		driver.resizeDisplay(next());
+	}
+
+	@Benchmark
+	public BufferedImage baseline() {
+		Dimension size = next();
+		BufferedImage old = image;
+		image = new BufferedImage(size.width, size.height, old.getType());
+		image.getGraphics().drawImage(old, 0, 0, null);
+		return image;
+	}
+
+	private Dimension next() {
+		toSmall = !toSmall;
+		return toSmall ? small : large;
+	}
+}
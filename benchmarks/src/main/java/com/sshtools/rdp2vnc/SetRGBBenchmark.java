@@ -0,0 +1,98 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drawing a 64x64 tile into the display, a pixel at a time (as most drawing
+ * orders do) and as a whole (as bitmap updates do), with and without palette
+ * conversion. The baselines are the {@link BufferedImage} calls the driver
+ * made before it had a {@link FrameBuffer}, which converted palette indexes
+ * with the {@link IndexColorModel}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch", "-Djava.awt.headless=true" })
+public class SetRGBBenchmark {
+	final static int TILE = 64;
+
+	@Param({ "false", "true" })
+	boolean indexed;
+
+	@Param({ "false", "true" })
+	boolean offHeap;
+
+	private RDPDisplayDriver driver;
+	private BufferedImage image;
+	private IndexColorModel cm;
+	private int[] tile;
+	private int[] scratch;
+
+	@Setup
+	public void setup() {
+		cm = indexed ? BenchmarkSupport.createPalette() : null;
+		driver = new RDPDisplayDriver(1920, 1080, BufferedImage.TYPE_INT_RGB, cm);
+		driver.setOffHeap(offHeap);
+		image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+		tile = BenchmarkSupport.createPixels(TILE * TILE, indexed);
+		scratch = new int[tile.length];
+	}
+
+	@TearDown
+	public void tearDown() {
+		driver.destroy();
+	}
+
+	@Benchmark
+	public void single() {
+		for (int y = 0, i = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++)
+				driver.setRGB(x, y, tile[i++]);
+		}
+	}
+
+	@Benchmark
+	public void bulk() {
+		driver.setRGB(0, 0, TILE, TILE, tile, 0, TILE);
+	}
+
+	@Benchmark
+	public void baselineSingle() {
+		for (int y = 0, i = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++) {
+				int color = tile[i++];
+				if (cm != null)
+					color = cm.getRGB(color);
+				image.setRGB(x, y, color);
+			}
+		}
+	}
+
+	@Benchmark
+	public void baselineBulk() {
+		/* The old driver converted the caller's array in place */
+		System.arraycopy(tile, 0, scratch, 0, tile.length);
+		if (cm != null) {
+			for (int i = 0; i < scratch.length; i++)
+				scratch[i] = cm.getRGB(scratch[i]);
+		}
+		image.setRGB(0, 0, TILE, TILE, scratch, 0, TILE);
+	}
+}
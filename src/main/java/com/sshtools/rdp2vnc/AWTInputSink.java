@@ -0,0 +1,166 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Component;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.util.Arrays;
+
+/**
+ * Delivers input to the AWT listeners the RDP client registers on its
+ * display. Listeners are held in arrays that are only copied when a listener
+ * is added or removed, and each input event creates a single AWT event that
+ * is passed to every listener.
+ * <p>
+ * As with the {@link javax.swing.event.EventListenerList} this replaces,
+ * the most recently added listener is notified first.
+ */
+class AWTInputSink implements InputSink {
+
+	private final Component source;
+	private volatile KeyListener[] keyListeners = new KeyListener[0];
+	private volatile MouseListener[] mouseListeners = new MouseListener[0];
+	private volatile MouseMotionListener[] mouseMotionListeners = new MouseMotionListener[0];
+	private volatile MouseWheelListener[] mouseWheelListeners = new MouseWheelListener[0];
+
+	AWTInputSink(Component source) {
+		this.source = source;
+	}
+
+	synchronized void addKeyListener(KeyListener l) {
+		keyListeners = add(keyListeners, l);
+	}
+
+	synchronized void removeKeyListener(KeyListener l) {
+		keyListeners = remove(keyListeners, l);
+	}
+
+	synchronized void addMouseListener(MouseListener l) {
+		mouseListeners = add(mouseListeners, l);
+	}
+
+	synchronized void removeMouseListener(MouseListener l) {
+		mouseListeners = remove(mouseListeners, l);
+	}
+
+	synchronized void addMouseMotionListener(MouseMotionListener l) {
+		mouseMotionListeners = add(mouseMotionListeners, l);
+	}
+
+	synchronized void removeMouseMotionListener(MouseMotionListener l) {
+		mouseMotionListeners = remove(mouseMotionListeners, l);
+	}
+
+	synchronized void addMouseWheelListener(MouseWheelListener l) {
+		mouseWheelListeners = add(mouseWheelListeners, l);
+	}
+
+	synchronized void removeMouseWheelListener(MouseWheelListener l) {
+		mouseWheelListeners = remove(mouseWheelListeners, l);
+	}
+
+	/**
+	 * Remove all listeners, for example when the RDP session that added them
+	 * has gone away.
+	 */
+	synchronized void removeAllListeners() {
+		keyListeners = new KeyListener[0];
+		mouseListeners = new MouseListener[0];
+		mouseMotionListeners = new MouseMotionListener[0];
+		mouseWheelListeners = new MouseWheelListener[0];
+	}
+
+	@Override
+	public void keyPressed(long when, int modifiers, int keyCode, char keyChar, int location) {
+		KeyListener[] l = keyListeners;
+		if (l.length == 0)
+			return;
+		KeyEvent evt = new KeyEvent(source, KeyEvent.KEY_PRESSED, when, modifiers, keyCode, keyChar, location);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].keyPressed(evt);
+	}
+
+	@Override
+	public void keyReleased(long when, int modifiers, int keyCode, char keyChar, int location) {
+		KeyListener[] l = keyListeners;
+		if (l.length == 0)
+			return;
+		KeyEvent evt = new KeyEvent(source, KeyEvent.KEY_RELEASED, when, modifiers, keyCode, keyChar, location);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].keyReleased(evt);
+	}
+
+	@Override
+	public void keyTyped(long when, int modifiers, char keyChar, int location) {
+		KeyListener[] l = keyListeners;
+		if (l.length == 0)
+			return;
+		KeyEvent evt = new KeyEvent(source, KeyEvent.KEY_TYPED, when, modifiers, KeyEvent.VK_UNDEFINED, keyChar, location);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].keyTyped(evt);
+	}
+
+	@Override
+	public void mouseMoved(long when, int modifiers, int x, int y) {
+		MouseMotionListener[] l = mouseMotionListeners;
+		if (l.length == 0)
+			return;
+		MouseEvent evt = new MouseEvent(source, MouseEvent.MOUSE_MOVED, when, modifiers, x, y, 0, false);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].mouseMoved(evt);
+	}
+
+	@Override
+	public void mousePressed(long when, int modifiers, int x, int y, int button) {
+		MouseListener[] l = mouseListeners;
+		if (l.length == 0)
+			return;
+		MouseEvent evt = new MouseEvent(source, MouseEvent.MOUSE_PRESSED, when, modifiers, x, y, 0, button == 3, button);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].mousePressed(evt);
+	}
+
+	@Override
+	public void mouseReleased(long when, int modifiers, int x, int y, int button) {
+		MouseListener[] l = mouseListeners;
+		if (l.length == 0)
+			return;
+		MouseEvent evt = new MouseEvent(source, MouseEvent.MOUSE_RELEASED, when, modifiers, x, y, 0, button == 3, button);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].mouseReleased(evt);
+	}
+
+	@Override
+	public void mouseWheelMoved(long when, int modifiers, int x, int y, int rotation) {
+		MouseWheelListener[] l = mouseWheelListeners;
+		if (l.length == 0)
+			return;
+		MouseWheelEvent evt = new MouseWheelEvent(source, MouseEvent.MOUSE_WHEEL, when, modifiers, x, y, 0, 0, 1, false,
+				MouseWheelEvent.WHEEL_UNIT_SCROLL, rotation, rotation);
+		for (int i = l.length - 1; i >= 0; i--)
+			l[i].mouseWheelMoved(evt);
+	}
+
+	private static <T> T[] add(T[] listeners, T l) {
+		if (l == null)
+			return listeners;
+		T[] added = Arrays.copyOf(listeners, listeners.length + 1);
+		added[listeners.length] = l;
+		return added;
+	}
+
+	private static <T> T[] remove(T[] listeners, T l) {
+		for (int i = listeners.length - 1; i >= 0; i--) {
+			if (listeners[i] == l) {
+				T[] removed = Arrays.copyOf(listeners, listeners.length - 1);
+				System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+				return removed;
+			}
+		}
+		return listeners;
+	}
+}
@@ -0,0 +1,109 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfbserver.RFBServerConfiguration;
+import com.sshtools.rfbserver.transport.RFBServerTransport;
+import com.sshtools.rfbserver.transport.RFBServerTransportFactory;
+
+/**
+ * Transport factory that provides a single, already accepted connection to
+ * an RFB server. Used in gateway mode, where the gateway does the listening
+ * and gives each connection its own RFB server and RDP session. The
+ * connection may either be a plain socket, or a transport accepted by another
+ * factory (such as {@link NioTransportFactory}).
+ * <p>
+ * After the connection has been handed out, {@link #nextTransport()} blocks
+ * until the factory is stopped. The <code>onClose</code> callback is run once
+ * when either the transport or the factory is stopped.
+ */
+public class AcceptedSocketTransportFactory implements RFBServerTransportFactory {
+	final static Logger LOG = LoggerFactory.getLogger(AcceptedSocketTransportFactory.class);
+
+	private final RFBServerTransport transport;
+	private final Runnable onClose;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private boolean taken;
+
+	public AcceptedSocketTransportFactory(final Socket socket, Runnable onClose) {
+		this(new RFBServerTransport() {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return socket.getInputStream();
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return socket.getOutputStream();
+			}
+
+			@Override
+			public void stop() {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					LOG.debug("Failed to close socket.", e);
+				}
+			}
+		}, onClose);
+	}
+
+	public AcceptedSocketTransportFactory(RFBServerTransport transport, Runnable onClose) {
+		this.transport = transport;
+		this.onClose = onClose;
+	}
+
+	@Override
+	public void init(RFBServerConfiguration configuration) {
+	}
+
+	@Override
+	public RFBServerTransport nextTransport() throws IOException {
+		synchronized (this) {
+			if (!taken) {
+				taken = true;
+				return new RFBServerTransport() {
+					@Override
+					public InputStream getInputStream() throws IOException {
+						return transport.getInputStream();
+					}
+
+					@Override
+					public OutputStream getOutputStream() throws IOException {
+						return transport.getOutputStream();
+					}
+
+					@Override
+					public void stop() {
+						AcceptedSocketTransportFactory.this.stop();
+					}
+				};
+			}
+		}
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new IOException("Transport closed.");
+	}
+
+	@Override
+	public void stop() {
+		synchronized (this) {
+			if (stopped.getCount() == 0)
+				return;
+			stopped.countDown();
+		}
+		transport.stop();
+		if (onClose != null)
+			onClose.run();
+	}
+}
@@ -0,0 +1,115 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfbserver.DisplayDriver;
+import com.sshtools.rfbserver.DisplayDriver.DamageListener;
+
+/**
+ * Sits between a display driver and one of its damage listeners (normally an
+ * RFB client), giving that listener its own pending damage region and its own
+ * delivery task.
+ * <p>
+ * Receiving damage only marks tiles in the pending region, so it never
+ * blocks. Delivery happens on an {@link Executor}, one task per listener at a
+ * time. If the listener is slow, damage that arrives meanwhile is merged into
+ * the pending region and delivered as a few larger rectangles once the
+ * listener catches up, so a slow client never holds up the RDP thread or any
+ * other client.
+ */
+public class ClientDamageQueue implements DamageListener, Runnable {
+	final static Logger LOG = LoggerFactory.getLogger(ClientDamageQueue.class);
+
+	private final DisplayDriver driver;
+	private final DamageListener delegate;
+	private final DamageAccumulator pending;
+	private final Executor executor;
+	private final SessionMetrics metrics;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean closed;
+
+	public ClientDamageQueue(DisplayDriver driver, DamageListener delegate, DamageAccumulator pending, Executor executor,
+			SessionMetrics metrics) {
+		this.driver = driver;
+		this.delegate = delegate;
+		this.pending = pending;
+		this.executor = executor;
+		this.metrics = metrics;
+	}
+
+	public DamageListener getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Get whether there is damage waiting to be delivered to this listener.
+	 *
+	 * @return pending
+	 */
+	public boolean isPending() {
+		return pending.isDamaged();
+	}
+
+	/**
+	 * Change the size of the pending region. All of the new area is marked as
+	 * damaged.
+	 *
+	 * @param width width
+	 * @param height height
+	 */
+	public void resize(int width, int height) {
+		pending.resize(width, height);
+		schedule();
+	}
+
+	/**
+	 * Stop delivering damage to the listener.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	@Override
+	public void damage(DisplayDriver driver, String name, Rectangle rectangle, int preferredEncoding) {
+		if (!closed && pending.add(rectangle.x, rectangle.y, rectangle.width, rectangle.height))
+			schedule();
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			List<Rectangle> rects = pending.drain();
+			if (rects.isEmpty()) {
+				scheduled.set(false);
+				/*
+				 * Damage may have arrived between draining and clearing the
+				 * flag, in which case carry on if nobody else has picked it up
+				 */
+				if (pending.isDamaged() && scheduled.compareAndSet(false, true))
+					continue;
+				return;
+			}
+			if (metrics != null)
+				metrics.clientUpdates.add(rects.size());
+			for (Rectangle r : rects) {
+				try {
+					delegate.damage(driver, "Repaint", r, -1);
+				} catch (RuntimeException re) {
+					LOG.error("Failed to deliver damage to " + delegate + ".", re);
+				}
+			}
+		}
+		scheduled.set(false);
+	}
+
+	private void schedule() {
+		if (!closed && scheduled.compareAndSet(false, true))
+			executor.execute(this);
+	}
+}
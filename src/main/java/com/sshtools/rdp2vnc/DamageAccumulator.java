@@ -0,0 +1,258 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects damage as a bitmap of dirty tiles, and turns it back into a small
+ * number of merged rectangles when an update is due. Adding damage only ever
+ * sets flags, so the cost of the many tiny overlapping repaints that RDP
+ * drawing orders produce is kept to a minimum.
+ * <p>
+ * The merge policy is controlled by the tile size (larger tiles mean fewer,
+ * but less exact rectangles), and the maximum number of rectangles that will
+ * be returned by {@link #drain()} (above which neighbouring rectangles are
+ * merged together).
+ */
+public class DamageAccumulator {
+
+	/**
+	 * May be passed to {@link DamageAccumulator#drain(TileFilter)} to discard
+	 * damaged tiles that have not really changed.
+	 */
+	public interface TileFilter {
+		/**
+		 * Get whether the content of a damaged tile has actually changed.
+		 *
+		 * @param x x
+		 * @param y y
+		 * @param w width
+		 * @param h height
+		 * @return changed
+		 */
+		boolean isChanged(int x, int y, int w, int h);
+	}
+
+	private final int tileSize;
+	private final int maxRectangles;
+	private int width;
+	private int height;
+	private int cols;
+	private int rows;
+	private boolean[] dirty;
+	private boolean[] spare;
+	private boolean damaged;
+
+	public DamageAccumulator(int width, int height, int tileSize, int maxRectangles) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be at least 1.");
+		if (maxRectangles < 1)
+			throw new IllegalArgumentException("Maximum rectangles must be at least 1.");
+		this.tileSize = tileSize;
+		this.maxRectangles = maxRectangles;
+		allocate(width, height);
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getMaxRectangles() {
+		return maxRectangles;
+	}
+
+	/**
+	 * Change the size of the area damage is being collected for. Any existing
+	 * damage is discarded and the whole of the new area is marked as damaged.
+	 *
+	 * @param width new width
+	 * @param height new height
+	 * @return <code>true</code> if there was no damage before this call
+	 */
+	public synchronized boolean resize(int width, int height) {
+		allocate(width, height);
+		return markAll();
+	}
+
+	/**
+	 * Mark the entire area as damaged.
+	 *
+	 * @return <code>true</code> if there was no damage before this call
+	 */
+	public synchronized boolean markAll() {
+		Arrays.fill(dirty, true);
+		return setDamaged();
+	}
+
+	/**
+	 * Add a damaged rectangle. The rectangle is clipped to the area.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param w width
+	 * @param h height
+	 * @return <code>true</code> if there was no damage before this call, i.e.
+	 *         a flush should now be scheduled
+	 */
+	public synchronized boolean add(int x, int y, int w, int h) {
+		int x2 = Math.min(x + w, width);
+		int y2 = Math.min(y + h, height);
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if (x2 <= x || y2 <= y)
+			return false;
+		int c0 = x / tileSize;
+		int c1 = (x2 - 1) / tileSize;
+		int r1 = (y2 - 1) / tileSize;
+		for (int r = y / tileSize; r <= r1; r++) {
+			int idx = r * cols;
+			for (int c = c0; c <= c1; c++)
+				dirty[idx + c] = true;
+		}
+		return setDamaged();
+	}
+
+	/**
+	 * Get whether there is any damage waiting to be drained.
+	 *
+	 * @return damaged
+	 */
+	public synchronized boolean isDamaged() {
+		return damaged;
+	}
+
+	/**
+	 * Take all of the current damage as a list of merged rectangles, and reset
+	 * the accumulator.
+	 *
+	 * @return damaged rectangles (empty if there is no damage)
+	 */
+	public List<Rectangle> drain() {
+		return drain(null);
+	}
+
+	/**
+	 * Take all of the current damage as a list of merged rectangles, and reset
+	 * the accumulator. Each damaged tile is first offered to a filter, which
+	 * may discard it. The filter is called without holding the accumulator's
+	 * lock, so new damage may continue to be added while it runs.
+	 *
+	 * @param filter filter or <code>null</code>
+	 * @return damaged rectangles (empty if there is no damage)
+	 */
+	public List<Rectangle> drain(TileFilter filter) {
+		List<Rectangle> rects = new ArrayList<Rectangle>();
+		boolean[] dirty;
+		int cols, rows, width, height;
+		synchronized (this) {
+			if (!damaged)
+				return rects;
+			dirty = this.dirty;
+			cols = this.cols;
+			rows = this.rows;
+			width = this.width;
+			height = this.height;
+			this.dirty = spare != null && spare.length == dirty.length ? spare : new boolean[dirty.length];
+			spare = null;
+			damaged = false;
+		}
+
+		if (filter != null) {
+			for (int r = 0; r < rows; r++) {
+				int idx = r * cols;
+				int y = r * tileSize;
+				int h = Math.min(tileSize, height - y);
+				for (int c = 0; c < cols; c++) {
+					if (dirty[idx + c]) {
+						int x = c * tileSize;
+						if (!filter.isChanged(x, y, Math.min(tileSize, width - x), h))
+							dirty[idx + c] = false;
+					}
+				}
+			}
+		}
+
+		/*
+		 * Find horizontal runs of dirty tiles on each row, extending a
+		 * rectangle from the row above when a run spans exactly the same
+		 * columns
+		 */
+		Rectangle[] open = new Rectangle[cols];
+		for (int r = 0; r < rows; r++) {
+			int idx = r * cols;
+			int c = 0;
+			while (c < cols) {
+				if (!dirty[idx + c]) {
+					c++;
+					continue;
+				}
+				int start = c;
+				while (c < cols && dirty[idx + c])
+					c++;
+				Rectangle above = open[start];
+				if (above != null && above.width == c - start && above.y + above.height == r) {
+					above.height++;
+				} else {
+					Rectangle rect = new Rectangle(start, r, c - start, 1);
+					rects.add(rect);
+					open[start] = rect;
+				}
+			}
+		}
+		Arrays.fill(dirty, false);
+		synchronized (this) {
+			if (this.dirty.length == dirty.length)
+				spare = dirty;
+		}
+
+		/* Convert tile units to pixels, clipped to the area */
+		for (Rectangle rect : rects) {
+			rect.x *= tileSize;
+			rect.y *= tileSize;
+			rect.width = Math.min(rect.width * tileSize, width - rect.x);
+			rect.height = Math.min(rect.height * tileSize, height - rect.y);
+		}
+
+		while (rects.size() > maxRectangles)
+			mergeCheapest(rects);
+		return rects;
+	}
+
+	private void allocate(int width, int height) {
+		this.width = Math.max(width, 1);
+		this.height = Math.max(height, 1);
+		cols = (this.width + tileSize - 1) / tileSize;
+		rows = (this.height + tileSize - 1) / tileSize;
+		dirty = new boolean[cols * rows];
+	}
+
+	private boolean setDamaged() {
+		boolean was = damaged;
+		damaged = true;
+		return !was;
+	}
+
+	/*
+	 * Rectangles are in scan order, so neighbours in the list are usually
+	 * neighbours on screen. Merge the pair that wastes the least area.
+	 */
+	private static void mergeCheapest(List<Rectangle> rects) {
+		int best = 0;
+		long bestWaste = Long.MAX_VALUE;
+		for (int i = 0; i < rects.size() - 1; i++) {
+			Rectangle a = rects.get(i);
+			Rectangle b = rects.get(i + 1);
+			Rectangle u = a.union(b);
+			long waste = (long) u.width * u.height - (long) a.width * a.height - (long) b.width * b.height;
+			if (waste < bestWaste) {
+				bestWaste = waste;
+				best = i;
+			}
+		}
+		Rectangle u = rects.get(best).union(rects.get(best + 1));
+		rects.set(best, u);
+		rects.remove(best + 1);
+	}
+}
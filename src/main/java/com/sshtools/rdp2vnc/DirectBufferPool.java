@@ -0,0 +1,58 @@
+package com.sshtools.rdp2vnc;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed size direct byte buffers. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so socket I/O reuses
+ * them rather than allocating a new one for every read or write.
+ */
+public class DirectBufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Get a cleared buffer from the pool, allocating a new one if the pool is
+	 * empty.
+	 *
+	 * @return buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.poll();
+		if (buf == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		pooled.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Return a buffer to the pool. If the pool is full, the buffer is left
+	 * for the garbage collector.
+	 *
+	 * @param buf buffer
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf.capacity() != bufferSize || !buf.isDirect())
+			return;
+		if (pooled.incrementAndGet() <= maxPooled)
+			free.offer(buf);
+		else
+			pooled.decrementAndGet();
+	}
+}
@@ -0,0 +1,22 @@
+package com.sshtools.rdp2vnc;
+
+import java.net.Socket;
+
+/**
+ * Bridges every VNC connection to the target given on the command line. Each
+ * connection still gets its own RDP session.
+ */
+public class FixedSessionResolver implements SessionResolver {
+
+	private RDPTarget target;
+
+	@Override
+	public void init(RDPTarget defaultTarget) {
+		this.target = defaultTarget;
+	}
+
+	@Override
+	public RDPTarget resolve(Socket socket) {
+		return target;
+	}
+}
@@ -0,0 +1,992 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The backing store used by {@link RDPDisplayDriver}. Wraps a
+ * {@link BufferedImage} (which is what the RFB server and RDP canvas expect to
+ * see), but allows pixels to be written and read without going through the
+ * image's colour model and sample model where the image layout allows it.
+ * <p>
+ * Use {@link #create(int, int, int)} to obtain the most efficient
+ * implementation for a particular image type.
+ * <p>
+ * Frame buffers are reference counted. The owner holds the first reference
+ * and gives it up with {@link #dispose()}. Readers on other threads take
+ * their own with {@link #retain()} and give it up with {@link #release()}, so
+ * the frame buffer is not reused by owners that check {@link #isRetained()}
+ * while they are reading. Memory is never freed explicitly, not even off the
+ * heap, as images and graphics obtained from {@link #getImage()} may still be
+ * held by code that does not retain the frame buffer. It is left to the
+ * garbage collector.
+ */
+public abstract class FrameBuffer {
+
+	/* FNV-1a, applied a whole pixel at a time */
+	protected final static long FNV_OFFSET = 0xcbf29ce484222325L;
+	protected final static long FNV_PRIME = 0x100000001b3L;
+
+	protected final BufferedImage image;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final AtomicBoolean disposed = new AtomicBoolean();
+
+	protected FrameBuffer(BufferedImage image) {
+		this.image = image;
+	}
+
+	/**
+	 * Create a new frame buffer of the given size and {@link BufferedImage}
+	 * type. Integer RGB and 16 bit RGB images get direct array access,
+	 * anything else falls back to the standard {@link BufferedImage} methods.
+	 *
+	 * @param width width
+	 * @param height height
+	 * @param type image type
+	 * @return frame buffer
+	 */
+	public static FrameBuffer create(int width, int height, int type) {
+		BufferedImage image = new BufferedImage(Math.max(width, 1), Math.max(height, 1), type);
+		if (IntFrameBuffer.isSupported(image))
+			return new IntFrameBuffer(image);
+		if (ShortFrameBuffer.isSupported(image))
+			return new ShortFrameBuffer(image);
+		return new ImageFrameBuffer(image);
+	}
+
+	/**
+	 * Create a new frame buffer of the given size and {@link BufferedImage}
+	 * type whose pixels are kept in direct memory outside of the Java heap.
+	 * Only {@link BufferedImage#TYPE_INT_RGB} and
+	 * {@link BufferedImage#TYPE_INT_ARGB} are supported, other types get the
+	 * same frame buffer as {@link #create(int, int, int)}.
+	 *
+	 * @param width width
+	 * @param height height
+	 * @param type image type
+	 * @return frame buffer
+	 */
+	public static FrameBuffer createDirect(int width, int height, int type) {
+		if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+			return create(width, height, type);
+		return DirectFrameBuffer.allocate(Math.max(width, 1), Math.max(height, 1), type);
+	}
+
+	/**
+	 * Get the image this frame buffer wraps.
+	 *
+	 * @return image
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	public int getWidth() {
+		return image.getWidth();
+	}
+
+	public int getHeight() {
+		return image.getHeight();
+	}
+
+	public int getType() {
+		return image.getType();
+	}
+
+	/**
+	 * Create a new frame buffer of a different size, containing as much of
+	 * this frame buffer's content as will fit.
+	 *
+	 * @param width new width
+	 * @param height new height
+	 * @return new frame buffer
+	 */
+	public FrameBuffer resize(int width, int height) {
+		FrameBuffer fb = create(width, height, getType());
+		fb.copyArea(this, 0, 0, getWidth(), getHeight());
+		return fb;
+	}
+
+	/**
+	 * Give up the owner's reference. The owner must not use the frame buffer
+	 * afterwards.
+	 */
+	public void dispose() {
+		if (disposed.compareAndSet(false, true))
+			release();
+	}
+
+	/**
+	 * Take a reference while reading from the frame buffer on a thread other
+	 * than the owner's. Each successful call must be matched by a call to
+	 * {@link #release()}.
+	 *
+	 * @return <code>false</code> if the owner and all readers have already
+	 *         given up their references
+	 */
+	public boolean retain() {
+		while (true) {
+			int r = references.get();
+			if (r == 0)
+				return false;
+			if (references.compareAndSet(r, r + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Give up a reference taken with {@link #retain()}.
+	 */
+	public void release() {
+		references.decrementAndGet();
+	}
+
+	/**
+	 * Get whether any readers hold a reference to the frame buffer.
+	 *
+	 * @return retained
+	 */
+	public boolean isRetained() {
+		return references.get() > (disposed.get() ? 0 : 1);
+	}
+
+	/**
+	 * Copy a rectangle, which must be inside the bounds of the frame buffer,
+	 * into a new image of the same type, for readers that need an image that
+	 * stays the same after they have released the frame buffer.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @return image
+	 */
+	public BufferedImage copyImage(int x, int y, int cx, int cy) {
+		ColorModel cm = image.getColorModel();
+		WritableRaster raster = cm.createCompatibleWritableRaster(cx, cy);
+		raster.setDataElements(0, 0, cx, cy, image.getRaster().getDataElements(x, y, cx, cy, null));
+		return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Get a rectangle, which must be inside the bounds of the frame buffer, as
+	 * an image that may still be read after the frame buffer is released. Heap
+	 * frame buffers return a sub-image sharing their pixels, which the garbage
+	 * collector keeps alive, others return a copy.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @return image
+	 */
+	public BufferedImage grabImage(int x, int y, int cx, int cy) {
+		return image.getSubimage(x, y, cx, cy);
+	}
+
+	/**
+	 * Get whether the pixels are kept off the heap, in which case
+	 * {@link #grabImage(int, int, int, int)} returns a copy.
+	 *
+	 * @return direct
+	 */
+	public boolean isDirect() {
+		return false;
+	}
+
+	/**
+	 * Copy a rectangle from another frame buffer of the same type to the same
+	 * position in this one. The rectangle is clipped to the bounds of both.
+	 *
+	 * @param src frame buffer to copy from
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 */
+	public void copyArea(FrameBuffer src, int x, int y, int cx, int cy) {
+		int x2 = Math.min(x + cx, Math.min(getWidth(), src.getWidth()));
+		int y2 = Math.min(y + cy, Math.min(getHeight(), src.getHeight()));
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if (x2 > x && y2 > y)
+			writeArea(src, x, y, x2 - x, y2 - y);
+	}
+
+	/**
+	 * Copy a rectangle that is known to be inside the bounds of both frame
+	 * buffers.
+	 *
+	 * @param src frame buffer to copy from
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 */
+	protected void writeArea(FrameBuffer src, int x, int y, int cx, int cy) {
+		Object data = src.image.getRaster().getDataElements(x, y, cx, cy, null);
+		image.getRaster().setDataElements(x, y, cx, cy, data);
+	}
+
+	/**
+	 * Set a single pixel. The colour is in the default RGB colour model.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param rgb colour
+	 */
+	public abstract void setRGB(int x, int y, int rgb);
+
+	/**
+	 * Set a rectangle of pixels from an array in the default RGB colour model.
+	 * The rectangle is clipped to the bounds of the frame buffer.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @param data pixels
+	 * @param offset offset of first pixel in data
+	 * @param scansize scanline stride of data
+	 */
+	public void setRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+		if (x < 0) {
+			offset -= x;
+			cx += x;
+			x = 0;
+		}
+		if (y < 0) {
+			offset -= y * scansize;
+			cy += y;
+			y = 0;
+		}
+		cx = Math.min(cx, getWidth() - x);
+		cy = Math.min(cy, getHeight() - y);
+		if (cx > 0 && cy > 0)
+			writeRGB(x, y, cx, cy, data, offset, scansize);
+	}
+
+	/**
+	 * Set a rectangle of pixels from an array of palette indexes, converting
+	 * them to RGB as they are written. Only the elements inside the rectangle
+	 * are read, and the array is not modified. The rectangle is clipped to
+	 * the bounds of the frame buffer.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @param data palette indexes
+	 * @param offset offset of first pixel in data
+	 * @param scansize scanline stride of data
+	 * @param palette palette
+	 */
+	public void setIndexed(int x, int y, int cx, int cy, int[] data, int offset, int scansize, PaletteTable palette) {
+		if (x < 0) {
+			offset -= x;
+			cx += x;
+			x = 0;
+		}
+		if (y < 0) {
+			offset -= y * scansize;
+			cy += y;
+			y = 0;
+		}
+		cx = Math.min(cx, getWidth() - x);
+		cy = Math.min(cy, getHeight() - y);
+		if (cx > 0 && cy > 0)
+			writeIndexed(x, y, cx, cy, data, offset, scansize, palette);
+	}
+
+	/**
+	 * Write a rectangle of palette indexes that is known to be inside the
+	 * bounds of the frame buffer. The default implementation converts a row
+	 * at a time into a pooled scratch array.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @param data palette indexes
+	 * @param offset offset of first pixel in data
+	 * @param scansize scanline stride of data
+	 * @param palette palette
+	 */
+	protected void writeIndexed(int x, int y, int cx, int cy, int[] data, int offset, int scansize, PaletteTable palette) {
+		IntArrayPool pool = IntArrayPool.get();
+		int[] row = pool.acquire(cx);
+		try {
+			for (int r = 0; r < cy; r++) {
+				for (int i = 0; i < cx; i++)
+					row[i] = palette.toRGB(data[offset + i]);
+				writeRGB(x, y + r, cx, 1, row, 0, cx);
+				offset += scansize;
+			}
+		} finally {
+			pool.release(row);
+		}
+	}
+
+	/**
+	 * Write a rectangle of pixels that is known to be inside the bounds of the
+	 * frame buffer.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @param data pixels
+	 * @param offset offset of first pixel in data
+	 * @param scansize scanline stride of data
+	 */
+	protected abstract void writeRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize);
+
+	/**
+	 * Get a single pixel in the default RGB colour model.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @return colour
+	 */
+	public abstract int getRGB(int x, int y);
+
+	/**
+	 * Get a rectangle of pixels in the default RGB colour model. Behaves the
+	 * same as {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @param data array to fill, or <code>null</code> to allocate one
+	 * @param offset offset of first pixel in data
+	 * @param scansize scanline stride of data
+	 * @return data
+	 */
+	public abstract int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize);
+
+	/**
+	 * Describe where the pixels of a rectangle are in this frame buffer's
+	 * backing array or buffer. The rectangle must be inside the bounds of the
+	 * frame buffer. Only frame buffers with direct pixel access support this.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @param region region to fill in, or <code>null</code> to create one
+	 * @return region, or <code>null</code> if the pixels cannot be accessed
+	 *         directly
+	 */
+	public PixelRegion getRegion(int x, int y, int cx, int cy, PixelRegion region) {
+		return null;
+	}
+
+	/**
+	 * Calculate a 64 bit hash of the content of a rectangle, which must be
+	 * inside the bounds of the frame buffer. Used to detect whether an area
+	 * has really changed.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param cx width
+	 * @param cy height
+	 * @return hash
+	 */
+	public abstract long hash(int x, int y, int cx, int cy);
+
+	/**
+	 * Frame buffer backed directly by the <code>int[]</code> of a
+	 * {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB}
+	 * image. Note that taking the array means Java2D will no longer cache the
+	 * image in video memory, but as this image only ever lives in memory that
+	 * costs nothing.
+	 * <p>
+	 * For {@link BufferedImage#TYPE_INT_RGB} the top byte of each element is
+	 * undefined, anything reading the array directly must mask it off.
+	 */
+	static class IntFrameBuffer extends FrameBuffer {
+		private final int[] pixels;
+		private final int width;
+		private final int height;
+		private final int alpha;
+		private final int significant;
+
+		IntFrameBuffer(BufferedImage image) {
+			super(image);
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			width = image.getWidth();
+			height = image.getHeight();
+			alpha = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+			significant = ~alpha;
+		}
+
+		static boolean isSupported(BufferedImage image) {
+			int type = image.getType();
+			if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+				return false;
+			WritableRaster raster = image.getRaster();
+			return raster.getDataBuffer() instanceof DataBufferInt && raster.getDataBuffer().getNumBanks() == 1
+					&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+					&& ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == image.getWidth();
+		}
+
+		@Override
+		protected void writeArea(FrameBuffer src, int x, int y, int cx, int cy) {
+			if (src instanceof IntFrameBuffer) {
+				IntFrameBuffer ifb = (IntFrameBuffer) src;
+				int from = y * ifb.width + x;
+				int to = y * width + x;
+				for (int row = 0; row < cy; row++) {
+					System.arraycopy(ifb.pixels, from, pixels, to, cx);
+					from += ifb.width;
+					to += width;
+				}
+			} else if (src instanceof DirectFrameBuffer)
+				((DirectFrameBuffer) src).read(x, y, cx, cy, pixels, y * width + x, width);
+			else
+				super.writeArea(src, x, y, cx, cy);
+		}
+
+		@Override
+		public void setRGB(int x, int y, int rgb) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			pixels[y * width + x] = rgb;
+		}
+
+		@Override
+		protected void writeRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			int dst = y * width + x;
+			if (cx == width && scansize == width) {
+				System.arraycopy(data, offset, pixels, dst, cx * cy);
+			} else {
+				for (int row = 0; row < cy; row++) {
+					System.arraycopy(data, offset, pixels, dst, cx);
+					offset += scansize;
+					dst += width;
+				}
+			}
+		}
+
+		@Override
+		protected void writeIndexed(int x, int y, int cx, int cy, int[] data, int offset, int scansize, PaletteTable palette) {
+			int dst = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++)
+					pixels[dst + i] = palette.toRGB(data[offset + i]);
+				offset += scansize;
+				dst += width;
+			}
+		}
+
+		@Override
+		public int getRGB(int x, int y) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			return pixels[y * width + x] | alpha;
+		}
+
+		@Override
+		public long hash(int x, int y, int cx, int cy) {
+			long h = FNV_OFFSET;
+			int src = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++) {
+					h ^= pixels[src + i] & significant;
+					h *= FNV_PRIME;
+				}
+				src += width;
+			}
+			return h;
+		}
+
+		@Override
+		public int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			if (x < 0 || y < 0 || cx < 0 || cy < 0 || x + cx > width || y + cy > height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			if (data == null)
+				data = new int[offset + cy * scansize];
+			int src = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				if (alpha == 0)
+					System.arraycopy(pixels, src, data, offset, cx);
+				else {
+					for (int i = 0; i < cx; i++)
+						data[offset + i] = pixels[src + i] | alpha;
+				}
+				offset += scansize;
+				src += width;
+			}
+			return data;
+		}
+
+		@Override
+		public PixelRegion getRegion(int x, int y, int cx, int cy, PixelRegion region) {
+			if (x < 0 || y < 0 || cx < 0 || cy < 0 || x + cx > width || y + cy > height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			if (region == null)
+				region = new PixelRegion();
+			region.set(pixels, getType(), width, x, y, cx, cy);
+			return region;
+		}
+
+		@Override
+		public BufferedImage copyImage(int x, int y, int cx, int cy) {
+			BufferedImage copy = new BufferedImage(cx, cy, getType());
+			int[] dst = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+			for (int row = 0, src = y * width + x; row < cy; row++, src += width)
+				System.arraycopy(pixels, src, dst, row * cx, cx);
+			return copy;
+		}
+	}
+
+	/**
+	 * Frame buffer backed directly by the <code>short[]</code> of a
+	 * {@link BufferedImage#TYPE_USHORT_565_RGB} or
+	 * {@link BufferedImage#TYPE_USHORT_555_RGB} image, for sessions that keep
+	 * the desktop at the colour depth negotiated with the RDP server.
+	 * Conversion to and from RGB uses lookup tables that round the same way
+	 * as the image's colour model.
+	 */
+	static class ShortFrameBuffer extends FrameBuffer {
+		private final short[] pixels;
+		private final int width;
+		private final int height;
+		private final short[] toRed = new short[256];
+		private final short[] toGreen = new short[256];
+		private final short[] toBlue = new short[256];
+		private final int[] fromRed;
+		private final int[] fromGreen;
+		private final int[] fromBlue;
+		private final int greenBits;
+
+		ShortFrameBuffer(BufferedImage image) {
+			super(image);
+			pixels = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+			width = image.getWidth();
+			height = image.getHeight();
+			greenBits = image.getType() == BufferedImage.TYPE_USHORT_565_RGB ? 6 : 5;
+			fromRed = scale(toRed, 5, 5 + greenBits, 16);
+			fromGreen = scale(toGreen, greenBits, 5, 8);
+			fromBlue = scale(toBlue, 5, 0, 0);
+		}
+
+		static boolean isSupported(BufferedImage image) {
+			int type = image.getType();
+			if (type != BufferedImage.TYPE_USHORT_565_RGB && type != BufferedImage.TYPE_USHORT_555_RGB)
+				return false;
+			WritableRaster raster = image.getRaster();
+			return raster.getDataBuffer() instanceof DataBufferUShort && raster.getDataBuffer().getNumBanks() == 1
+					&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+					&& ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == image.getWidth();
+		}
+
+		/*
+		 * Fill the table converting an 8 bit component to its shifted field,
+		 * and return the table converting the field back to a shifted 8 bit
+		 * component
+		 */
+		private static int[] scale(short[] to, int bits, int fieldShift, int rgbShift) {
+			int max = (1 << bits) - 1;
+			for (int i = 0; i < 256; i++)
+				to[i] = (short) ((int) (i * max / 255f + 0.5f) << fieldShift);
+			int[] from = new int[max + 1];
+			for (int i = 0; i <= max; i++)
+				from[i] = (int) (i * 255f / max + 0.5f) << rgbShift;
+			return from;
+		}
+
+		private short pack(int rgb) {
+			return (short) (toRed[(rgb >> 16) & 0xff] | toGreen[(rgb >> 8) & 0xff] | toBlue[rgb & 0xff]);
+		}
+
+		private int unpack(short pixel) {
+			return 0xff000000 | fromRed[(pixel >> (5 + greenBits)) & 0x1f] | fromGreen[(pixel >> 5) & ((1 << greenBits) - 1)]
+					| fromBlue[pixel & 0x1f];
+		}
+
+		@Override
+		protected void writeArea(FrameBuffer src, int x, int y, int cx, int cy) {
+			if (src instanceof ShortFrameBuffer && src.getType() == getType()) {
+				ShortFrameBuffer sfb = (ShortFrameBuffer) src;
+				int from = y * sfb.width + x;
+				int to = y * width + x;
+				for (int row = 0; row < cy; row++) {
+					System.arraycopy(sfb.pixels, from, pixels, to, cx);
+					from += sfb.width;
+					to += width;
+				}
+			} else
+				super.writeArea(src, x, y, cx, cy);
+		}
+
+		@Override
+		public void setRGB(int x, int y, int rgb) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			pixels[y * width + x] = pack(rgb);
+		}
+
+		@Override
+		protected void writeRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			int dst = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++)
+					pixels[dst + i] = pack(data[offset + i]);
+				offset += scansize;
+				dst += width;
+			}
+		}
+
+		@Override
+		protected void writeIndexed(int x, int y, int cx, int cy, int[] data, int offset, int scansize, PaletteTable palette) {
+			int dst = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++)
+					pixels[dst + i] = pack(palette.toRGB(data[offset + i]));
+				offset += scansize;
+				dst += width;
+			}
+		}
+
+		@Override
+		public int getRGB(int x, int y) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			return unpack(pixels[y * width + x]);
+		}
+
+		@Override
+		public long hash(int x, int y, int cx, int cy) {
+			long h = FNV_OFFSET;
+			int src = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++) {
+					h ^= pixels[src + i] & 0xffff;
+					h *= FNV_PRIME;
+				}
+				src += width;
+			}
+			return h;
+		}
+
+		@Override
+		public int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			if (x < 0 || y < 0 || cx < 0 || cy < 0 || x + cx > width || y + cy > height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			if (data == null)
+				data = new int[offset + cy * scansize];
+			int src = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++)
+					data[offset + i] = unpack(pixels[src + i]);
+				offset += scansize;
+				src += width;
+			}
+			return data;
+		}
+
+		@Override
+		public PixelRegion getRegion(int x, int y, int cx, int cy, PixelRegion region) {
+			if (x < 0 || y < 0 || cx < 0 || cy < 0 || x + cx > width || y + cy > height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			if (region == null)
+				region = new PixelRegion();
+			region.set(pixels, getType(), width, x, y, cx, cy);
+			return region;
+		}
+	}
+
+	/**
+	 * Frame buffer for {@link BufferedImage#TYPE_INT_RGB} and
+	 * {@link BufferedImage#TYPE_INT_ARGB} whose pixels are kept in a direct
+	 * {@link ByteBuffer} rather than an <code>int[]</code>, so large desktops
+	 * do not add to the heap or to garbage collection time. The image is
+	 * built on a {@link DataBuffer} over the same memory, so Java2D drawing
+	 * and anything reading the image still work, but through the generic
+	 * (and much slower) custom image paths. Readers should use
+	 * {@link #getRegion(int, int, int, int, PixelRegion)}, which gives a read
+	 * only {@link IntBuffer} over the pixels, or
+	 * {@link #grabImage(int, int, int, int)}, which copies them into a heap
+	 * image.
+	 * <p>
+	 * The memory is released by the garbage collector once nothing refers to
+	 * the buffer, its image or any region over it. Resizing always allocates
+	 * new memory, so anything still holding the old frame buffer's image is
+	 * not affected.
+	 */
+	static class DirectFrameBuffer extends FrameBuffer {
+		private final IntBuffer pixels;
+		private final int width;
+		private final int height;
+		private final int type;
+		private final int alpha;
+		private final int significant;
+
+		private DirectFrameBuffer(IntBuffer pixels, int width, int height, int type) {
+			super(createImage(pixels, width, height, type));
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.type = type;
+			alpha = type == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+			significant = ~alpha;
+		}
+
+		static DirectFrameBuffer allocate(int width, int height, int type) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+			return new DirectFrameBuffer(buffer.asIntBuffer(), width, height, type);
+		}
+
+		private static BufferedImage createImage(IntBuffer pixels, int width, int height, int type) {
+			DirectColorModel cm = type == BufferedImage.TYPE_INT_ARGB ? (DirectColorModel) ColorModel.getRGBdefault()
+					: new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+			WritableRaster raster = Raster.createWritableRaster(cm.createCompatibleSampleModel(width, height),
+					new DirectDataBuffer(pixels, width * height), null);
+			return new BufferedImage(cm, raster, false, null);
+		}
+
+		@Override
+		public int getType() {
+			return type;
+		}
+
+		@Override
+		public FrameBuffer resize(int width, int height) {
+			DirectFrameBuffer fb = allocate(Math.max(width, 1), Math.max(height, 1), type);
+			fb.copyArea(this, 0, 0, this.width, this.height);
+			return fb;
+		}
+
+		@Override
+		protected void writeArea(FrameBuffer src, int x, int y, int cx, int cy) {
+			IntBuffer dst = pixels.duplicate();
+			int to = y * width + x;
+			if (src instanceof IntFrameBuffer) {
+				IntFrameBuffer ifb = (IntFrameBuffer) src;
+				int from = y * ifb.width + x;
+				for (int row = 0; row < cy; row++) {
+					dst.position(to);
+					dst.put(ifb.pixels, from, cx);
+					from += ifb.width;
+					to += width;
+				}
+			} else if (src instanceof DirectFrameBuffer) {
+				DirectFrameBuffer dfb = (DirectFrameBuffer) src;
+				IntBuffer from = dfb.pixels.duplicate();
+				int offset = y * dfb.width + x;
+				for (int row = 0; row < cy; row++) {
+					from.clear();
+					from.position(offset);
+					from.limit(offset + cx);
+					dst.position(to);
+					dst.put(from);
+					offset += dfb.width;
+					to += width;
+				}
+			} else
+				super.writeArea(src, x, y, cx, cy);
+		}
+
+		@Override
+		public void setRGB(int x, int y, int rgb) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			pixels.put(y * width + x, rgb);
+		}
+
+		@Override
+		protected void writeRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			IntBuffer dst = pixels.duplicate();
+			dst.position(y * width + x);
+			if (cx == width && scansize == width) {
+				dst.put(data, offset, cx * cy);
+			} else {
+				for (int row = 0; row < cy; row++) {
+					dst.put(data, offset, cx);
+					offset += scansize;
+					if (row < cy - 1)
+						dst.position(dst.position() + width - cx);
+				}
+			}
+		}
+
+		@Override
+		protected void writeIndexed(int x, int y, int cx, int cy, int[] data, int offset, int scansize, PaletteTable palette) {
+			int dst = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++)
+					pixels.put(dst + i, palette.toRGB(data[offset + i]));
+				offset += scansize;
+				dst += width;
+			}
+		}
+
+		@Override
+		public int getRGB(int x, int y) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			return pixels.get(y * width + x) | alpha;
+		}
+
+		@Override
+		public long hash(int x, int y, int cx, int cy) {
+			long h = FNV_OFFSET;
+			int src = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				for (int i = 0; i < cx; i++) {
+					h ^= pixels.get(src + i) & significant;
+					h *= FNV_PRIME;
+				}
+				src += width;
+			}
+			return h;
+		}
+
+		@Override
+		public int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			if (x < 0 || y < 0 || cx < 0 || cy < 0 || x + cx > width || y + cy > height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			if (data == null)
+				data = new int[offset + cy * scansize];
+			read(x, y, cx, cy, data, offset, scansize);
+			if (alpha != 0) {
+				for (int row = 0; row < cy; row++) {
+					for (int i = 0; i < cx; i++)
+						data[offset + i] |= alpha;
+					offset += scansize;
+				}
+			}
+			return data;
+		}
+
+		/*
+		 * Copy pixels as they are stored, so for TYPE_INT_RGB the top byte is
+		 * undefined
+		 */
+		void read(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			IntBuffer src = pixels.duplicate();
+			int from = y * width + x;
+			for (int row = 0; row < cy; row++) {
+				src.position(from);
+				src.get(data, offset, cx);
+				offset += scansize;
+				from += width;
+			}
+		}
+
+		@Override
+		public BufferedImage copyImage(int x, int y, int cx, int cy) {
+			BufferedImage copy = new BufferedImage(cx, cy, type);
+			read(x, y, cx, cy, ((DataBufferInt) copy.getRaster().getDataBuffer()).getData(), 0, cx);
+			return copy;
+		}
+
+		@Override
+		public BufferedImage grabImage(int x, int y, int cx, int cy) {
+			return copyImage(x, y, cx, cy);
+		}
+
+		@Override
+		public boolean isDirect() {
+			return true;
+		}
+
+		@Override
+		public PixelRegion getRegion(int x, int y, int cx, int cy, PixelRegion region) {
+			if (x < 0 || y < 0 || cx < 0 || cy < 0 || x + cx > width || y + cy > height)
+				throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+			if (region == null)
+				region = new PixelRegion();
+			/* Each region gets its own view, so readers may move its position */
+			region.set(pixels.asReadOnlyBuffer(), type, width, x, y, cx, cy);
+			return region;
+		}
+	}
+
+	/**
+	 * A single bank integer {@link DataBuffer} over an {@link IntBuffer}, used
+	 * as the data buffer of a {@link DirectFrameBuffer}'s image.
+	 */
+	static class DirectDataBuffer extends DataBuffer {
+		private final IntBuffer pixels;
+
+		DirectDataBuffer(IntBuffer pixels, int size) {
+			super(TYPE_INT, size);
+			this.pixels = pixels;
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return pixels.get(i);
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			pixels.put(i, val);
+		}
+	}
+
+	/**
+	 * Fallback frame buffer for image types that cannot be accessed directly.
+	 * All access goes through the {@link BufferedImage}.
+	 */
+	static class ImageFrameBuffer extends FrameBuffer {
+
+		ImageFrameBuffer(BufferedImage image) {
+			super(image);
+		}
+
+		@Override
+		public void setRGB(int x, int y, int rgb) {
+			image.setRGB(x, y, rgb);
+		}
+
+		@Override
+		protected void writeRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			image.setRGB(x, y, cx, cy, data, offset, scansize);
+		}
+
+		@Override
+		public int getRGB(int x, int y) {
+			return image.getRGB(x, y);
+		}
+
+		@Override
+		public long hash(int x, int y, int cx, int cy) {
+			long h = FNV_OFFSET;
+			IntArrayPool pool = IntArrayPool.get();
+			int[] row = pool.acquire(cx);
+			try {
+				for (int r = 0; r < cy; r++) {
+					image.getRGB(x, y + r, cx, 1, row, 0, cx);
+					for (int i = 0; i < cx; i++) {
+						h ^= row[i];
+						h *= FNV_PRIME;
+					}
+				}
+			} finally {
+				pool.release(row);
+			}
+			return h;
+		}
+
+		@Override
+		public int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset, int scansize) {
+			return image.getRGB(x, y, cx, cy, data, offset, scansize);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed bucket boundaries, recorded without
+ * locks. Suitable for exporting as a Prometheus histogram. Memory use is fixed
+ * however many durations are recorded, and percentiles are estimated to
+ * within a bucket.
+ */
+public class Histogram {
+
+	/**
+	 * Default bucket upper bounds in milliseconds.
+	 */
+	public final static double[] DEFAULT_BOUNDS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	private final long[] bounds;
+	private final double[] boundsMs;
+	private final AtomicLongArray counts;
+	private final StripedCounter sum = new StripedCounter();
+
+	public Histogram() {
+		this(DEFAULT_BOUNDS_MS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param boundsMs ascending bucket upper bounds in milliseconds
+	 */
+	public Histogram(double... boundsMs) {
+		this.boundsMs = boundsMs.clone();
+		bounds = new long[boundsMs.length];
+		for (int i = 0; i < boundsMs.length; i++)
+			bounds[i] = (long) (boundsMs[i] * 1000000d);
+		counts = new AtomicLongArray(boundsMs.length + 1);
+	}
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		int i = Arrays.binarySearch(bounds, nanos);
+		counts.incrementAndGet(i < 0 ? -i - 1 : i);
+		sum.add(nanos);
+	}
+
+	/**
+	 * Add all of the durations recorded by another histogram with the same
+	 * bounds to this one.
+	 *
+	 * @param other other histogram
+	 */
+	public void add(Histogram other) {
+		if (!Arrays.equals(bounds, other.bounds))
+			throw new IllegalArgumentException("Histograms have different bounds.");
+		for (int i = 0; i < counts.length(); i++)
+			counts.addAndGet(i, other.counts.get(i));
+		sum.add(other.getSumNanos());
+	}
+
+	/**
+	 * Estimate a percentile, interpolating within the bucket it falls in.
+	 * Anything in the last bucket is reported as the last bound.
+	 *
+	 * @param percentile percentile (0-100)
+	 * @return milliseconds, or 0 if nothing has been recorded
+	 */
+	public double getPercentileMs(double percentile) {
+		long[] c = getCounts();
+		long n = 0;
+		for (long count : c)
+			n += count;
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100d * n));
+		long below = 0;
+		for (int i = 0; i < boundsMs.length; i++) {
+			if (below + c[i] >= rank) {
+				double lower = i == 0 ? 0 : boundsMs[i - 1];
+				return lower + (boundsMs[i] - lower) * (rank - below) / c[i];
+			}
+			below += c[i];
+		}
+		return boundsMs.length == 0 ? 0 : boundsMs[boundsMs.length - 1];
+	}
+
+	/**
+	 * Get the bucket upper bounds in milliseconds. There is one more bucket
+	 * than bounds, for anything larger than the last bound.
+	 *
+	 * @return bounds
+	 */
+	public double[] getBoundsMs() {
+		return boundsMs.clone();
+	}
+
+	/**
+	 * Get the number of recorded durations in each bucket (not cumulative).
+	 *
+	 * @return counts
+	 */
+	public long[] getCounts() {
+		long[] c = new long[counts.length()];
+		for (int i = 0; i < c.length; i++)
+			c[i] = counts.get(i);
+		return c;
+	}
+
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < counts.length(); i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	/**
+	 * Get the total of all recorded durations.
+	 *
+	 * @return total in nanoseconds
+	 */
+	public long getSumNanos() {
+		return sum.get();
+	}
+
+	/**
+	 * Get the mean of all recorded durations.
+	 *
+	 * @return mean in milliseconds
+	 */
+	public double getMeanMs() {
+		long n = getCount();
+		return n == 0 ? 0 : getSumNanos() / 1000000d / n;
+	}
+}
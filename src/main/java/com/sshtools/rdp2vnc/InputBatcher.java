@@ -0,0 +1,120 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link InputSink} that coalesces pointer motion. The first motion event
+ * starts a window of <code>interval</code> milliseconds; any further motion
+ * in that window just replaces the pending position, and only the last
+ * position is passed on when the window ends.
+ * <p>
+ * Any other input (buttons, wheel or keys) first passes on the pending
+ * motion, so the order of transitions and the position they happen at are
+ * never changed, and no transition is ever dropped.
+ */
+class InputBatcher implements InputSink, Runnable {
+
+	private final InputSink delegate;
+	private final long interval;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private boolean pending;
+	private long when;
+	private int modifiers;
+	private int x;
+	private int y;
+
+	InputBatcher(InputSink delegate, long interval) {
+		this.delegate = delegate;
+		this.interval = interval;
+	}
+
+	/**
+	 * Get how many motion events have been received.
+	 *
+	 * @return motion events received
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Get how many motion events have been passed on.
+	 *
+	 * @return motion events sent
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	@Override
+	public synchronized void mouseMoved(long when, int modifiers, int x, int y) {
+		received.incrementAndGet();
+		this.when = when;
+		this.modifiers = modifiers;
+		this.x = x;
+		this.y = y;
+		if (!pending) {
+			pending = true;
+			SharedScheduler.get().schedule(this, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void run() {
+		flush();
+	}
+
+	/**
+	 * Pass on any pending motion now.
+	 */
+	public synchronized void flush() {
+		if (pending) {
+			pending = false;
+			sent.incrementAndGet();
+			delegate.mouseMoved(when, modifiers, x, y);
+		}
+	}
+
+	@Override
+	public synchronized void keyPressed(long when, int modifiers, int keyCode, char keyChar, int location) {
+		flush();
+		delegate.keyPressed(when, modifiers, keyCode, keyChar, location);
+	}
+
+	@Override
+	public synchronized void keyReleased(long when, int modifiers, int keyCode, char keyChar, int location) {
+		flush();
+		delegate.keyReleased(when, modifiers, keyCode, keyChar, location);
+	}
+
+	@Override
+	public synchronized void keyTyped(long when, int modifiers, char keyChar, int location) {
+		flush();
+		delegate.keyTyped(when, modifiers, keyChar, location);
+	}
+
+	@Override
+	public synchronized void mousePressed(long when, int modifiers, int x, int y, int button) {
+		flush();
+		delegate.mousePressed(when, modifiers, x, y, button);
+	}
+
+	@Override
+	public synchronized void mouseReleased(long when, int modifiers, int x, int y, int button) {
+		flush();
+		delegate.mouseReleased(when, modifiers, x, y, button);
+	}
+
+	@Override
+	public synchronized void mouseWheelMoved(long when, int modifiers, int x, int y, int rotation) {
+		flush();
+		delegate.mouseWheelMoved(when, modifiers, x, y, rotation);
+	}
+
+	@Override
+	public String toString() {
+		return "InputBatcher [interval=" + interval + ", received=" + received + ", sent=" + sent + "]";
+	}
+}
@@ -0,0 +1,24 @@
+package com.sshtools.rdp2vnc;
+
+/**
+ * Receives input from VNC clients once {@link RDPDisplayDriver} has
+ * translated it into AWT key codes, modifiers and buttons. Each method is
+ * called once per input event, whatever is listening behind it, with a single
+ * timestamp.
+ */
+interface InputSink {
+
+	void keyPressed(long when, int modifiers, int keyCode, char keyChar, int location);
+
+	void keyReleased(long when, int modifiers, int keyCode, char keyChar, int location);
+
+	void keyTyped(long when, int modifiers, char keyChar, int location);
+
+	void mouseMoved(long when, int modifiers, int x, int y);
+
+	void mousePressed(long when, int modifiers, int x, int y, int button);
+
+	void mouseReleased(long when, int modifiers, int x, int y, int button);
+
+	void mouseWheelMoved(long when, int modifiers, int x, int y, int rotation);
+}
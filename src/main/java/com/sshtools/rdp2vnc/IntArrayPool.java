@@ -0,0 +1,89 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of scratch <code>int[]</code> arrays in power of two size classes,
+ * for pixel data that is only needed for the duration of one drawing or
+ * encoding operation. Arrays handed out may be larger than asked for and are
+ * not cleared.
+ * <p>
+ * Use {@link #get()} for the process wide pool.
+ */
+public class IntArrayPool {
+	final static int MIN_CLASS = 6;
+	final static int MAX_CLASS = 22;
+	final static int DEFAULT_MAX_PER_CLASS = 8;
+
+	private static IntArrayPool shared;
+
+	private final Queue<int[]>[] free;
+	private final AtomicInteger[] pooled;
+	private final int maxPerClass;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public IntArrayPool(int maxPerClass) {
+		this.maxPerClass = maxPerClass;
+		free = new Queue[MAX_CLASS + 1];
+		pooled = new AtomicInteger[MAX_CLASS + 1];
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+			free[i] = new ConcurrentLinkedQueue<int[]>();
+			pooled[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Get the process wide pool, creating it if required.
+	 *
+	 * @return pool
+	 */
+	public static synchronized IntArrayPool get() {
+		if (shared == null)
+			shared = new IntArrayPool(DEFAULT_MAX_PER_CLASS);
+		return shared;
+	}
+
+	/**
+	 * Get an array of at least the given size. Requests larger than the
+	 * largest size class are allocated and not pooled.
+	 *
+	 * @param size minimum size
+	 * @return array
+	 */
+	public int[] acquire(int size) {
+		int cls = sizeClass(size);
+		if (cls > MAX_CLASS)
+			return new int[size];
+		int[] arr = free[cls].poll();
+		if (arr == null)
+			return new int[1 << cls];
+		pooled[cls].decrementAndGet();
+		return arr;
+	}
+
+	/**
+	 * Return an array obtained from {@link #acquire(int)} to the pool.
+	 *
+	 * @param arr array
+	 */
+	public void release(int[] arr) {
+		int len = arr.length;
+		if (Integer.bitCount(len) != 1)
+			return;
+		int cls = Integer.numberOfTrailingZeros(len);
+		if (cls < MIN_CLASS || cls > MAX_CLASS)
+			return;
+		if (pooled[cls].incrementAndGet() <= maxPerClass)
+			free[cls].offer(arr);
+		else
+			pooled[cls].decrementAndGet();
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= 1 << MIN_CLASS)
+			return MIN_CLASS;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
@@ -0,0 +1,143 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.javardp.client.Rdesktop;
+
+/**
+ * A process wide cache of keymap files, keyed by layout name (e.g.
+ * <code>en-us</code>). Each keymap is read once, either from the
+ * <code>/keymaps</code> resources of the RDP library or from a
+ * <code>keymaps</code> directory, and then kept in memory. Sessions parse
+ * their own keymap from the cached copy, because the parsed keymap belongs
+ * to the session's options and tracks its own state.
+ */
+public class KeymapCache {
+	final static Logger LOG = LoggerFactory.getLogger(KeymapCache.class);
+	final static String KEYMAP_PATH = "keymaps/";
+
+	/**
+	 * An immutable, in memory copy of a keymap file.
+	 */
+	public static class Keymap {
+		private final String name;
+		private final URL url;
+		private final byte[] data;
+
+		Keymap(String name, URL url, byte[] data) {
+			this.name = name;
+			this.url = url;
+			this.data = data;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get where the keymap was loaded from. Used by the keymap parser to
+		 * resolve any files it includes.
+		 *
+		 * @return URL
+		 */
+		public URL getURL() {
+			return url;
+		}
+
+		/**
+		 * Open a new stream to read the keymap from memory.
+		 *
+		 * @return stream
+		 */
+		public InputStream openStream() {
+			return new ByteArrayInputStream(data);
+		}
+	}
+
+	private static KeymapCache instance;
+
+	private final ConcurrentMap<String, Keymap> keymaps = new ConcurrentHashMap<String, Keymap>();
+
+	/**
+	 * Get the process wide cache, creating it if required.
+	 *
+	 * @return cache
+	 */
+	public static synchronized KeymapCache get() {
+		if (instance == null)
+			instance = new KeymapCache();
+		return instance;
+	}
+
+	/**
+	 * Get a keymap, loading it if this is the first time it has been asked
+	 * for.
+	 *
+	 * @param name layout name
+	 * @return keymap
+	 * @throws IOException if the keymap cannot be found or read
+	 */
+	public Keymap getKeymap(String name) throws IOException {
+		Keymap keymap = keymaps.get(name);
+		if (keymap == null) {
+			keymap = load(name);
+			Keymap existing = keymaps.putIfAbsent(name, keymap);
+			if (existing != null)
+				keymap = existing;
+		}
+		return keymap;
+	}
+
+	/**
+	 * Load keymaps ahead of time, so the first session to use each one does
+	 * not have to. Keymaps that cannot be loaded are logged and skipped.
+	 *
+	 * @param names layout names
+	 */
+	public void preload(String... names) {
+		for (String name : names) {
+			name = name.trim();
+			if (name.length() == 0)
+				continue;
+			try {
+				getKeymap(name);
+				LOG.info("Preloaded keymap " + name);
+			} catch (IOException ioe) {
+				LOG.warn("Failed to preload keymap " + name + ".", ioe);
+			}
+		}
+	}
+
+	private Keymap load(String name) throws IOException {
+		URL url = Rdesktop.class.getResource("/" + KEYMAP_PATH + name);
+		if (url == null) {
+			File file = new File(KEYMAP_PATH + name);
+			if (!file.exists())
+				throw new FileNotFoundException("No keymap named " + name + ".");
+			url = file.toURI().toURL();
+		}
+		InputStream in = url.openStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int r;
+			while ((r = in.read(buf)) != -1)
+				out.write(buf, 0, r);
+			LOG.info("Loaded keymap " + name + " from " + url);
+			return new Keymap(name, url, out.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+}
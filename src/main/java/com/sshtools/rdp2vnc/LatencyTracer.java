@@ -0,0 +1,132 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traces how long it takes for input from a VNC client to result in an
+ * update going back to the client, split into phases:
+ * <ul>
+ * <li><b>upstream</b> - from the input arriving to the RDP server painting
+ * anything afterwards. This covers sending the input, the server reacting and
+ * rendering, and the drawing orders coming back.</li>
+ * <li><b>coalesce</b> - from that first paint to the damage being passed to
+ * the RFB server.</li>
+ * <li><b>downstream</b> - from the damage being passed to the RFB server to
+ * a client's encoder first reading the display after that. This covers
+ * queueing the damage for the client and the RFB server starting the update.
+ * Encoding and sending then happen on the client's own thread, along with
+ * any other output to it, so are not included.</li>
+ * </ul>
+ * Only one input is traced at a time, further input is ignored until the
+ * trace completes or is abandoned after {@link #TIMEOUT_MS}. Checking whether
+ * a trace needs to move on is a single volatile read, so the tracer can be
+ * called on every paint.
+ */
+public class LatencyTracer {
+	final static long TIMEOUT_MS = 5000;
+
+	private final static int IDLE = 0;
+	private final static int STARTING = 1;
+	private final static int INPUT = 2;
+	private final static int PAINTED = 3;
+	private final static int FLUSHED = 4;
+
+	private final static long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+	private volatile long inputAt;
+	private volatile long paintedAt;
+	private volatile long flushedAt;
+	private final Histogram upstream = new Histogram();
+	private final Histogram coalesce = new Histogram();
+	private final Histogram downstream = new Histogram();
+	private final Histogram total = new Histogram();
+	private final StripedCounter abandoned = new StripedCounter();
+
+	/**
+	 * Called when input arrives from a VNC client.
+	 */
+	public void input() {
+		int s = state.get();
+		long now = System.nanoTime();
+		if (s != IDLE) {
+			if (s == STARTING || now - inputAt < TIMEOUT)
+				return;
+			abandoned.increment();
+		}
+		if (state.compareAndSet(s, STARTING)) {
+			inputAt = now;
+			state.set(INPUT);
+		}
+	}
+
+	/**
+	 * Called when the RDP server paints an area.
+	 */
+	public void painted() {
+		if (state.get() == INPUT) {
+			paintedAt = System.nanoTime();
+			state.compareAndSet(INPUT, PAINTED);
+		}
+	}
+
+	/**
+	 * Called when damage has been passed to the RFB server.
+	 */
+	public void flushed() {
+		if (state.get() == PAINTED) {
+			flushedAt = System.nanoTime();
+			state.compareAndSet(PAINTED, FLUSHED);
+		}
+	}
+
+	/**
+	 * Called when a client's encoder reads from the display.
+	 */
+	public void encoding() {
+		if (state.get() == FLUSHED) {
+			long now = System.nanoTime();
+			long in = inputAt, painted = paintedAt, flushed = flushedAt;
+			if (state.compareAndSet(FLUSHED, IDLE)) {
+				upstream.record(painted - in);
+				coalesce.record(flushed - painted);
+				downstream.record(now - flushed);
+				total.record(now - in);
+			}
+		}
+	}
+
+	public Histogram getUpstream() {
+		return upstream;
+	}
+
+	public Histogram getCoalesce() {
+		return coalesce;
+	}
+
+	public Histogram getDownstream() {
+		return downstream;
+	}
+
+	public Histogram getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get how many traces were abandoned because no update followed the
+	 * input in time.
+	 *
+	 * @return abandoned traces
+	 */
+	public long getAbandoned() {
+		return abandoned.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LatencyTracer [traces=%d, abandoned=%d, upstream=%.2fms, coalesce=%.2fms, downstream=%.2fms, total=%.2fms]",
+				total.getCount(), getAbandoned(), upstream.getMeanMs(), coalesce.getMeanMs(), downstream.getMeanMs(),
+				total.getMeanMs());
+	}
+}
@@ -0,0 +1,534 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simulated VNC viewer used by {@link RFBLoadTest}. It implements just
+ * enough of the RFB protocol to negotiate a pixel format and encodings,
+ * request incremental updates at a limited rate, read (but not render) the
+ * updates, and send synthetic key and pointer input.
+ * <p>
+ * Two latencies are measured. The <i>update</i> latency is from an update
+ * request being sent to the update arriving, which includes the time the
+ * server waits for something to change. The <i>input</i> latency is from a
+ * key or pointer event being sent to the start of the next update, and so is
+ * only meaningful if the input changes the screen.
+ */
+public class LoadTestClient implements Runnable {
+	final static Logger LOG = LoggerFactory.getLogger(LoadTestClient.class);
+
+	public final static int RAW = 0;
+	public final static int COPY_RECT = 1;
+	public final static int RRE = 2;
+	public final static int HEXTILE = 5;
+	public final static int ZRLE = 16;
+	public final static int CURSOR = -239;
+	public final static int DESKTOP_SIZE = -223;
+
+	private final static int HEXTILE_RAW = 1;
+	private final static int HEXTILE_BACKGROUND = 2;
+	private final static int HEXTILE_FOREGROUND = 4;
+	private final static int HEXTILE_ANY_SUBRECTS = 8;
+	private final static int HEXTILE_SUBRECTS_COLOURED = 16;
+
+	/**
+	 * Bucket bounds for latency histograms, about 5% apart from 0.1ms to a
+	 * minute, so percentiles are close without keeping every sample.
+	 */
+	public final static double[] LATENCY_BOUNDS_MS;
+
+	static {
+		int n = (int) Math.ceil(Math.log(60000 / 0.1) / Math.log(1.05)) + 1;
+		LATENCY_BOUNDS_MS = new double[n];
+		for (int i = 0; i < n; i++)
+			LATENCY_BOUNDS_MS[i] = 0.1 * Math.pow(1.05, i);
+	}
+
+	private final class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int r = super.read();
+			if (r != -1)
+				bytes++;
+			return r;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			if (r > 0)
+				bytes += r;
+			return r;
+		}
+	}
+
+	private final int id;
+	private final String host;
+	private final int port;
+	private final Histogram updateLatency = new Histogram(LATENCY_BOUNDS_MS);
+	private final Histogram inputLatency = new Histogram(LATENCY_BOUNDS_MS);
+	private final Random random;
+	private int[] encodings = { ZRLE, HEXTILE, RRE, COPY_RECT, RAW, CURSOR, DESKTOP_SIZE };
+	private int bitsPerPixel = 32;
+	private long updateInterval;
+	private long inputInterval;
+	private char[] password;
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+	private ScheduledFuture<?> inputTask;
+	private int width;
+	private int height;
+	private int bytesPerPixel;
+	private byte[] scratch = new byte[65536];
+	private volatile long bytes;
+	private volatile long updates;
+	private volatile long rectangles;
+	private volatile long requested;
+	private volatile long inputSent;
+	private volatile long started;
+	private volatile long finished;
+	private volatile Exception error;
+	private volatile boolean closed;
+	private long inputs;
+
+	public LoadTestClient(int id, String host, int port) {
+		this.id = id;
+		this.host = host;
+		this.port = port;
+		random = new Random(id);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Set the encodings to ask for, most preferred first.
+	 *
+	 * @param encodings encodings
+	 */
+	public void setEncodings(int... encodings) {
+		this.encodings = encodings;
+	}
+
+	/**
+	 * Set the pixel format to ask for. May be 8 (BGR233), 16 (RGB565) or 32
+	 * (RGB888).
+	 *
+	 * @param bitsPerPixel bits per pixel
+	 */
+	public void setBitsPerPixel(int bitsPerPixel) {
+		if (bitsPerPixel != 8 && bitsPerPixel != 16 && bitsPerPixel != 32)
+			throw new IllegalArgumentException("Bits per pixel must be 8, 16 or 32.");
+		this.bitsPerPixel = bitsPerPixel;
+	}
+
+	/**
+	 * Set the minimum time between update requests, as a viewer limiting its
+	 * frame rate would.
+	 *
+	 * @param updateInterval interval in milliseconds, or 0 to request the
+	 *            next update as soon as one arrives
+	 */
+	public void setUpdateInterval(long updateInterval) {
+		this.updateInterval = updateInterval;
+	}
+
+	/**
+	 * Set how often to send synthetic input.
+	 *
+	 * @param inputInterval interval in milliseconds, or 0 for no input
+	 */
+	public void setInputInterval(long inputInterval) {
+		this.inputInterval = inputInterval;
+	}
+
+	public void setPassword(char[] password) {
+		this.password = password;
+	}
+
+	public Histogram getUpdateLatency() {
+		return updateLatency;
+	}
+
+	public Histogram getInputLatency() {
+		return inputLatency;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getUpdates() {
+		return updates;
+	}
+
+	public long getRectangles() {
+		return rectangles;
+	}
+
+	/**
+	 * Get how long the client has been receiving updates.
+	 *
+	 * @return milliseconds
+	 */
+	public long getElapsed() {
+		long started = this.started;
+		if (started == 0)
+			return 0;
+		long finished = this.finished;
+		return (finished == 0 ? System.currentTimeMillis() : finished) - started;
+	}
+
+	/**
+	 * Get the error that stopped the client, if any.
+	 *
+	 * @return error
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	@Override
+	public void run() {
+		try {
+			connect();
+			started = System.currentTimeMillis();
+			if (inputInterval > 0) {
+				inputTask = SharedScheduler.get().scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sendInput();
+						} catch (IOException ioe) {
+							close();
+						}
+					}
+				}, inputInterval, inputInterval, TimeUnit.MILLISECONDS);
+			}
+			requestUpdate(false);
+			while (!closed)
+				readMessage();
+		} catch (Exception e) {
+			if (!closed) {
+				error = e;
+				LOG.warn("Client " + id + " failed. " + e.getMessage());
+			}
+		} finally {
+			finished = System.currentTimeMillis();
+			close();
+		}
+	}
+
+	/**
+	 * Disconnect.
+	 */
+	public void close() {
+		closed = true;
+		if (inputTask != null)
+			inputTask.cancel(false);
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void connect() throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream()), 65536));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		/* Protocol version */
+		byte[] version = new byte[12];
+		in.readFully(version);
+		String v = new String(version, "US-ASCII");
+		if (!v.startsWith("RFB "))
+			throw new IOException("Not an RFB server.");
+		int minor = Math.min(8, Integer.parseInt(v.substring(8, 11)));
+		if (minor != 7 && minor != 8)
+			minor = 3;
+		boolean v33 = minor == 3;
+		out.write(("RFB 003.00" + minor + "\n").getBytes("US-ASCII"));
+		out.flush();
+
+		/* Security */
+		int type;
+		if (v33) {
+			type = in.readInt();
+			if (type == 0)
+				throw new IOException("Connection refused. " + readString());
+		} else {
+			int n = in.readUnsignedByte();
+			if (n == 0)
+				throw new IOException("Connection refused. " + readString());
+			byte[] types = new byte[n];
+			in.readFully(types);
+			type = 0;
+			for (byte t : types) {
+				if (t == 1 || (t == 2 && password != null)) {
+					type = t;
+					break;
+				}
+			}
+			if (type == 0)
+				throw new IOException("No supported security type offered (" + Arrays.toString(types) + ").");
+			out.write(type);
+			out.flush();
+		}
+		if (type == 2)
+			authenticate();
+		if (type == 2 || minor == 8) {
+			if (in.readInt() != 0)
+				throw new IOException("Authentication failed. " + (minor >= 8 ? readString() : ""));
+		}
+
+		/* Initialisation */
+		out.write(1);
+		out.flush();
+		width = in.readUnsignedShort();
+		height = in.readUnsignedShort();
+		in.readFully(new byte[16]);
+		readString();
+
+		setPixelFormat();
+		out.write(2);
+		out.write(0);
+		out.writeShort(encodings.length);
+		for (int e : encodings)
+			out.writeInt(e);
+		out.flush();
+	}
+
+	private void authenticate() throws IOException {
+		byte[] challenge = new byte[16];
+		in.readFully(challenge);
+		byte[] key = new byte[8];
+		for (int i = 0; i < key.length && i < password.length; i++) {
+			/* VNC authentication uses the bits of each key byte reversed */
+			key[i] = (byte) (Integer.reverse(password[i] & 0xff) >>> 24);
+		}
+		try {
+			Cipher des = Cipher.getInstance("DES/ECB/NoPadding");
+			des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DES"));
+			out.write(des.doFinal(challenge));
+			out.flush();
+		} catch (Exception e) {
+			throw new IOException("Failed to encrypt challenge.", e);
+		}
+	}
+
+	private void setPixelFormat() throws IOException {
+		bytesPerPixel = bitsPerPixel / 8;
+		out.write(0);
+		out.write(new byte[3]);
+		out.write(bitsPerPixel);
+		out.write(bitsPerPixel == 32 ? 24 : bitsPerPixel);
+		out.write(0);
+		out.write(1);
+		switch (bitsPerPixel) {
+		case 8:
+			out.writeShort(7);
+			out.writeShort(7);
+			out.writeShort(3);
+			out.write(0);
+			out.write(3);
+			out.write(6);
+			break;
+		case 16:
+			out.writeShort(31);
+			out.writeShort(63);
+			out.writeShort(31);
+			out.write(11);
+			out.write(5);
+			out.write(0);
+			break;
+		default:
+			out.writeShort(255);
+			out.writeShort(255);
+			out.writeShort(255);
+			out.write(16);
+			out.write(8);
+			out.write(0);
+			break;
+		}
+		out.write(new byte[3]);
+	}
+
+	private void requestUpdate(boolean incremental) throws IOException {
+		synchronized (out) {
+			out.write(3);
+			out.write(incremental ? 1 : 0);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(width);
+			out.writeShort(height);
+			out.flush();
+		}
+		requested = System.nanoTime();
+	}
+
+	private void sendInput() throws IOException {
+		synchronized (out) {
+			if ((inputs++ & 1) == 0) {
+				out.write(5);
+				out.write(0);
+				out.writeShort(random.nextInt(Math.max(1, width)));
+				out.writeShort(random.nextInt(Math.max(1, height)));
+			} else {
+				int key = 'a' + random.nextInt(26);
+				for (int down = 1; down >= 0; down--) {
+					out.write(4);
+					out.write(down);
+					out.writeShort(0);
+					out.writeInt(key);
+				}
+			}
+			out.flush();
+		}
+		if (inputSent == 0)
+			inputSent = System.nanoTime();
+	}
+
+	private void readMessage() throws IOException, InterruptedException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+		case 0:
+			readUpdate();
+			break;
+		case 1:
+			in.readUnsignedByte();
+			in.readUnsignedShort();
+			skip(in.readUnsignedShort() * 6);
+			break;
+		case 2:
+			break;
+		case 3:
+			skip(3);
+			skip(in.readInt());
+			break;
+		default:
+			throw new IOException("Unexpected server message " + type + ".");
+		}
+	}
+
+	private void readUpdate() throws IOException, InterruptedException {
+		long now = System.nanoTime();
+		updateLatency.record(now - requested);
+		long inputSent = this.inputSent;
+		if (inputSent != 0) {
+			inputLatency.record(now - inputSent);
+			this.inputSent = 0;
+		}
+		in.readUnsignedByte();
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			int x = in.readUnsignedShort();
+			int y = in.readUnsignedShort();
+			int w = in.readUnsignedShort();
+			int h = in.readUnsignedShort();
+			int encoding = in.readInt();
+			readRectangle(x, y, w, h, encoding);
+			rectangles++;
+		}
+		updates++;
+		if (updateInterval > 0) {
+			long wait = updateInterval - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requested);
+			if (wait > 0)
+				Thread.sleep(wait);
+		}
+		requestUpdate(true);
+	}
+
+	private void readRectangle(int x, int y, int w, int h, int encoding) throws IOException {
+		switch (encoding) {
+		case RAW:
+			skip(w * h * bytesPerPixel);
+			break;
+		case COPY_RECT:
+			skip(4);
+			break;
+		case RRE:
+			skip(in.readInt() * (bytesPerPixel + 8) + bytesPerPixel);
+			break;
+		case HEXTILE:
+			readHextile(w, h);
+			break;
+		case ZRLE:
+			skip(in.readInt());
+			break;
+		case CURSOR:
+			skip(w * h * bytesPerPixel + (w + 7) / 8 * h);
+			break;
+		case DESKTOP_SIZE:
+			width = w;
+			height = h;
+			break;
+		default:
+			throw new IOException("Unexpected encoding " + encoding + ".");
+		}
+	}
+
+	private void readHextile(int w, int h) throws IOException {
+		for (int ty = 0; ty < h; ty += 16) {
+			int th = Math.min(16, h - ty);
+			for (int tx = 0; tx < w; tx += 16) {
+				int tw = Math.min(16, w - tx);
+				int sub = in.readUnsignedByte();
+				if ((sub & HEXTILE_RAW) != 0) {
+					skip(tw * th * bytesPerPixel);
+					continue;
+				}
+				if ((sub & HEXTILE_BACKGROUND) != 0)
+					skip(bytesPerPixel);
+				if ((sub & HEXTILE_FOREGROUND) != 0)
+					skip(bytesPerPixel);
+				if ((sub & HEXTILE_ANY_SUBRECTS) != 0) {
+					int n = in.readUnsignedByte();
+					skip(n * ((sub & HEXTILE_SUBRECTS_COLOURED) != 0 ? bytesPerPixel + 2 : 2));
+				}
+			}
+		}
+	}
+
+	private String readString() throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > 65536)
+			throw new IOException("Unexpected string length " + len + ".");
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private void skip(int n) throws IOException {
+		while (n > 0) {
+			int r = Math.min(n, scratch.length);
+			in.readFully(scratch, 0, r);
+			n -= r;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the RDP server using a properties file that maps the address of
+ * the VNC client to a target in the format [&lt;address&gt;][:&lt;port&gt;].
+ * The special key <code>*</code> may be used for clients that do not match
+ * any other entry, otherwise they are refused. Credentials are always taken
+ * from the default target.
+ *
+ * <pre>
+ * 192.168.1.10=desktop1
+ * 192.168.1.11=desktop2:3390
+ * *=terminalserver
+ * </pre>
+ */
+public class MappedSessionResolver implements SessionResolver {
+	final static Logger LOG = LoggerFactory.getLogger(MappedSessionResolver.class);
+
+	private final File file;
+	private final Map<String, RDPTarget> targets = new HashMap<String, RDPTarget>();
+	private RDPTarget fallback;
+
+	public MappedSessionResolver(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public void init(RDPTarget defaultTarget) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		for (String key : p.stringPropertyNames()) {
+			RDPTarget spec;
+			try {
+				spec = RDPTarget.parse(p.getProperty(key).trim());
+			} catch (IllegalArgumentException iae) {
+				throw new IOException("Invalid target for " + key + " in " + file + ". " + iae.getMessage());
+			}
+			RDPTarget target = defaultTarget.withAddress(spec.getAddress(), spec.getPort());
+			if (key.equals("*"))
+				fallback = target;
+			else
+				targets.put(key, target);
+		}
+		LOG.info("Loaded " + p.size() + " gateway targets from " + file);
+	}
+
+	/**
+	 * Get all of the targets connections may be bridged to.
+	 *
+	 * @return targets
+	 */
+	public Collection<RDPTarget> getTargets() {
+		Collection<RDPTarget> all = new LinkedHashSet<RDPTarget>(targets.values());
+		if (fallback != null)
+			all.add(fallback);
+		return all;
+	}
+
+	@Override
+	public RDPTarget resolve(Socket socket) {
+		InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+		RDPTarget target = targets.get(remote.getAddress().getHostAddress());
+		return target == null ? fallback : target;
+	}
+}
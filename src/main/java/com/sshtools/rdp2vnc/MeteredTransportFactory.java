@@ -0,0 +1,176 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sshtools.rfbserver.RFBServerConfiguration;
+import com.sshtools.rfbserver.transport.RFBServerTransport;
+import com.sshtools.rfbserver.transport.RFBServerTransportFactory;
+
+/**
+ * Wraps another transport factory to keep a session's count of connected VNC
+ * clients. A client is counted when its transport is handed out, and no
+ * longer counted once the transport is stopped, its input ends or reading
+ * from or writing to it fails, whichever comes first. Stopping the factory
+ * stops counting all of the clients it handed out.
+ * <p>
+ * Bytes read from and written to each transport are added to the process wide
+ * {@link Metrics}, whichever transport is underneath.
+ */
+public class MeteredTransportFactory implements RFBServerTransportFactory {
+
+	private final RFBServerTransportFactory delegate;
+	private final SessionMetrics metrics;
+	private final Metrics totals = Metrics.get();
+	private final Set<MeteredTransport> transports = new LinkedHashSet<MeteredTransport>();
+
+	public MeteredTransportFactory(RFBServerTransportFactory delegate, SessionMetrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void init(RFBServerConfiguration configuration) throws IOException {
+		delegate.init(configuration);
+	}
+
+	@Override
+	public RFBServerTransport nextTransport() throws IOException {
+		RFBServerTransport transport = delegate.nextTransport();
+		MeteredTransport metered = new MeteredTransport(transport);
+		synchronized (transports) {
+			transports.add(metered);
+		}
+		metrics.clients.incrementAndGet();
+		return metered;
+	}
+
+	@Override
+	public void stop() {
+		try {
+			delegate.stop();
+		} finally {
+			List<MeteredTransport> toRemove;
+			synchronized (transports) {
+				toRemove = new ArrayList<MeteredTransport>(transports);
+			}
+			for (MeteredTransport transport : toRemove)
+				transport.disconnected();
+		}
+	}
+
+	private final class MeteredTransport implements RFBServerTransport {
+		private final RFBServerTransport transport;
+		private final AtomicBoolean disconnected = new AtomicBoolean();
+		private InputStream in;
+		private OutputStream out;
+
+		MeteredTransport(RFBServerTransport transport) {
+			this.transport = transport;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = new FilterInputStream(transport.getInputStream()) {
+					@Override
+					public int read() throws IOException {
+						try {
+							int r = super.read();
+							if (r == -1)
+								disconnected();
+							else
+								totals.bytesReceived.increment();
+							return r;
+						} catch (IOException ioe) {
+							disconnected();
+							throw ioe;
+						}
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						try {
+							int r = super.read(b, off, len);
+							if (r == -1)
+								disconnected();
+							else
+								totals.bytesReceived.add(r);
+							return r;
+						} catch (IOException ioe) {
+							disconnected();
+							throw ioe;
+						}
+					}
+				};
+			}
+			return in;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				out = new FilterOutputStream(transport.getOutputStream()) {
+					@Override
+					public void write(int b) throws IOException {
+						try {
+							out.write(b);
+						} catch (IOException ioe) {
+							disconnected();
+							throw ioe;
+						}
+						totals.bytesSent.increment();
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						try {
+							out.write(b, off, len);
+						} catch (IOException ioe) {
+							disconnected();
+							throw ioe;
+						}
+						totals.bytesSent.add(len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						try {
+							out.flush();
+						} catch (IOException ioe) {
+							disconnected();
+							throw ioe;
+						}
+					}
+				};
+			}
+			return out;
+		}
+
+		@Override
+		public void stop() {
+			try {
+				transport.stop();
+			} finally {
+				disconnected();
+			}
+		}
+
+		void disconnected() {
+			if (disconnected.compareAndSet(false, true)) {
+				synchronized (transports) {
+					transports.remove(this);
+				}
+				metrics.clients.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.sshtools.rdp2vnc;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide metrics. Holds the {@link SessionMetrics} of every running
+ * session, totals for sessions that have finished, and counters that are not
+ * tied to a session. Everything is registered as MBeans under the
+ * <code>com.sshtools.rdp2vnc</code> domain, and can be rendered in the
+ * Prometheus text format for {@link MetricsHttpServer}.
+ */
+public class Metrics implements MetricsMBean {
+	final static Logger LOG = LoggerFactory.getLogger(Metrics.class);
+	final static String DOMAIN = "com.sshtools.rdp2vnc";
+
+	private static Metrics instance;
+
+	private final List<SessionMetrics> sessions = new CopyOnWriteArrayList<SessionMetrics>();
+	private final StripedCounter sessionsStarted = new StripedCounter();
+	private final StripedCounter retiredDamageEvents = new StripedCounter();
+	private final StripedCounter retiredPixelsDamaged = new StripedCounter();
+	private final StripedCounter retiredDamageRectangles = new StripedCounter();
+	private final StripedCounter retiredClientUpdates = new StripedCounter();
+	private final StripedCounter retiredInputEvents = new StripedCounter();
+	private final StripedCounter retiredPointerShapes = new StripedCounter();
+	private final StripedCounter retiredPointerShapesUnchanged = new StripedCounter();
+	final StripedCounter bytesSent = new StripedCounter();
+	final StripedCounter bytesReceived = new StripedCounter();
+
+	/**
+	 * Get the process wide metrics, creating and registering them if
+	 * required.
+	 *
+	 * @return metrics
+	 */
+	public static synchronized Metrics get() {
+		if (instance == null) {
+			instance = new Metrics();
+			instance.registerMBean(instance, "type=Metrics");
+		}
+		return instance;
+	}
+
+	/**
+	 * Add the metrics of a session that has started.
+	 *
+	 * @param session session metrics
+	 */
+	public void register(SessionMetrics session) {
+		sessions.add(session);
+		sessionsStarted.increment();
+		registerMBean(session, "type=Session,name=" + ObjectName.quote(session.getName()));
+	}
+
+	/**
+	 * Remove the metrics of a session that has finished. Its counts are kept
+	 * in the process wide totals.
+	 *
+	 * @param session session metrics
+	 */
+	public void unregister(SessionMetrics session) {
+		if (!sessions.remove(session))
+			return;
+		retiredDamageEvents.add(session.getDamageEvents());
+		retiredPixelsDamaged.add(session.getPixelsDamaged());
+		retiredDamageRectangles.add(session.getDamageRectangles());
+		retiredClientUpdates.add(session.getClientUpdates());
+		retiredInputEvents.add(session.getInputEvents());
+		retiredPointerShapes.add(session.getPointerShapes());
+		retiredPointerShapesUnchanged.add(session.getPointerShapesUnchanged());
+		try {
+			ManagementFactory.getPlatformMBeanServer()
+					.unregisterMBean(new ObjectName(DOMAIN + ":type=Session,name=" + ObjectName.quote(session.getName())));
+		} catch (Exception e) {
+			LOG.debug("Failed to unregister session MBean.", e);
+		}
+	}
+
+	public List<SessionMetrics> getSessionMetrics() {
+		return sessions;
+	}
+
+	@Override
+	public int getSessions() {
+		return sessions.size();
+	}
+
+	@Override
+	public long getSessionsStarted() {
+		return sessionsStarted.get();
+	}
+
+	@Override
+	public long getDamageEvents() {
+		long n = retiredDamageEvents.get();
+		for (SessionMetrics s : sessions)
+			n += s.getDamageEvents();
+		return n;
+	}
+
+	@Override
+	public long getPixelsDamaged() {
+		long n = retiredPixelsDamaged.get();
+		for (SessionMetrics s : sessions)
+			n += s.getPixelsDamaged();
+		return n;
+	}
+
+	@Override
+	public long getDamageRectangles() {
+		long n = retiredDamageRectangles.get();
+		for (SessionMetrics s : sessions)
+			n += s.getDamageRectangles();
+		return n;
+	}
+
+	@Override
+	public long getClientUpdates() {
+		long n = retiredClientUpdates.get();
+		for (SessionMetrics s : sessions)
+			n += s.getClientUpdates();
+		return n;
+	}
+
+	@Override
+	public long getInputEvents() {
+		long n = retiredInputEvents.get();
+		for (SessionMetrics s : sessions)
+			n += s.getInputEvents();
+		return n;
+	}
+
+	@Override
+	public long getPointerShapes() {
+		long n = retiredPointerShapes.get();
+		for (SessionMetrics s : sessions)
+			n += s.getPointerShapes();
+		return n;
+	}
+
+	@Override
+	public long getPointerShapesUnchanged() {
+		long n = retiredPointerShapesUnchanged.get();
+		for (SessionMetrics s : sessions)
+			n += s.getPointerShapesUnchanged();
+		return n;
+	}
+
+	@Override
+	public int getClients() {
+		int n = 0;
+		for (SessionMetrics s : sessions)
+			n += s.getClients();
+		return n;
+	}
+
+	/**
+	 * Get the number of bytes written to VNC clients.
+	 */
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Get the number of bytes read from VNC clients.
+	 */
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Render all metrics in the Prometheus text exposition format.
+	 *
+	 * @return text
+	 */
+	public String toPrometheus() {
+		StringBuilder b = new StringBuilder();
+		gauge(b, "rdp2vnc_sessions", "Running RDP sessions.", getSessions());
+		counter(b, "rdp2vnc_sessions_started_total", "RDP sessions started.", getSessionsStarted());
+		gauge(b, "rdp2vnc_clients", "Connected VNC clients.", getClients());
+		counter(b, "rdp2vnc_bytes_sent_total", "Bytes written to VNC clients.", getBytesSent());
+		counter(b, "rdp2vnc_bytes_received_total", "Bytes read from VNC clients.", getBytesReceived());
+		counter(b, "rdp2vnc_damage_events_total", "Areas painted by RDP servers.", getDamageEvents());
+		counter(b, "rdp2vnc_pixels_damaged_total", "Pixels painted by RDP servers.", getPixelsDamaged());
+		counter(b, "rdp2vnc_damage_rectangles_total", "Damage rectangles passed to the RFB server.", getDamageRectangles());
+		counter(b, "rdp2vnc_client_updates_total", "Damage rectangles delivered through client queues.", getClientUpdates());
+		counter(b, "rdp2vnc_input_events_total", "Key and pointer events from VNC clients.", getInputEvents());
+		counter(b, "rdp2vnc_pointer_shapes_total", "Pointer shape changes passed to the RFB server.", getPointerShapes());
+		counter(b, "rdp2vnc_pointer_shapes_unchanged_total",
+				"Pointer shapes set by RDP servers that were the same as the current one.", getPointerShapesUnchanged());
+
+		List<SessionMetrics> sessions = this.sessions;
+		if (!sessions.isEmpty()) {
+			header(b, "rdp2vnc_session_clients", "Connected VNC clients per session.", "gauge");
+			for (SessionMetrics s : sessions)
+				sample(b, "rdp2vnc_session_clients", s, null, s.getClients());
+			header(b, "rdp2vnc_session_pixels_damaged_total", "Pixels painted per session.", "counter");
+			for (SessionMetrics s : sessions)
+				sample(b, "rdp2vnc_session_pixels_damaged_total", s, null, s.getPixelsDamaged());
+			header(b, "rdp2vnc_session_input_events_total", "Key and pointer events per session.", "counter");
+			for (SessionMetrics s : sessions)
+				sample(b, "rdp2vnc_session_input_events_total", s, null, s.getInputEvents());
+			header(b, "rdp2vnc_session_update_latency_seconds",
+					"Time from an area first being painted to its damage being passed to the RFB server.", "histogram");
+			for (SessionMetrics s : sessions)
+				histogram(b, "rdp2vnc_session_update_latency_seconds", s, null, s.getUpdateLatency());
+			boolean tracing = false;
+			for (SessionMetrics s : sessions) {
+				LatencyTracer tracer = s.getLatencyTracer();
+				if (tracer == null)
+					continue;
+				if (!tracing) {
+					header(b, "rdp2vnc_session_input_latency_seconds",
+							"Time from key or button input to the resulting update, by phase (with --trace-latency).",
+							"histogram");
+					tracing = true;
+				}
+				histogram(b, "rdp2vnc_session_input_latency_seconds", s, "phase=\"upstream\"", tracer.getUpstream());
+				histogram(b, "rdp2vnc_session_input_latency_seconds", s, "phase=\"coalesce\"", tracer.getCoalesce());
+				histogram(b, "rdp2vnc_session_input_latency_seconds", s, "phase=\"downstream\"", tracer.getDownstream());
+				histogram(b, "rdp2vnc_session_input_latency_seconds", s, "phase=\"total\"", tracer.getTotal());
+			}
+		}
+		return b.toString();
+	}
+
+	private void registerMBean(Object mbean, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(mbean, new ObjectName(DOMAIN + ":" + name));
+		} catch (Exception e) {
+			LOG.warn("Failed to register MBean " + name + ".", e);
+		}
+	}
+
+	private static void histogram(StringBuilder b, String name, SessionMetrics s, String label, Histogram h) {
+		String prefix = label == null ? "" : label + ",";
+		double[] bounds = h.getBoundsMs();
+		long[] counts = h.getCounts();
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			sample(b, name + "_bucket", s,
+					prefix + "le=\"" + (i < bounds.length ? Double.toString(bounds[i] / 1000d) : "+Inf") + "\"",
+					cumulative);
+		}
+		labels(b.append(name).append("_sum"), s, label).append(' ').append(h.getSumNanos() / 1000000000d)
+				.append('\n');
+		sample(b, name + "_count", s, label, cumulative);
+	}
+
+	private static void sample(StringBuilder b, String name, SessionMetrics s, String label, long value) {
+		labels(b.append(name), s, label).append(' ').append(value).append('\n');
+	}
+
+	private static StringBuilder labels(StringBuilder b, SessionMetrics s, String label) {
+		b.append("{session=\"").append(s.getName()).append('"');
+		if (label != null)
+			b.append(',').append(label);
+		return b.append('}');
+	}
+
+	private static void gauge(StringBuilder b, String name, String help, long value) {
+		header(b, name, help, "gauge");
+		b.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder b, String name, String help, long value) {
+		header(b, name, help, "counter");
+		b.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void header(StringBuilder b, String name, String help, String type) {
+		b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+}
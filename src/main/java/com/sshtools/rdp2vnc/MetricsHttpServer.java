@@ -0,0 +1,71 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal embedded HTTP server that serves {@link Metrics} in the
+ * Prometheus text format at <code>/metrics</code>.
+ */
+public class MetricsHttpServer {
+	final static Logger LOG = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+	private final Metrics metrics;
+	private HttpServer server;
+
+	public MetricsHttpServer(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Start serving.
+	 *
+	 * @param address address to listen on
+	 * @param port port to listen on
+	 * @throws IOException on error
+	 */
+	public void start(String address, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(address), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!"GET".equals(exchange.getRequestMethod())) {
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+					byte[] body = metrics.toPrometheus().getBytes("UTF-8");
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					try {
+						out.write(body);
+					} finally {
+						out.close();
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(SharedScheduler.getExecutor());
+		server.start();
+		LOG.info("Metrics available at http://" + address + ":" + port + "/metrics");
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+}
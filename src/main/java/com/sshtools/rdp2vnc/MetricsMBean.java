@@ -0,0 +1,31 @@
+package com.sshtools.rdp2vnc;
+
+/**
+ * Management interface for the process wide {@link Metrics}.
+ */
+public interface MetricsMBean {
+
+	int getSessions();
+
+	long getSessionsStarted();
+
+	long getDamageEvents();
+
+	long getPixelsDamaged();
+
+	long getDamageRectangles();
+
+	long getClientUpdates();
+
+	long getInputEvents();
+
+	long getPointerShapes();
+
+	long getPointerShapesUnchanged();
+
+	int getClients();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+}
@@ -0,0 +1,373 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sshtools.rfbserver.transport.RFBServerTransport;
+
+/**
+ * A single connection accepted by a {@link NioTransportFactory}. The channel
+ * is non-blocking. The input stream reads from it directly into the caller's
+ * array, and only if nothing is ready waits for the factory's selector thread
+ * to see that the channel is readable. Output is copied into pooled buffers
+ * and written by the selector thread. Each write asks the selector thread to
+ * send what has been written so far, so anything written while it is busy
+ * goes out together, and nothing waits for a buffer to fill or an explicit
+ * flush. Only the first such request before the selector thread gets to the
+ * transport wakes it. Writes only block if the viewer has fallen a long way
+ * behind.
+ * <p>
+ * When stopped, any output still queued is written before the channel is
+ * closed, unless it takes longer than {@link #CLOSE_TIMEOUT} milliseconds.
+ */
+public class NioTransport implements RFBServerTransport {
+	final static long CLOSE_TIMEOUT = 5000;
+
+	private final NioTransportFactory factory;
+	private final SocketChannel channel;
+	private final DirectBufferPool pool;
+	private final int maxOutbound;
+	private final Object inLock = new Object();
+	private final Object outLock = new Object();
+	private final LinkedList<ByteBuffer> outbound = new LinkedList<ByteBuffer>();
+	private final InputStream in;
+	private final OutputStream out;
+	private final AtomicBoolean updateRequested = new AtomicBoolean();
+	private SelectionKey key;
+	private ByteBuffer current;
+	private int outboundBytes;
+	private boolean flushPending;
+	private boolean readWanted;
+	private boolean eof;
+	private volatile boolean closing;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	NioTransport(NioTransportFactory factory, SocketChannel channel, DirectBufferPool pool, int maxOutbound) {
+		this.factory = factory;
+		this.channel = channel;
+		this.pool = pool;
+		this.maxOutbound = maxOutbound;
+		in = new InputStream() {
+			private final byte[] single = new byte[1];
+
+			@Override
+			public int read() throws IOException {
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return NioTransport.this.read(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				stop();
+			}
+		};
+		out = new OutputStream() {
+			private final byte[] single = new byte[1];
+
+			@Override
+			public void write(int b) throws IOException {
+				single[0] = (byte) b;
+				write(single, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				NioTransport.this.write(b, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				NioTransport.this.flush();
+			}
+
+			@Override
+			public void close() {
+				stop();
+			}
+		};
+	}
+
+	/**
+	 * Get the underlying socket. This may be used to find the remote
+	 * address, but must not be used for I/O.
+	 *
+	 * @return socket
+	 */
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	@Override
+	public void stop() {
+		synchronized (outLock) {
+			if (closed || closing)
+				return;
+			if (current != null && current.position() > 0)
+				queueCurrent();
+			if (failure == null && !outbound.isEmpty())
+				closing = true;
+		}
+		if (!closing) {
+			close();
+			return;
+		}
+		synchronized (inLock) {
+			inLock.notifyAll();
+		}
+		requestUpdate();
+		SharedScheduler.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	private void close() {
+		synchronized (outLock) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		synchronized (inLock) {
+			inLock.notifyAll();
+		}
+		synchronized (outLock) {
+			for (ByteBuffer buf : outbound)
+				pool.release(buf);
+			outbound.clear();
+			if (current != null) {
+				pool.release(current);
+				current = null;
+			}
+			outLock.notifyAll();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "NioTransport [" + channel.socket().getRemoteSocketAddress() + "]";
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	void fail(IOException ioe) {
+		failure = ioe;
+		close();
+	}
+
+	/*
+	 * Called on the selector thread. The reader is woken to read for itself
+	 */
+	void readable() {
+		synchronized (inLock) {
+			readWanted = false;
+			inLock.notifyAll();
+		}
+		updateInterest();
+	}
+
+	/*
+	 * Called on the selector thread
+	 */
+	void writable() throws IOException {
+		synchronized (outLock) {
+			while (!outbound.isEmpty()) {
+				ByteBuffer buf = outbound.getFirst();
+				channel.write(buf);
+				if (buf.hasRemaining())
+					break;
+				outbound.removeFirst();
+				outboundBytes -= buf.limit();
+				pool.release(buf);
+			}
+			outLock.notifyAll();
+		}
+		updateInterest();
+	}
+
+	/*
+	 * Called on the selector thread. Any change made after the request is
+	 * cleared asks again
+	 */
+	void updateInterest() {
+		updateRequested.set(false);
+		if (closed || !key.isValid())
+			return;
+		if (closing) {
+			boolean drained;
+			synchronized (outLock) {
+				drained = outbound.isEmpty();
+			}
+			if (drained) {
+				close();
+				return;
+			}
+		}
+		int ops = 0;
+		synchronized (inLock) {
+			if (readWanted)
+				ops |= SelectionKey.OP_READ;
+		}
+		synchronized (outLock) {
+			if (flushPending) {
+				flushPending = false;
+				if (current != null && current.position() > 0)
+					queueCurrent();
+			}
+			if (!outbound.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	private void requestUpdate() {
+		if (updateRequested.compareAndSet(false, true))
+			factory.requestUpdate(this);
+	}
+
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+		while (true) {
+			synchronized (inLock) {
+				if (eof || closed || closing) {
+					if (failure != null)
+						throw failure;
+					return -1;
+				}
+				readWanted = false;
+			}
+			int read;
+			try {
+				read = channel.read(dst);
+			} catch (IOException ioe) {
+				if (closed || closing)
+					return -1;
+				throw ioe;
+			}
+			if (read > 0)
+				return read;
+			synchronized (inLock) {
+				if (read < 0) {
+					eof = true;
+					return -1;
+				}
+				/* Nothing ready, wait for the selector to see some */
+				readWanted = true;
+			}
+			requestUpdate();
+			synchronized (inLock) {
+				try {
+					while (readWanted && !closed && !closing)
+						inLock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		boolean queued = false;
+		boolean request = false;
+		synchronized (outLock) {
+			while (len > 0) {
+				checkOpen();
+				if (current == null)
+					current = pool.acquire();
+				int n = Math.min(current.remaining(), len);
+				current.put(b, off, n);
+				off += n;
+				len -= n;
+				if (!current.hasRemaining()) {
+					queueCurrent();
+					queued = true;
+				}
+			}
+			/*
+			 * Have the selector thread send whatever has been written by the
+			 * time it gets to this transport
+			 */
+			if (!flushPending && (queued || (current != null && current.position() > 0))) {
+				flushPending = true;
+				request = true;
+			}
+		}
+		if (request || queued)
+			requestUpdate();
+		if (queued)
+			awaitDrain();
+	}
+
+	private void flush() throws IOException {
+		synchronized (outLock) {
+			checkOpen();
+			if (current == null || current.position() == 0)
+				return;
+			queueCurrent();
+		}
+		requestUpdate();
+		awaitDrain();
+	}
+
+	private void queueCurrent() {
+		current.flip();
+		outbound.addLast(current);
+		outboundBytes += current.limit();
+		current = null;
+	}
+
+	private void awaitDrain() throws IOException {
+		synchronized (outLock) {
+			try {
+				while (outboundBytes > maxOutbound && !closed)
+					outLock.wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			checkOpen();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed || closing) {
+			if (failure != null)
+				throw failure;
+			throw new IOException("Transport closed.");
+		}
+	}
+}
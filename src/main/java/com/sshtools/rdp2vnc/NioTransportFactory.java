@@ -0,0 +1,188 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfbserver.RFBServerConfiguration;
+import com.sshtools.rfbserver.transport.RFBServerTransport;
+import com.sshtools.rfbserver.transport.RFBServerTransportFactory;
+
+/**
+ * Transport factory that accepts connections and waits for all of them on a
+ * single selector thread using non-blocking channels, instead of blocking
+ * socket streams.
+ * <p>
+ * Each {@link NioTransport} input stream reads directly into the caller's
+ * array, only waiting for the selector when nothing is ready. Writes are
+ * copied into pooled direct buffers and written by the selector as the socket
+ * accepts them, so an RFB client thread only blocks if its viewer has fallen
+ * a long way behind. Each RFB client still has its own thread.
+ */
+public class NioTransportFactory implements RFBServerTransportFactory, Runnable {
+	final static Logger LOG = LoggerFactory.getLogger(NioTransportFactory.class);
+	final static int DEFAULT_BUFFER_SIZE = 16384;
+	final static int DEFAULT_MAX_POOLED = 1024;
+	final static int DEFAULT_MAX_OUTBOUND = 4 * 1024 * 1024;
+
+	private final DirectBufferPool pool;
+	private final BlockingQueue<NioTransport> accepted = new LinkedBlockingQueue<NioTransport>();
+	private final Queue<NioTransport> changes = new ConcurrentLinkedQueue<NioTransport>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private int maxOutbound = DEFAULT_MAX_OUTBOUND;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private volatile boolean running;
+
+	public NioTransportFactory() {
+		this(new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED));
+	}
+
+	public NioTransportFactory(DirectBufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Set how many bytes may be waiting to be written to a connection before
+	 * further writes block.
+	 *
+	 * @param maxOutbound maximum outbound bytes
+	 */
+	public void setMaxOutbound(int maxOutbound) {
+		this.maxOutbound = maxOutbound;
+	}
+
+	@Override
+	public void init(RFBServerConfiguration configuration) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(
+				new InetSocketAddress(InetAddress.getByName(configuration.getAddress()), configuration.getPort()),
+				configuration.getListenBacklog());
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		Thread t = new Thread(this, "RFBNioSelector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public RFBServerTransport nextTransport() throws IOException {
+		try {
+			while (true) {
+				NioTransport transport = accepted.poll(1, TimeUnit.SECONDS);
+				if (transport != null)
+					return transport;
+				if (!running)
+					throw new IOException("Transport stopped.");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				wakeupPending.set(false);
+				NioTransport changed;
+				while ((changed = changes.poll()) != null)
+					changed.updateInterest();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					NioTransport transport = (NioTransport) key.attachment();
+					try {
+						if (key.isReadable())
+							transport.readable();
+						if (key.isValid() && key.isWritable())
+							transport.writable();
+					} catch (IOException ioe) {
+						transport.fail(ioe);
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			if (running)
+				LOG.error("Selector failed.", ioe);
+		} finally {
+			running = false;
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof NioTransport)
+					((NioTransport) attachment).stop();
+			}
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Ask the selector thread to recalculate the operations a transport is
+	 * interested in. Interest may only be changed safely on the selector
+	 * thread.
+	 *
+	 * @param transport transport
+	 */
+	void requestUpdate(NioTransport transport) {
+		changes.offer(transport);
+		/* Waking is a system call, and one wakeup serves every queued change */
+		if (wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				NioTransport transport = new NioTransport(this, channel, pool, maxOutbound);
+				transport.setKey(channel.register(selector, 0, transport));
+				accepted.offer(transport);
+			} catch (IOException ioe) {
+				LOG.warn("Failed to set up accepted connection.", ioe);
+				channel.close();
+			}
+		}
+	}
+}
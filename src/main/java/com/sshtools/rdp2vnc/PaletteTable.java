@@ -0,0 +1,108 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.image.IndexColorModel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precomputed lookup tables for an {@link IndexColorModel}, used by
+ * {@link RDPDisplayDriver} when the RDP session is running with an indexed
+ * colour depth. Converting from a palette index to RGB is a single array
+ * lookup, and converting back is a single probe of an open addressed hash
+ * table, neither of which allocate.
+ */
+public class PaletteTable {
+	final static Logger LOG = LoggerFactory.getLogger(PaletteTable.class);
+
+	private final static int EMPTY = -1;
+
+	private final IndexColorModel cm;
+	private final int[] forward;
+	private final int mask;
+	private final int[] keys;
+	private final int[] values;
+	private final int hashMask;
+
+	public PaletteTable(IndexColorModel cm) {
+		this.cm = cm;
+
+		/*
+		 * Size the forward table the same way IndexColorModel masks pixels, so
+		 * out of range indexes wrap exactly as they would with getRGB()
+		 */
+		int bits = Math.min(cm.getPixelSize(), 16);
+		if (bits == 3)
+			bits = 4;
+		else if (bits > 4 && bits < 8)
+			bits = 8;
+		forward = new int[1 << bits];
+		mask = forward.length - 1;
+		for (int i = 0; i < forward.length; i++)
+			forward[i] = cm.getRGB(i);
+
+		int capacity = Integer.highestOneBit(Math.max(cm.getMapSize(), 1) * 4 - 1) << 1;
+		keys = new int[capacity];
+		values = new int[capacity];
+		hashMask = capacity - 1;
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = EMPTY;
+		for (int i = cm.getMapSize() - 1; i >= 0; i--) {
+			/* Iterate backwards so the lowest index wins for duplicate colours */
+			put(cm.getRGB(i) & 0xffffff, i);
+		}
+	}
+
+	public IndexColorModel getColorModel() {
+		return cm;
+	}
+
+	/**
+	 * Convert a palette index to an RGB colour.
+	 *
+	 * @param index palette index
+	 * @return RGB colour
+	 */
+	public int toRGB(int index) {
+		return forward[index & mask];
+	}
+
+	/**
+	 * Convert an RGB colour back to a palette index. Colours that are not in
+	 * the palette fall back to the nearest match according to the colour
+	 * model.
+	 *
+	 * @param rgb RGB colour
+	 * @return palette index
+	 */
+	public int toIndex(int rgb) {
+		int key = rgb & 0xffffff;
+		int slot = hash(key);
+		while (true) {
+			int k = keys[slot];
+			if (k == key)
+				return values[slot];
+			if (k == EMPTY)
+				break;
+			slot = (slot + 1) & hashMask;
+		}
+		int[] vals = { (key >> 16) & 0xFF, (key >> 8) & 0xFF, (key) & 0xFF };
+		int out = cm.getDataElement(vals, 0);
+		LOG.warn("Did not get correct colour value for color (" + Integer.toHexString(key) + "), got ("
+				+ Integer.toHexString(cm.getRGB(out)) + ") instead");
+		return out;
+	}
+
+	private void put(int key, int value) {
+		int slot = hash(key);
+		while (keys[slot] != EMPTY && keys[slot] != key)
+			slot = (slot + 1) & hashMask;
+		keys[slot] = key;
+		values[slot] = value;
+	}
+
+	private int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & hashMask;
+	}
+}
@@ -0,0 +1,149 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.image.BufferedImage;
+import java.nio.IntBuffer;
+
+/**
+ * Describes where the pixels for a rectangle of a {@link FrameBuffer} live in
+ * its backing array or buffer, so they can be read without creating a
+ * sub-image or copying them. Pixel <code>(px, py)</code> of the rectangle is
+ * at index <code>getOffset() + py * getScanlineStride() + px</code> of
+ * {@link #getData()}.
+ * <p>
+ * The data is an <code>int[]</code> for {@link BufferedImage#TYPE_INT_RGB}
+ * (where the top byte is undefined and must be masked off) or
+ * {@link BufferedImage#TYPE_INT_ARGB}, or a read only {@link IntBuffer} over
+ * the same layout when the frame buffer is kept off the heap. It is a
+ * <code>short[]</code> for {@link BufferedImage#TYPE_USHORT_565_RGB} or
+ * {@link BufferedImage#TYPE_USHORT_555_RGB}. See {@link #getType()} and
+ * {@link #isBuffer()}.
+ * <p>
+ * The array belongs to the frame buffer, so must not be written to. A region
+ * from {@link RDPDisplayDriver#getRegion(java.awt.Rectangle, PixelRegion)} may
+ * retain the frame buffer, in which case it must be given back with
+ * {@link #release()} once the pixels have been read. Instances may be reused
+ * by passing them back in, which releases them first.
+ */
+public class PixelRegion {
+
+	private Object data;
+	private int offset;
+	private int scanlineStride;
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+	private int type;
+	private FrameBuffer retained;
+
+	void set(Object data, int type, int scanlineStride, int x, int y, int width, int height) {
+		this.data = data;
+		this.type = type;
+		this.scanlineStride = scanlineStride;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		offset = y * scanlineStride + x;
+	}
+
+	void retain(FrameBuffer frameBuffer) {
+		release();
+		retained = frameBuffer;
+	}
+
+	/**
+	 * Give back the frame buffer the region points into, if it was retained,
+	 * so it may be reused. The backing array or buffer must not be
+	 * read afterwards. Does nothing if it has already been released.
+	 */
+	public void release() {
+		FrameBuffer fb = retained;
+		retained = null;
+		if (fb != null)
+			fb.release();
+	}
+
+	/**
+	 * Get the backing array or buffer, either an <code>int[]</code>, a
+	 * <code>short[]</code> or an {@link IntBuffer}.
+	 *
+	 * @return data
+	 */
+	public Object getData() {
+		return data;
+	}
+
+	/**
+	 * Get whether the pixels are in an {@link IntBuffer} rather than an
+	 * array, in which case use {@link #getBuffer()}.
+	 *
+	 * @return buffer
+	 */
+	public boolean isBuffer() {
+		return data instanceof IntBuffer;
+	}
+
+	/**
+	 * Get the read only buffer over the pixels of a frame buffer kept off the
+	 * heap. The buffer is not shared with other regions, so its position may
+	 * be changed.
+	 *
+	 * @return buffer
+	 * @throws ClassCastException if the pixels are in an array
+	 */
+	public IntBuffer getBuffer() {
+		return (IntBuffer) data;
+	}
+
+	/**
+	 * Get the index of the top left pixel of the rectangle in the backing
+	 * array.
+	 *
+	 * @return offset
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get the number of array elements between the start of one row and the
+	 * start of the next.
+	 *
+	 * @return scanline stride
+	 */
+	public int getScanlineStride() {
+		return scanlineStride;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the {@link BufferedImage} type, which describes the pixel layout.
+	 *
+	 * @return type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return "PixelRegion [x=" + x + ", y=" + y + ", width=" + width + ", height=" + height + ", offset=" + offset
+				+ ", scanlineStride=" + scanlineStride + ", type=" + type + "]";
+	}
+}
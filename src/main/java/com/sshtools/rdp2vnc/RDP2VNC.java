@@ -3,12 +3,11 @@ package com.sshtools.rdp2vnc;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.URL;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,21 +21,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sshtools.javardp.AbstractContext;
-import com.sshtools.javardp.ConnectionException;
-import com.sshtools.javardp.DefaultCredentialsProvider;
 import com.sshtools.javardp.IContext;
-import com.sshtools.javardp.RdesktopDisconnectException;
-import com.sshtools.javardp.RdesktopException;
 import com.sshtools.javardp.SecurityType;
 import com.sshtools.javardp.State;
-import com.sshtools.javardp.client.Rdesktop;
-import com.sshtools.javardp.graphics.RdesktopCanvas;
-import com.sshtools.javardp.io.DefaultIO;
 import com.sshtools.javardp.keymapping.KeyCode_FileBased;
 import com.sshtools.javardp.keymapping.KeyMapException;
-import com.sshtools.javardp.layers.Rdp;
-import com.sshtools.javardp.rdp5.VChannels;
-import com.sshtools.javardp.rdp5.cliprdr.ClipChannel;
 import com.sshtools.rfbserver.DisplayDriver;
 import com.sshtools.rfbserver.RFBClient;
 import com.sshtools.rfbserver.RFBServer;
@@ -52,7 +41,11 @@ import com.sshtools.rfbserver.transport.SocketRFBServerTransportFactory;
 
 public class RDP2VNC implements RFBServerConfiguration {
 	public enum Mode {
-		listen, reverse
+		listen, reverse, gateway
+	}
+
+	public enum Transport {
+		blocking, nio
 	}
 
 	private static final char OPT_HELP = '?';
@@ -83,11 +76,38 @@ public class RDP2VNC implements RFBServerConfiguration {
 	private static final char OPT_4 = '4';
 	private static final char OPT_BPP = 'B';
 	private static final char OPT_DEBUG_HEX = 'H';
+	private static final String OPT_DAMAGE_TILE_SIZE = "damage-tile-size";
+	private static final String OPT_DAMAGE_MAX_RECTANGLES = "damage-max-rectangles";
+	private static final String OPT_DAMAGE_INTERVAL = "damage-interval";
+	private static final String OPT_TILE_HASHING = "tile-hashing";
+	private static final String OPT_SNAPSHOTS = "snapshots";
+	private static final String OPT_NO_CLIENT_QUEUES = "no-client-queues";
+	private static final String OPT_GATEWAY_TARGETS = "gateway-targets";
+	private static final String OPT_GATEWAY_RESOLVER = "gateway-resolver";
+	private static final String OPT_POOL_SIZE = "pool-size";
+	private static final String OPT_POOL_PER_TARGET = "pool-per-target";
+	private static final String OPT_POOL_IDLE_TIME = "pool-idle-time";
+	private static final String OPT_TRANSPORT = "transport";
+	private static final String OPT_NATIVE_FORMAT = "native-format";
+	private static final String OPT_OFF_HEAP = "off-heap";
+	private static final String OPT_MOTION_INTERVAL = "motion-interval";
+	private static final String OPT_PRELOAD_KEYMAPS = "preload-keymaps";
+	private static final String OPT_METRICS_PORT = "metrics-port";
+	private static final String OPT_TRACE_LATENCY = "trace-latency";
+	private static final String OPT_RECORD = "record";
+	private static final String OPT_REPLAY = "replay";
+	private static final String OPT_REPLAY_FAST = "replay-fast";
+	private static final String OPT_RDP_CAPTURE = "rdp-capture";
+	private static final String OPT_RDP_REPLAY = "rdp-replay";
+	private static final long MAX_RETRY_TIME = TimeUnit.MINUTES.toMillis(1);
+	private static final long RECONNECT_SETTLE_TIME = 500;
+	private static final long RECONNECT_MAX_SETTLE_TIME = TimeUnit.SECONDS.toMillis(10);
 	static Logger LOG;
 	private CommandLine cli;
 	private DisplayDriver driver;
 	private String desktopName = "SSHTools Java RDP to VNC Proxy";
 	private Mode mode = Mode.listen;
+	private Transport transport = Transport.blocking;
 	private RFBServerTransportFactory serverTransportFactory;
 	private RDPDisplayDriver underlyingDriver;
 	private String address = "localhost";
@@ -100,6 +120,32 @@ public class RDP2VNC implements RFBServerConfiguration {
 	private int imageType = BufferedImage.TYPE_INT_ARGB;
 	private int width;
 	private int height;
+	private int damageTileSize;
+	private int damageMaxRectangles;
+	private int damageInterval;
+	private boolean tileHashing;
+	private boolean snapshots;
+	private boolean clientQueues;
+	private boolean nativeFormat;
+	private boolean offHeap;
+	private int motionInterval;
+	private int bpp;
+	private int metricsPort;
+	private boolean traceLatency;
+	private File recordFile;
+	private File replayFile;
+	private boolean replayFast;
+	private File rdpCaptureFile;
+	private File rdpReplayFile;
+	private boolean stayConnected;
+	private long retryTime;
+	private Rectangle viewportArea;
+	private int viewportMonitor = -1;
+	private RDPTarget target;
+	private SessionResolver resolver;
+	private int poolSize;
+	private int poolPerTarget;
+	private long poolIdleTime;
 
 	public RDP2VNC() {
 	}
@@ -110,7 +156,8 @@ public class RDP2VNC implements RFBServerConfiguration {
 	protected void addOptions(Options options) {
 		options.addOption(new Option(String.valueOf(OPT_HELP), "help", false, "Display help"));
 		options.addOption(new Option(String.valueOf(OPT_MODE), "mode", true,
-				"Connection mode. May either be 'listen' (the default), or 'reverse' for to connect to a VNC viewer running in listen mode"));
+				"Connection mode. May either be 'listen' (the default), 'reverse' for to connect to a VNC viewer running in listen mode, "
+						+ "or 'gateway' to give every VNC connection its own RDP session"));
 		options.addOption(new Option("e", "encodings", true, "Comma separated list of enabled encoding"));
 		options.addOption(new Option(String.valueOf(OPT_NO_COPY_RECT), "nocopyrect", false,
 				"Do not use the CopyRect driver for window movement (if supported)"));
@@ -141,6 +188,28 @@ public class RDP2VNC implements RFBServerConfiguration {
 		options.addOption(new Option(String.valueOf(OPT_PASSWORD), "password", true,
 				"The optional windows password to authenticate with. If not supplied, the user will be prompted."));
 		options.addOption(new Option(String.valueOf(OPT_KEYMAP), "keymap", true, "The keyboard map. Defaults to en-us."));
+		options.addOption(new Option(null, OPT_RECORD, true,
+				"Record the session's screen to a file, which may be played back later using --" + OPT_REPLAY + "."));
+		options.addOption(new Option(null, OPT_REPLAY, true,
+				"Instead of connecting to an RDP server, serve a recording made using --" + OPT_RECORD
+						+ " to VNC clients. The recording is played in real time unless --" + OPT_REPLAY_FAST
+						+ " is also supplied."));
+		options.addOption(new Option(null, OPT_REPLAY_FAST, false, "Play a recording as fast as possible, for example to measure the cost of serving it."));
+		options.addOption(new Option(null, OPT_RDP_CAPTURE, true,
+				"Capture the data sent by the RDP server to a file, which may be replayed using --" + OPT_RDP_REPLAY
+						+ ". Requires --no-ssl and --no-nla, and the server's encryption level to be Low or None."));
+		options.addOption(new Option(null, OPT_RDP_REPLAY, true,
+				"Instead of connecting to an RDP server, connect to a local stand-in server that replays a capture made "
+						+ "using --" + OPT_RDP_CAPTURE
+						+ " as fast as possible. Use the same RDP options as for the capture. Useful for benchmarking."));
+		options.addOption(new Option(null, OPT_TRACE_LATENCY, false,
+				"Trace the time from key and button input to the resulting screen update, split into phases. Results are available as metrics."));
+		options.addOption(new Option(null, OPT_METRICS_PORT, true,
+				"Serve metrics in the Prometheus text format at http://<listen-address>:<port>/metrics. Metrics are also "
+						+ "always available as MBeans in the com.sshtools.rdp2vnc domain."));
+		options.addOption(new Option(null, OPT_PRELOAD_KEYMAPS, true,
+				"Comma separated list of keyboard maps to load at startup. Keyboard maps are otherwise loaded the first time a "
+						+ "session uses them, and are shared by all sessions."));
 		options.addOption(new Option(String.valueOf(OPT_NO_SSL), "no-ssl", false,
 				"Disable SSL encryption between the RDP2VNC server and the RDP target (implies --no-nla)."));
 		options.addOption(new Option(String.valueOf(OPT_NO_NLA), "no-nla", false,
@@ -153,16 +222,65 @@ public class RDP2VNC implements RFBServerConfiguration {
 		options.addOption(new Option(String.valueOf(OPT_DIRECTORY), "directory", true,
 				"Directory to be placed in upon logon to the target RDP server."));
 		options.addOption(new Option(String.valueOf(OPT_STAY_CONNECTED), "stay-connected", false,
-				"Keep trying to connect to the RDP server if it cannot be contacted. See also --retry-time."));
+				"Keep trying to connect to the RDP server if it cannot be contacted, and reconnect if the connection is lost. "
+						+ "VNC clients stay connected and are shown the last frame while reconnecting. See also --retry-time."));
 		options.addOption(new Option(String.valueOf(OPT_RETRY_TIME), "retry-time", true,
-				"How often to try and reconnect to the RDP when a connection is lost or cannot be made."));
+				"How many seconds to wait before first trying to reconnect to the RDP server when a connection is lost or "
+						+ "cannot be made. The wait doubles after each failure, up to a minute. Defaults to 5."));
 		options.addOption(new Option(String.valueOf(OPT_TIGHT_AUTH), "tight-authentication", false,
 				"Enabled tight authentication (also presents capabilities). This is disabled by default for compatibility."));
 		options.addOption(new Option(String.valueOf(OPT_4), "4", false, "Use RDP version 4 only."));
-		options.addOption(new Option(String.valueOf(OPT_BPP), "bpp", false,
-				"Colour depth in bits per pixel for RDP connection. By default the VNC connection will be matched to this."));
+		options.addOption(new Option(String.valueOf(OPT_BPP), "bpp", true,
+				"Colour depth in bits per pixel for RDP connection, one of 15, 16, 24 or 32. Defaults to 16. By default the VNC "
+						+ "connection will be matched to this."));
 		options.addOption(new Option(String.valueOf(OPT_DEBUG_HEX), "debug-hex", false,
 				"Output hexdumps of packets that arrive and are sent."));
+		options.addOption(new Option(null, OPT_DAMAGE_TILE_SIZE, true,
+				"Size of the tiles damage from the RDP server is collected in before being sent to VNC clients. Defaults to 32."));
+		options.addOption(new Option(null, OPT_DAMAGE_MAX_RECTANGLES, true,
+				"Maximum number of rectangles collected damage is merged into for each update. Defaults to 64."));
+		options.addOption(new Option(null, OPT_DAMAGE_INTERVAL, true,
+				"How long in milliseconds to collect damage from the RDP server for before sending it to VNC clients. Use 0 to "
+						+ "send damage as soon as it happens. Defaults to 10."));
+		options.addOption(new Option(null, OPT_TILE_HASHING, false,
+				"Compare a hash of each damaged tile with its previous content, and do not send tiles that have not really changed."));
+		options.addOption(new Option(null, OPT_SNAPSHOTS, false,
+				"Serve VNC clients from a consistent snapshot of the desktop published each time damage is sent, so they never see "
+						+ "partially drawn updates. Uses two extra copies of the desktop, and requires a non-zero --damage-interval."));
+		options.addOption(new Option(null, OPT_NO_CLIENT_QUEUES, false,
+				"Deliver damage to all VNC clients viewing the same desktop from the same thread, rather than giving each "
+						+ "client its own queue. A slow client will then slow down all others."));
+		options.addOption(new Option(null, OPT_GATEWAY_TARGETS, true,
+				"In 'gateway' mode, a properties file mapping VNC client addresses to RDP targets in the format "
+						+ "[<address>][:port]. Use '*' as the key for the target for any other client."));
+		options.addOption(new Option(null, OPT_GATEWAY_RESOLVER, true,
+				"In 'gateway' mode, the class name of a custom " + SessionResolver.class.getName()
+						+ " implementation that chooses the RDP target for each VNC client."));
+		options.addOption(new Option(null, OPT_POOL_SIZE, true,
+				"In 'gateway' mode, keep up to this many RDP sessions connected and logged on ahead of time, so VNC clients "
+						+ "get a desktop straight away. Sessions are kept for the command line target or all those in "
+						+ "--" + OPT_GATEWAY_TARGETS + ", and for any other target that has recently been used. Defaults to 0 "
+						+ "(connect on demand)."));
+		options.addOption(new Option(null, OPT_POOL_PER_TARGET, true,
+				"Maximum number of sessions connected ahead of time for any one target. Defaults to 1."));
+		options.addOption(new Option(null, OPT_POOL_IDLE_TIME, true,
+				"Seconds a session connected ahead of time may wait before it is replaced, and a target that is not "
+						+ "configured is kept warm after it was last used. Defaults to 300."));
+		options.addOption(new Option(null, OPT_MOTION_INTERVAL, true,
+				"Only send the last pointer position in each period of this many milliseconds to the RDP server. Button and key "
+						+ "events are never delayed. Use 0 (the default) to send every pointer movement."));
+		options.addOption(new Option(null, OPT_NATIVE_FORMAT, false,
+				"Keep the desktop at the colour depth negotiated with the RDP server (16 or 15 bits per pixel) rather than "
+						+ "expanding it to 32 bits. Halves memory use, and VNC clients using the same pixel format need no "
+						+ "conversion. Other depths still use 32 bits."));
+		options.addOption(new Option(null, OPT_OFF_HEAP, false,
+				"Keep the desktop in direct memory outside of the Java heap. Reduces heap "
+						+ "size and garbage collection time with large desktops or many sessions, at some cost to drawing speed. "
+						+ "May not be used with --" + OPT_NATIVE_FORMAT + "."));
+		options.addOption(new Option(null, OPT_TRANSPORT, true,
+				"How VNC connections are accepted and read in 'listen' and 'gateway' modes. May either be 'blocking' (the "
+						+ "default) for plain sockets, or 'nio' to wait for all sockets on a single selector thread and queue "
+						+ "output in pooled direct buffers."));
 	}
 
 	protected IContext createRDPContext(final State state) {
@@ -214,50 +332,31 @@ public class RDP2VNC implements RFBServerConfiguration {
 	}
 
 	protected void start() throws Exception {
-		com.sshtools.javardp.Options options = createRDPOptions();
-		State state = new State(options);
-		IContext ctx = createRDPContext(state);
-		/*
-		 * Create a canvas. This actually draws to the RFB servers display
-		 * buffer and fires damage events when rectangles are painted. This
-		 * means we don't need to do any polling in the RFB server itself as the
-		 * problem is solved on the target RDP server itself.
-		 */
-		RdesktopCanvas canvas = new RdesktopCanvas(ctx, state, underlyingDriver);
-		VChannels channels = new VChannels(state);
-		ClipChannel clipChannel = new ClipChannel();
-		if (state.isRDP5()) {
-			if (options.isMapClipboard()) {
-				try {
-					channels.register(clipChannel);
-					underlyingDriver.setClipChannel(clipChannel);
-				} catch (RdesktopException rde) {
-					throw new IOException("Could not initialise clip channel.");
-				}
-			}
-			// DisplayControlChannel dcc = new DisplayControlChannel(ctx,
-			// options);
-			// try {
-			// channels.register(dcc);
-			// underlyingDriver.setDisplayControlChannel(dcc);
-			// } catch (RdesktopException rde) {
-			// throw new IOException("Could not initialise display control
-			// channel.");
-			// }
+		if (metricsPort > 0)
+			new MetricsHttpServer(Metrics.get()).start(listenAddress, metricsPort);
+		if (mode == Mode.gateway) {
+			RDPGateway gateway = new RDPGateway(this, resolver);
+			if (poolSize > 0)
+				gateway.setSessionPool(createSessionPool());
+			gateway.start();
+			return;
+		}
+		RDPTarget sessionTarget = target;
+		RDPTraceProxy traceProxy = null;
+		RDPTraceServer traceServer = null;
+		if (rdpCaptureFile != null) {
+			traceProxy = new RDPTraceProxy(target, rdpCaptureFile);
+			sessionTarget = traceProxy.start();
+		} else if (rdpReplayFile != null) {
+			traceServer = new RDPTraceServer(rdpReplayFile);
+			sessionTarget = traceServer.start(target);
 		}
-		// canvas.addFocusListener(clipChannel);
-		// Configure a keyboard layout
-		Rdp rdpLayer = new Rdp(ctx, state, channels);
-		LOG.info("Connecting to " + address + ":" + port + " ...");
+		RDPSession session = null;
+		SessionRecorder recorder = null;
+		long started = System.currentTimeMillis();
 		try {
-			DefaultCredentialsProvider dcp = new DefaultCredentialsProvider();
-			dcp.setUsername(this.cli.getOptionValue(OPT_USERNAME));
-			String passwordStr = this.cli.getOptionValue(OPT_PASSWORD);
-			dcp.setPassword(passwordStr == null || passwordStr.length() == 0 ? null : passwordStr.toCharArray());
-			dcp.setDomain(nonBlank(this.cli.getOptionValue(OPT_DOMAIN)));
-			rdpLayer.connect(new DefaultIO(InetAddress.getByName(address), port), dcp, options.getCommand(),
-					options.getDirectory());
-			LOG.info("Connection successful");
+			if (replayFile == null)
+				session = connect(sessionTarget);
 			/* Initialise the driver */
 			try {
 				driver.init();
@@ -272,30 +371,10 @@ public class RDP2VNC implements RFBServerConfiguration {
 					return c;
 				}
 			};
-			if (!cli.hasOption(OPT_TIGHT_AUTH)) {
-				if (vncPassword != null) {
-					server.getSecurityHandlers().add(new VNC() {
-						@Override
-						protected char[] getPassword() {
-							return vncPassword;
-						}
-					});
-				}
-			} else {
-				Tight tight = new Tight();
-				tight.getAuthenticationMethods().add(new None());
-				if (vncPassword != null) {
-					tight.getAuthenticationMethods().add(new VNC() {
-						@Override
-						protected char[] getPassword() {
-							return vncPassword;
-						}
-					});
-				}
-				server.getSecurityHandlers().add(tight);
-			}
-			server.init(serverTransportFactory);
-			new Thread("RFBServer") {
+			configureSecurity(server);
+			server.init(new MeteredTransportFactory(serverTransportFactory, underlyingDriver.getMetrics()));
+			SharedScheduler.getExecutor().execute(new Runnable() {
+				@Override
 				public void run() {
 					try {
 						server.start();
@@ -303,49 +382,217 @@ public class RDP2VNC implements RFBServerConfiguration {
 						LOG.error("RFB Server exited with failure.", e);
 					}
 				}
-			}.start();
-			/* Run RDP loop */
-			try {
-				rdpLayer.mainLoop();
-			} catch (RdesktopDisconnectException rde) {
-				LOG.error("Connection terminated: " + rde.getMessage(), rde);
-			}
-		} catch (ConnectionException e) {
-			throw new IOException(e.getMessage(), e);
-		} catch (SocketException s) {
-			throw s;
-		} catch (RdesktopException e) {
-			throw new IOException("Desktop protocol problem.", e);
+			});
+			if (recordFile != null) {
+				recorder = new SessionRecorder(underlyingDriver, recordFile);
+				recorder.start();
+				underlyingDriver.setRecorder(recorder);
+			}
+			if (session == null) {
+				/* Play the recording instead */
+				SessionPlayer player = new SessionPlayer(replayFile);
+				try {
+					player.play(underlyingDriver, !replayFast);
+				} finally {
+					player.close();
+				}
+				LOG.info("Finished playing " + replayFile + ".");
+			} else if (traceServer == null) {
+				/* Run RDP loop, reconnecting if the connection is lost */
+				while (true) {
+					try {
+						session.run();
+					} catch (IOException ioe) {
+						if (!stayConnected)
+							throw ioe;
+						LOG.warn("Lost connection to " + sessionTarget + ". " + ioe.getMessage());
+					}
+					if (!stayConnected)
+						break;
+					LOG.info("Reconnecting to " + sessionTarget + ", clients will be shown the last frame until done.");
+					underlyingDriver.suspendUpdates();
+					session = connect(sessionTarget);
+					underlyingDriver.resumeUpdatesWhenSettled(RECONNECT_SETTLE_TIME, RECONNECT_MAX_SETTLE_TIME);
+				}
+			} else {
+				try {
+					session.run();
+				} catch (IOException ioe) {
+					/* The stand-in server just closes the connection at the end */
+					if (!traceServer.isFinished())
+						throw ioe;
+				}
+				SessionMetrics metrics = underlyingDriver.getMetrics();
+				LOG.info(String.format(
+						"Processed RDP trace of %d bytes in %dms, %d areas painted (%d pixels), %d damage rectangles.",
+						traceServer.getServerBytes(), System.currentTimeMillis() - started, metrics.getDamageEvents(),
+						metrics.getPixelsDamaged(), metrics.getDamageRectangles()));
+			}
 		} finally {
+			if (traceProxy != null)
+				traceProxy.close();
+			if (traceServer != null)
+				traceServer.close();
+			if (recorder != null) {
+				underlyingDriver.setRecorder(null);
+				recorder.close();
+			}
 			if (server != null && server.isStarted())
 				server.stop();
 		}
 	}
 
+	/**
+	 * Create a session and connect it to the target. If --stay-connected was
+	 * given, keep trying until successful, waiting longer after each failure.
+	 * 
+	 * @param target target
+	 * @return connected session
+	 * @throws IOException on error
+	 * @throws InterruptedException if interrupted while waiting to retry
+	 */
+	protected RDPSession connect(RDPTarget target) throws IOException, InterruptedException {
+		long wait = retryTime;
+		while (true) {
+			RDPSession session = createSession(target, underlyingDriver);
+			try {
+				session.connect();
+				return session;
+			} catch (IOException ioe) {
+				if (!stayConnected)
+					throw ioe;
+				LOG.warn("Failed to connect to " + target + ", retrying in " + wait / 1000 + "s. " + ioe.getMessage());
+			}
+			Thread.sleep(wait);
+			wait = Math.max(retryTime, Math.min(wait * 2, MAX_RETRY_TIME));
+		}
+	}
+
+	/**
+	 * Create a new RDP session for a target, drawing to the given driver.
+	 * 
+	 * @param target target
+	 * @param driver driver
+	 * @return session
+	 * @throws IOException on error
+	 */
+	protected RDPSession createSession(RDPTarget target, RDPDisplayDriver driver) throws IOException {
+		return new RDPSession(target, createRDPOptions(), driver) {
+			@Override
+			protected IContext createContext(State state) {
+				return createRDPContext(state);
+			}
+		};
+	}
+
+	/**
+	 * Create a new display driver configured from the command line options.
+	 * 
+	 * @return driver
+	 */
+	protected RDPDisplayDriver createDisplayDriver() {
+		RDPDisplayDriver driver = new RDPDisplayDriver(width, height, getDesktopImageType());
+		driver.setDamageCoalescing(damageTileSize, damageMaxRectangles, damageInterval);
+		driver.setTileHashing(tileHashing);
+		driver.setClientQueues(clientQueues);
+		driver.setMotionCoalescing(motionInterval);
+		driver.setLatencyTracing(traceLatency);
+		if (offHeap)
+			driver.setOffHeap(true);
+		if (snapshots)
+			driver.setSnapshots(true);
+		return driver;
+	}
+
+	/**
+	 * Create the pool of sessions connected ahead of time for gateway mode,
+	 * configured from the command line options.
+	 * 
+	 * @return pool
+	 */
+	protected RDPSessionPool createSessionPool() {
+		RDPSessionPool pool = new RDPSessionPool(this);
+		pool.setSize(poolSize);
+		pool.setPerTarget(poolPerTarget);
+		pool.setIdleTime(poolIdleTime);
+		if (resolver instanceof MappedSessionResolver) {
+			for (RDPTarget t : ((MappedSessionResolver) resolver).getTargets())
+				pool.addTarget(t);
+		} else if (resolver instanceof FixedSessionResolver)
+			pool.addTarget(target);
+		return pool;
+	}
+
+	/**
+	 * Wrap the display driver in any other drivers (viewport, CopyRect)
+	 * configured from the command line options.
+	 * 
+	 * @param underlyingDriver driver
+	 * @return driver to pass to the RFB server
+	 */
+	protected DisplayDriver createDriverChain(RDPDisplayDriver underlyingDriver) {
+		DisplayDriver driver = underlyingDriver;
+		// Set view port
+		if (viewportArea != null || viewportMonitor != -1) {
+			WindowedDisplayDriver windowedDriver = new WindowedDisplayDriver(driver);
+			if (viewportArea != null)
+				windowedDriver.setArea(viewportArea);
+			else
+				windowedDriver.setMonitor(viewportMonitor);
+			driver = windowedDriver;
+		}
+		// Add the CopyRect driver
+		if (!cli.hasOption(OPT_NO_COPY_RECT)) {
+			driver = new CopyRectDisplayDriver(driver);
+		}
+		return driver;
+	}
+
+	/**
+	 * Add the VNC authentication methods configured from the command line
+	 * options to an RFB server.
+	 * 
+	 * @param server server
+	 */
+	protected void configureSecurity(RFBServer server) {
+		if (!cli.hasOption(OPT_TIGHT_AUTH)) {
+			if (vncPassword != null) {
+				server.getSecurityHandlers().add(new VNC() {
+					@Override
+					protected char[] getPassword() {
+						return vncPassword;
+					}
+				});
+			}
+		} else {
+			Tight tight = new Tight();
+			tight.getAuthenticationMethods().add(new None());
+			if (vncPassword != null) {
+				tight.getAuthenticationMethods().add(new VNC() {
+					@Override
+					protected char[] getPassword() {
+						return vncPassword;
+					}
+				});
+			}
+			server.getSecurityHandlers().add(tight);
+		}
+	}
+
 	protected KeyCode_FileBased createKeymap(com.sshtools.javardp.Options options) throws IOException {
 		// Keymap
-		KeyCode_FileBased keyMap = null;
 		String mapFile = cli.getOptionValue(OPT_KEYMAP);
 		if (mapFile == null || mapFile.length() == 0)
 			mapFile = "en-us";
-		String keyMapPath = "keymaps/";
-		URL resource = Rdesktop.class.getResource("/" + keyMapPath + mapFile);
-		InputStream istr = resource.openStream();
+		KeymapCache.Keymap keymap = KeymapCache.get().getKeymap(mapFile);
+		InputStream istr = keymap.openStream();
 		try {
-			if (istr == null) {
-				LOG.info("Loading keymap from filename");
-				keyMap = new KeyCode_FileBased(options, keyMapPath + mapFile);
-			} else {
-				LOG.info("Loading keymap from InputStream");
-				keyMap = new KeyCode_FileBased(options, resource, istr);
-			}
+			return new KeyCode_FileBased(options, keymap.getURL(), istr);
 		} catch (KeyMapException kme) {
 			throw new IOException("Keymap error.", kme);
 		} finally {
-			if (istr != null)
-				istr.close();
+			istr.close();
 		}
-		return keyMap;
 	}
 
 	protected com.sshtools.javardp.Options createRDPOptions() throws IOException {
@@ -354,11 +601,7 @@ public class RDP2VNC implements RFBServerConfiguration {
 		options.setWidth(width);
 		options.setHeight(height);
 		options.setPacketEncryption(!cli.hasOption(OPT_NO_PACKET_ENCRYPTION));
-		int bpp = 16;
-		if (cli.hasOption(OPT_BPP)) {
-			bpp = Integer.parseInt(cli.getOptionValue(OPT_BPP));
-		}
-		options.setBpp(bpp);
+		options.setBpp(getRDPBpp());
 		options.setRdp5(!cli.hasOption(OPT_4));
 		if (cli.hasOption(OPT_NO_SSL)) {
 			for (SecurityType t : SecurityType.supported()) {
@@ -418,11 +661,53 @@ public class RDP2VNC implements RFBServerConfiguration {
 				width = Integer.parseInt(rec[0]);
 				height = Integer.parseInt(rec[1]);
 			}
-			// Determine driver
-			underlyingDriver = new RDPDisplayDriver(width, height, BufferedImage.TYPE_INT_RGB);
+			// Damage options
+			damageTileSize = parseIntOption(OPT_DAMAGE_TILE_SIZE, 32);
+			damageMaxRectangles = parseIntOption(OPT_DAMAGE_MAX_RECTANGLES, 64);
+			damageInterval = parseIntOption(OPT_DAMAGE_INTERVAL, 10);
+			tileHashing = cli.hasOption(OPT_TILE_HASHING);
+			snapshots = cli.hasOption(OPT_SNAPSHOTS);
+			clientQueues = !cli.hasOption(OPT_NO_CLIENT_QUEUES);
+			bpp = parseIntOption(String.valueOf(OPT_BPP), 16);
+			if (bpp != 15 && bpp != 16 && bpp != 24 && bpp != 32)
+				throw new ParseException("Invalid value for --bpp, must be one of 15, 16, 24 or 32.");
+			nativeFormat = cli.hasOption(OPT_NATIVE_FORMAT);
+			offHeap = cli.hasOption(OPT_OFF_HEAP);
+			if (offHeap && nativeFormat)
+				throw new ParseException("--" + OPT_OFF_HEAP + " may not be used with --" + OPT_NATIVE_FORMAT + ".");
+			motionInterval = parseIntOption(OPT_MOTION_INTERVAL, 0);
+			metricsPort = parseIntOption(OPT_METRICS_PORT, 0);
+			traceLatency = cli.hasOption(OPT_TRACE_LATENCY);
+			if (cli.hasOption(OPT_RECORD))
+				recordFile = new File(cli.getOptionValue(OPT_RECORD));
+			if (cli.hasOption(OPT_REPLAY))
+				replayFile = new File(cli.getOptionValue(OPT_REPLAY));
+			replayFast = cli.hasOption(OPT_REPLAY_FAST);
+			if (cli.hasOption(OPT_RDP_CAPTURE)) {
+				if (!cli.hasOption(OPT_NO_SSL) || !cli.hasOption(OPT_NO_NLA))
+					throw new ParseException("--" + OPT_RDP_CAPTURE + " requires --no-ssl and --no-nla.");
+				rdpCaptureFile = new File(cli.getOptionValue(OPT_RDP_CAPTURE));
+			}
+			if (cli.hasOption(OPT_RDP_REPLAY))
+				rdpReplayFile = new File(cli.getOptionValue(OPT_RDP_REPLAY));
+			stayConnected = cli.hasOption(OPT_STAY_CONNECTED);
+			retryTime = TimeUnit.SECONDS.toMillis(parseIntOption(String.valueOf(OPT_RETRY_TIME), 5));
+			if (stayConnected && (rdpCaptureFile != null || rdpReplayFile != null))
+				throw new ParseException("--stay-connected may not be used with --" + OPT_RDP_CAPTURE + " or --"
+						+ OPT_RDP_REPLAY + ".");
+			if (replayFile != null && (rdpCaptureFile != null || rdpReplayFile != null))
+				throw new ParseException("--" + OPT_REPLAY + " may not be used with --" + OPT_RDP_CAPTURE + " or --"
+						+ OPT_RDP_REPLAY + ".");
+			if (rdpCaptureFile != null && rdpReplayFile != null)
+				throw new ParseException("--" + OPT_RDP_CAPTURE + " may not be used with --" + OPT_RDP_REPLAY + ".");
+			if (cli.hasOption(OPT_PRELOAD_KEYMAPS))
+				KeymapCache.get().preload(cli.getOptionValue(OPT_PRELOAD_KEYMAPS).split(","));
+			if (nativeFormat)
+				imageType = getDesktopImageType();
+			if (snapshots && damageInterval <= 0)
+				throw new ParseException("--" + OPT_SNAPSHOTS + " requires a non-zero --" + OPT_DAMAGE_INTERVAL + ".");
 			// Set view port
 			if (cli.hasOption(OPT_VIEWPORT)) {
-				WindowedDisplayDriver windowedDriver = new WindowedDisplayDriver(driver);
 				try {
 					String viewport = cli.getOptionValue(OPT_VIEWPORT);
 					if (viewport.indexOf(',') != -1) {
@@ -430,22 +715,19 @@ public class RDP2VNC implements RFBServerConfiguration {
 						if (rec.length != 4) {
 							throw new NumberFormatException();
 						}
-						windowedDriver.setArea(new Rectangle(Integer.parseInt(rec[0]), Integer.parseInt(rec[1]),
-								Integer.parseInt(rec[2]), Integer.parseInt(rec[3])));
+						viewportArea = new Rectangle(Integer.parseInt(rec[0]), Integer.parseInt(rec[1]), Integer.parseInt(rec[2]),
+								Integer.parseInt(rec[3]));
 					} else {
-						windowedDriver.setMonitor(Integer.parseInt(viewport));
+						viewportMonitor = Integer.parseInt(viewport);
 					}
 				} catch (NumberFormatException nfe) {
 					throw new ParseException(
 							"Viewport must either be a single monitor number or a string specifying the bounds of the viewport in the format <X>,<Y>,<Width>,<Height>");
 				}
-				driver = windowedDriver;
-			} else
-				driver = underlyingDriver;
-			// Add the CopyRect driver
-			if (!cli.hasOption(OPT_NO_COPY_RECT)) {
-				driver = new CopyRectDisplayDriver(driver);
 			}
+			// Determine driver
+			underlyingDriver = createDisplayDriver();
+			driver = createDriverChain(underlyingDriver);
 			// Listen mode
 			if (cli.hasOption(OPT_MODE)) {
 				try {
@@ -454,14 +736,39 @@ public class RDP2VNC implements RFBServerConfiguration {
 					throw new ParseException("Invalid mode. May be one of " + toCommaSeparatedString((Object[]) Mode.values()));
 				}
 			}
+			if (cli.hasOption(OPT_TRANSPORT)) {
+				try {
+					transport = Transport.valueOf(cli.getOptionValue(OPT_TRANSPORT));
+				} catch (Exception e) {
+					throw new ParseException(
+							"Invalid transport. May be one of " + toCommaSeparatedString((Object[]) Transport.values()));
+				}
+				if (transport == Transport.nio && mode == Mode.reverse)
+					throw new ParseException("The 'nio' transport may not be used in 'reverse' mode.");
+			}
+			poolSize = parseIntOption(OPT_POOL_SIZE, 0);
+			poolPerTarget = parseIntOption(OPT_POOL_PER_TARGET, 1);
+			poolIdleTime = TimeUnit.SECONDS.toMillis(parseIntOption(OPT_POOL_IDLE_TIME, 300));
+			if (mode != Mode.gateway
+					&& (cli.hasOption(OPT_POOL_SIZE) || cli.hasOption(OPT_POOL_PER_TARGET) || cli.hasOption(OPT_POOL_IDLE_TIME)))
+				throw new ParseException("--" + OPT_POOL_SIZE + ", --" + OPT_POOL_PER_TARGET + " and --" + OPT_POOL_IDLE_TIME
+						+ " may only be used in 'gateway' mode.");
+			if (mode == Mode.gateway && (recordFile != null || replayFile != null || rdpCaptureFile != null
+					|| rdpReplayFile != null))
+				throw new ParseException("--" + OPT_RECORD + ", --" + OPT_REPLAY + ", --" + OPT_RDP_CAPTURE + " and --"
+						+ OPT_RDP_REPLAY + " may not be used in 'gateway' mode.");
 			switch (mode) {
+			case gateway:
+				break;
 			case reverse:
 				serverTransportFactory = new SocketRFBServerTransportFactory();
 			default:
-				serverTransportFactory = new ServerSocketRFBServerTransportFactory();
+				serverTransportFactory = transport == Transport.nio ? new NioTransportFactory()
+						: new ServerSocketRFBServerTransportFactory();
 				break;
 			}
-			serverTransportFactory.init(this);
+			if (serverTransportFactory != null)
+				serverTransportFactory.init(this);
 			// Other options
 			if (cli.hasOption(OPT_DESKTOP_NAME)) {
 				desktopName = cli.getOptionValue(OPT_DESKTOP_NAME);
@@ -537,9 +844,22 @@ public class RDP2VNC implements RFBServerConfiguration {
 			}
 			if (address.equalsIgnoreCase("localhost"))
 				address = "127.0.0.1";
+			target = new RDPTarget(address, port);
+			target.setUsername(cli.getOptionValue(OPT_USERNAME));
+			String passwordStr = cli.getOptionValue(OPT_PASSWORD);
+			target.setPassword(passwordStr == null ? null : passwordStr.toCharArray());
+			target.setDomain(cli.getOptionValue(OPT_DOMAIN));
+			// Gateway
+			if (mode == Mode.gateway) {
+				resolver = createResolver();
+				resolver.init(target);
+			}
 			// Output some info about the options chosen
 			LOG.info("Driver: " + driver);
-			LOG.info("Transport: " + serverTransportFactory.getClass().getSimpleName());
+			if (serverTransportFactory != null)
+				LOG.info("Transport: " + serverTransportFactory.getClass().getSimpleName());
+			else
+				LOG.info("Resolver: " + resolver.getClass().getSimpleName());
 			return 0;
 		} catch (ParseException pe) {
 			System.err.println(getClass().getName() + ": " + pe.getMessage() + " Use -? or --help for more information.");
@@ -547,6 +867,31 @@ public class RDP2VNC implements RFBServerConfiguration {
 		}
 	}
 
+	private SessionResolver createResolver() throws ParseException {
+		if (cli.hasOption(OPT_GATEWAY_RESOLVER)) {
+			String className = cli.getOptionValue(OPT_GATEWAY_RESOLVER);
+			try {
+				return (SessionResolver) Class.forName(className).newInstance();
+			} catch (Exception e) {
+				throw new ParseException("Could not create resolver " + className + ". " + e.getMessage());
+			}
+		} else if (cli.hasOption(OPT_GATEWAY_TARGETS)) {
+			return new MappedSessionResolver(new File(cli.getOptionValue(OPT_GATEWAY_TARGETS)));
+		}
+		return new FixedSessionResolver();
+	}
+
+	private int parseIntOption(String name, int defaultValue) throws ParseException {
+		String val = cli.getOptionValue(name);
+		if (val == null || val.length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(val);
+		} catch (NumberFormatException nfe) {
+			throw new ParseException("Invalid value for --" + name + ", must be a number.");
+		}
+	}
+
 	private void printHelp(Options options) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(getClass().getSimpleName(), "A server to allow connections to RDP servers from VNC clients", options,
@@ -575,6 +920,10 @@ public class RDP2VNC implements RFBServerConfiguration {
 		return listenAddress;
 	}
 
+	public Transport getTransport() {
+		return transport;
+	}
+
 	public String getDesktopName() {
 		return desktopName;
 	}
@@ -590,6 +939,29 @@ public class RDP2VNC implements RFBServerConfiguration {
 		return bui.toString();
 	}
 
+	private int getRDPBpp() {
+		return bpp;
+	}
+
+	/**
+	 * Get the image type to use for the desktop. This is normally 32 bit RGB,
+	 * but with --native-format 16 and 15 bit sessions are stored at that
+	 * depth.
+	 * 
+	 * @return image type
+	 */
+	private int getDesktopImageType() {
+		if (nativeFormat) {
+			switch (getRDPBpp()) {
+			case 16:
+				return BufferedImage.TYPE_USHORT_565_RGB;
+			case 15:
+				return BufferedImage.TYPE_USHORT_555_RGB;
+			}
+		}
+		return BufferedImage.TYPE_INT_RGB;
+	}
+
 	private static String nonBlank(String str) {
 		return str == null ? "" : str;
 	}
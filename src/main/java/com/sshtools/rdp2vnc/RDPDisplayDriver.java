@@ -10,18 +10,17 @@ import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.util.ArrayList;
-import java.util.EventListener;
 import java.util.List;
-
-import javax.swing.event.EventListenerList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,17 +45,83 @@ import com.sshtools.rfbserver.drivers.AbstractDisplayDriver;
  */
 public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 	final static Logger LOG = LoggerFactory.getLogger(RDPDisplayDriver.class);
-	private IndexColorModel cm = null;
-	private BufferedImage bi = null;
-	private EventListenerList uiListeners = new EventListenerList();
+	final static int DEFAULT_TILE_SIZE = 32;
+	final static int DEFAULT_MAX_RECTANGLES = 64;
+
+	/* Shown when the server hides the pointer, never modified */
+	private final static BufferedImage BLANK_CURSOR = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+
+	/*
+	 * RFB uses X11 key symbols, where all the non-character keys we translate
+	 * are in the 0xff00 page. These tables are indexed by the low byte.
+	 */
+	private final static int SPECIAL_KEY_PAGE = 0xff00;
+	private final static int[] SPECIAL_KEYCODES = new int[256];
+	private final static int[] SPECIAL_LOCATIONS = new int[256];
+	private final static int[] SPECIAL_MODIFIERS = new int[256];
+
+	static {
+		special(RFBConstants.RFBKEY_SHIFT_LEFT, KeyEvent.VK_SHIFT, KeyEvent.KEY_LOCATION_LEFT, KeyEvent.SHIFT_DOWN_MASK);
+		special(RFBConstants.RFBKEY_SHIFT_RIGHT, KeyEvent.VK_SHIFT, KeyEvent.KEY_LOCATION_RIGHT, KeyEvent.SHIFT_DOWN_MASK);
+		special(RFBConstants.RFBKEY_CTRL_LEFT, KeyEvent.VK_CONTROL, KeyEvent.KEY_LOCATION_LEFT, KeyEvent.CTRL_DOWN_MASK);
+		special(RFBConstants.RFBKEY_CTRL_RIGHT, KeyEvent.VK_CONTROL, KeyEvent.KEY_LOCATION_RIGHT, KeyEvent.CTRL_DOWN_MASK);
+		special(RFBConstants.RFBKEY_META_LEFT, KeyEvent.VK_META, KeyEvent.KEY_LOCATION_LEFT, KeyEvent.META_DOWN_MASK);
+		special(RFBConstants.RFBKEY_META_RIGHT, KeyEvent.VK_META, KeyEvent.KEY_LOCATION_RIGHT, KeyEvent.META_DOWN_MASK);
+		special(RFBConstants.RFBKEY_ALT_LEFT, KeyEvent.VK_ALT, KeyEvent.KEY_LOCATION_LEFT, KeyEvent.ALT_DOWN_MASK);
+		special(RFBConstants.RFBKEY_ALT_RIGHT, KeyEvent.VK_ALT_GRAPH, KeyEvent.KEY_LOCATION_RIGHT, KeyEvent.ALT_GRAPH_DOWN_MASK);
+		for (int i = 0; i < 12; i++)
+			special(RFBConstants.RFBKEY_F1 + i, KeyEvent.VK_F1 + i);
+		special(RFBConstants.RFBKEY_BACKSPACE, KeyEvent.VK_BACK_SPACE);
+		special(RFBConstants.RFBKEY_TAB, KeyEvent.VK_TAB);
+		special(RFBConstants.RFBKEY_ENTER, KeyEvent.VK_ENTER);
+		special(RFBConstants.RFBKEY_ESCAPE, KeyEvent.VK_ESCAPE);
+		special(RFBConstants.RFBKEY_INSERT, KeyEvent.VK_INSERT);
+		special(RFBConstants.RFBKEY_DELETE, KeyEvent.VK_DELETE);
+		special(RFBConstants.RFBKEY_HOME, KeyEvent.VK_HOME);
+		special(RFBConstants.RFBKEY_END, KeyEvent.VK_END);
+		special(RFBConstants.RFBKEY_PGUP, KeyEvent.VK_PAGE_UP);
+		special(RFBConstants.RFBKEY_PGDN, KeyEvent.VK_PAGE_DOWN);
+		special(RFBConstants.RFBKEY_LEFT, KeyEvent.VK_LEFT);
+		special(RFBConstants.RFBKEY_RIGHT, KeyEvent.VK_RIGHT);
+		special(RFBConstants.RFBKEY_UP, KeyEvent.VK_UP);
+		special(RFBConstants.RFBKEY_DOWN, KeyEvent.VK_DOWN);
+	}
+	private PaletteTable palette;
+	private volatile FrameBuffer frameBuffer;
+	private final AWTInputSink awtInput;
+	private volatile InputSink input;
 	private ClipChannel clipChannel;
 	private DisplayControlChannel displayControlChannel;
 	private RdesktopCanvas canvas;
 	private PointerShape pointer;
+	private long pointerHash;
+	/* Pixels of the current pointer shape, and space to read the next one into */
+	private int[] pointerPixels = new int[0];
+	private int[] cursorPixels = new int[0];
 	private Clipboard clipboard;
 	private int keyMods;
 	private Component fakeComponent;
 	private int buttonMask;
+	private DamageAccumulator damage;
+	private long damageInterval;
+	private TileHashes tileHashes;
+	private SnapshotBuffer snapshots;
+	private final SessionMetrics metrics;
+	private boolean clientQueues;
+	private volatile SessionRecorder recorder;
+	private volatile FrameBuffer frozen;
+	private volatile long lastPaint;
+	/* Flushes run on the shared scheduler, so may otherwise overlap */
+	private final Object flushLock = new Object();
+	/* Set while the RDP thread is part way through an order */
+	private volatile boolean drawing;
+	/* Orders completed, only written by the RDP thread */
+	private volatile int paints;
+	/* A flush could not publish while an order was drawn, so the RDP thread should */
+	private volatile boolean flushDue;
+	/* The snapshot the last image from grabArea on each thread shares pixels with */
+	private final ThreadLocal<FrameBuffer> grabbed = new ThreadLocal<FrameBuffer>();
+	private final Map<DamageListener, ClientDamageQueue> queues = new ConcurrentHashMap<DamageListener, ClientDamageQueue>();
 	private static int seq = 0;
 
 	public RDPDisplayDriver(int width, int height, int type) {
@@ -67,9 +132,13 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 	public RDPDisplayDriver(int width, int height, int type, IndexColorModel cm) {
 		fakeComponent = new Component() {
 		};
-		bi = new BufferedImage(width, height, type);
-		this.cm = cm;
-		clipboard = new Clipboard("RDPClient" + (++seq));
+		awtInput = new AWTInputSink(fakeComponent);
+		input = awtInput;
+		frameBuffer = FrameBuffer.create(width, height, type);
+		setIndexColorModel(cm);
+		int id = ++seq;
+		clipboard = new Clipboard("RDPClient" + id);
+		metrics = new SessionMetrics("session-" + id);
 		pointer = new PointerShape();
 		clearCursor();
 	}
@@ -82,6 +151,292 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 		this.displayControlChannel = displayControlChannel;
 	}
 
+	/**
+	 * Configure how damage is coalesced before being passed on to the RFB
+	 * server. When enabled, damage is collected as dirty tiles for up to
+	 * <code>interval</code> milliseconds after the first repaint, and then
+	 * delivered as at most <code>maxRectangles</code> merged rectangles.
+	 * 
+	 * @param tileSize size of tiles damage is tracked in
+	 * @param maxRectangles maximum number of rectangles per update
+	 * @param interval time to collect damage for in milliseconds, or zero to
+	 *            disable coalescing and deliver damage immediately
+	 */
+	public void setDamageCoalescing(int tileSize, int maxRectangles, long interval) {
+		if (interval > 0) {
+			damage = new DamageAccumulator(getDisplayWidth(), getDisplayHeight(), tileSize, maxRectangles);
+		} else {
+			damage = null;
+			snapshots = null;
+		}
+		damageInterval = interval;
+		if (tileHashes != null)
+			setTileHashing(true);
+	}
+
+	public DamageAccumulator getDamageAccumulator() {
+		return damage;
+	}
+
+	/**
+	 * Enable or disable tile hashing. When enabled, a hash of each damaged
+	 * tile is compared with its hash when it was last damaged, and the damage
+	 * is dropped if the content is the same. Tiles are the same size as those
+	 * used for damage coalescing, or 32x32 if coalescing is disabled.
+	 * 
+	 * @param tileHashing tile hashing
+	 */
+	public void setTileHashing(boolean tileHashing) {
+		if (tileHashing) {
+			DamageAccumulator damage = this.damage;
+			tileHashes = new TileHashes(getDisplayWidth(), getDisplayHeight(),
+					damage == null ? DEFAULT_TILE_SIZE : damage.getTileSize());
+		} else
+			tileHashes = null;
+	}
+
+	/**
+	 * Keep the frame buffer in direct memory outside of the Java heap, so
+	 * large desktops do not add to garbage collection time. Only 32 bit
+	 * desktops can be kept off the heap, and snapshots are kept wherever the
+	 * frame buffer is. Should be set before the driver is initialised.
+	 * 
+	 * @param offHeap off heap
+	 */
+	public void setOffHeap(boolean offHeap) {
+		int width = frameBuffer.getWidth();
+		int height = frameBuffer.getHeight();
+		FrameBuffer fb = offHeap ? FrameBuffer.createDirect(width, height, frameBuffer.getType())
+				: FrameBuffer.create(width, height, frameBuffer.getType());
+		fb.copyArea(frameBuffer, 0, 0, width, height);
+		FrameBuffer old = frameBuffer;
+		frameBuffer = fb;
+		old.dispose();
+	}
+
+	/**
+	 * Enable or disable snapshots. When enabled, RFB clients read from a
+	 * consistent copy of the frame buffer that is published each time damage
+	 * is flushed, rather than the frame buffer the RDP server is drawing to.
+	 * Requires damage coalescing to be enabled.
+	 * 
+	 * @param snapshots snapshots
+	 * @see SnapshotBuffer
+	 */
+	public void setSnapshots(boolean snapshots) {
+		if (snapshots) {
+			if (damage == null)
+				throw new IllegalStateException("Snapshots require damage coalescing to be enabled.");
+			this.snapshots = new SnapshotBuffer(frameBuffer);
+		} else
+			this.snapshots = null;
+	}
+
+	/**
+	 * Get the tile hashes, which may be used to see how much damage has been
+	 * dropped. Will be <code>null</code> if tile hashing is not enabled.
+	 * 
+	 * @return tile hashes
+	 */
+	public TileHashes getTileHashes() {
+		return tileHashes;
+	}
+
+	/**
+	 * Enable or disable per-client damage queues. When enabled, each damage
+	 * listener added after this call (normally one per RFB client) gets its
+	 * own pending damage region and is delivered to from the shared worker
+	 * pool, so a slow client only accumulates merged damage and never holds
+	 * up the RDP thread or other clients.
+	 * 
+	 * @param clientQueues client queues
+	 * @see ClientDamageQueue
+	 */
+	public void setClientQueues(boolean clientQueues) {
+		this.clientQueues = clientQueues;
+	}
+
+	public boolean isClientQueues() {
+		return clientQueues;
+	}
+
+	/**
+	 * Trace the latency from key and button input to the resulting update
+	 * reaching a client. The results are added to this session's
+	 * {@link SessionMetrics}.
+	 * 
+	 * @param latencyTracing trace latency
+	 */
+	public void setLatencyTracing(boolean latencyTracing) {
+		metrics.latencyTracer = latencyTracing ? new LatencyTracer() : null;
+	}
+
+	public boolean isLatencyTracing() {
+		return metrics.latencyTracer != null;
+	}
+
+	/**
+	 * Stop sending updates to clients, for example while reconnecting to the
+	 * RDP server. Clients are shown a copy of the current frame until
+	 * {@link #resumeUpdates()}, while the frame buffer itself carries on being
+	 * drawn to. Input listeners added by the old RDP session are removed.
+	 */
+	public void suspendUpdates() {
+		if (frozen != null)
+			return;
+		FrameBuffer frameBuffer = retainFrameBuffer();
+		if (frameBuffer == null)
+			return;
+		try {
+			lastPaint = 0;
+			frozen = frameBuffer.resize(frameBuffer.getWidth(), frameBuffer.getHeight());
+		} finally {
+			frameBuffer.release();
+		}
+		awtInput.removeAllListeners();
+	}
+
+	public boolean isUpdatesSuspended() {
+		return frozen != null;
+	}
+
+	/**
+	 * Start sending updates to clients again, sending only the tiles that
+	 * differ from the frame they were shown while updates were suspended.
+	 */
+	public void resumeUpdates() {
+		FrameBuffer frozen = this.frozen;
+		if (frozen == null)
+			return;
+		this.frozen = null;
+		FrameBuffer frameBuffer = retainFrameBuffer();
+		try {
+			if (frameBuffer != null)
+				resumeUpdates(frozen, frameBuffer);
+		} finally {
+			if (frameBuffer != null)
+				frameBuffer.release();
+			frozen.dispose();
+		}
+	}
+
+	private void resumeUpdates(FrameBuffer frozen, FrameBuffer frameBuffer) {
+		if (frozen.getWidth() != frameBuffer.getWidth() || frozen.getHeight() != frameBuffer.getHeight()) {
+			LOG.info("Resumed updates, size changed while suspended.");
+			repaint();
+			return;
+		}
+		DamageAccumulator damage = this.damage;
+		int tileSize = damage == null ? DEFAULT_TILE_SIZE : damage.getTileSize();
+		int width = frameBuffer.getWidth();
+		int height = frameBuffer.getHeight();
+		DamageAccumulator changed = new DamageAccumulator(width, height, tileSize,
+				damage == null ? DEFAULT_MAX_RECTANGLES : damage.getMaxRectangles());
+		for (int y = 0; y < height; y += tileSize) {
+			int th = Math.min(tileSize, height - y);
+			for (int x = 0; x < width; x += tileSize) {
+				int tw = Math.min(tileSize, width - x);
+				if (frozen.hash(x, y, tw, th) != frameBuffer.hash(x, y, tw, th))
+					changed.add(x, y, tw, th);
+			}
+		}
+		List<Rectangle> rects = changed.drain();
+		LOG.info("Resumed updates, " + rects.size() + " areas changed while suspended.");
+		SessionRecorder recorder = this.recorder;
+		for (Rectangle r : rects) {
+			if (recorder != null)
+				recorder.damage(r.x, r.y, r.width, r.height);
+			if (damage == null) {
+				metrics.damageRectangles.increment();
+				fireDamageEvent("Repaint", r, -1);
+			} else if (damage.add(r.x, r.y, r.width, r.height))
+				scheduleDamageFlush(damage);
+		}
+	}
+
+	/**
+	 * Resume updates once the RDP server has finished redrawing, that is when
+	 * nothing has been painted for a while, or a maximum time has passed.
+	 * 
+	 * @param quietMs time without painting in milliseconds
+	 * @param maxMs maximum time to wait in milliseconds
+	 */
+	public void resumeUpdatesWhenSettled(long quietMs, long maxMs) {
+		final long quiet = TimeUnit.MILLISECONDS.toNanos(quietMs);
+		final long max = TimeUnit.MILLISECONDS.toNanos(maxMs);
+		final long since = System.nanoTime();
+		final ScheduledFuture<?>[] task = new ScheduledFuture<?>[1];
+		synchronized (task) {
+			task[0] = SharedScheduler.get().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					long now = System.nanoTime();
+					long lastPaint = RDPDisplayDriver.this.lastPaint;
+					if (frozen != null && (lastPaint == 0 || now - lastPaint < quiet) && now - since < max)
+						return;
+					try {
+						resumeUpdates();
+					} finally {
+						synchronized (task) {
+							task[0].cancel(false);
+						}
+					}
+				}
+			}, 100, 100, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Set the recorder to tell about painted areas, pointer shape changes and
+	 * resizes. The recorder should already be started.
+	 * 
+	 * @param recorder recorder, or <code>null</code> to stop telling it
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		this.recorder = recorder;
+		if (recorder != null)
+			recorder.cursor(pointer.getHotX(), pointer.getHotY(), pointer.getData());
+	}
+
+	public SessionRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Get the counters for this session.
+	 * 
+	 * @return metrics
+	 */
+	public SessionMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public void addDamageListener(DamageListener listener) {
+		if (clientQueues) {
+			DamageAccumulator damage = this.damage;
+			ClientDamageQueue queue = new ClientDamageQueue(this, listener,
+					new DamageAccumulator(getDisplayWidth(), getDisplayHeight(),
+							damage == null ? DEFAULT_TILE_SIZE : damage.getTileSize(),
+							damage == null ? DEFAULT_MAX_RECTANGLES : damage.getMaxRectangles()),
+					SharedScheduler.getExecutor(), metrics);
+			queues.put(listener, queue);
+			super.addDamageListener(queue);
+		} else
+			super.addDamageListener(listener);
+	}
+
+	@Override
+	public void removeDamageListener(DamageListener listener) {
+		ClientDamageQueue queue = queues.remove(listener);
+		if (queue == null)
+			super.removeDamageListener(listener);
+		else {
+			queue.close();
+			super.removeDamageListener(queue);
+		}
+	}
+
 	public ClipChannel getClipChannel() {
 		return clipChannel;
 	}
@@ -92,27 +447,29 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 
 	@Override
 	public int getDisplayWidth() {
-		return bi.getWidth();
+		return frameBuffer.getWidth();
 	}
 
 	@Override
 	public int getDisplayHeight() {
-		return bi.getHeight();
+		return frameBuffer.getHeight();
 	}
 
 	@Override
 	public BufferedImage getBufferedImage() {
-		return bi;
+		startDrawing();
+		return frameBuffer.getImage();
 	}
 
 	@Override
 	public Graphics getDisplayGraphics() {
-		return bi.getGraphics();
+		startDrawing();
+		return frameBuffer.getImage().getGraphics();
 	}
 
 	@Override
 	public BufferedImage getSubimage(int x, int y, int width, int height) {
-		return bi.getSubimage(x, y, width, height);
+		return frameBuffer.grabImage(x, y, width, height);
 	}
 
 	/**
@@ -124,66 +481,76 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 	 */
 	@Override
 	public int checkColor(int color) {
-		if (cm != null)
-			return cm.getRGB(color);
+		PaletteTable palette = this.palette;
+		if (palette != null)
+			return palette.toRGB(color);
 		return color;
 	}
 
 	@Override
 	public void setIndexColorModel(IndexColorModel cm) {
-		this.cm = cm;
+		palette = cm == null ? null : new PaletteTable(cm);
 	}
 
 	@Override
 	public void setRGB(int x, int y, int color) {
-		// if(x >= bi.getWidth() || x < 0 || y >= bi.getHeight() || y < 0)
-		// return;
-		if (cm != null)
-			color = cm.getRGB(color);
-		bi.setRGB(x, y, color);
+		PaletteTable palette = this.palette;
+		if (palette != null)
+			color = palette.toRGB(color);
+		startDrawing();
+		frameBuffer.setRGB(x, y, color);
 	}
 
 	@Override
 	public void setRGBNoConversion(int x, int y, int cx, int cy, int[] data, int offset, int w) {
-		bi.setRGB(x, y, cx, cy, data, offset, w);
+		startDrawing();
+		frameBuffer.setRGB(x, y, cx, cy, data, offset, w);
 	}
 
 	@Override
 	public void setRGB(int x, int y, int cx, int cy, int[] data, int offset, int w) {
-		if (cm != null && data != null && data.length > 0) {
-			for (int i = 0; i < data.length; i++)
-				data[i] = cm.getRGB(data[i]);
-		}
-		bi.setRGB(x, y, cx, cy, data, offset, w);
+		PaletteTable palette = this.palette;
+		startDrawing();
+		if (palette == null)
+			frameBuffer.setRGB(x, y, cx, cy, data, offset, w);
+		else
+			frameBuffer.setIndexed(x, y, cx, cy, data, offset, w, palette);
 	}
 
 	@Override
 	public int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset, int width) {
-		return bi.getRGB(x, y, cx, cy, data, offset, width);
+		return frameBuffer.getRGB(x, y, cx, cy, data, offset, width);
 	}
 
 	@Override
 	public int getRGB(int x, int y) {
 		// if(x >= this.getWidth() || x < 0 || y >= this.getHeight() || y < 0)
 		// return 0;
-		if (cm == null)
-			return bi.getRGB(x, y);
-		else {
-			int pix = bi.getRGB(x, y) & 0xFFFFFF;
-			int[] vals = { (pix >> 16) & 0xFF, (pix >> 8) & 0xFF, (pix) & 0xFF };
-			int out = cm.getDataElement(vals, 0);
-			if (cm.getRGB(out) != bi.getRGB(x, y))
-				LOG.warn("Did not get correct colour value for color (" + Integer.toHexString(pix) + "), got (" + cm.getRGB(out)
-						+ ") instead");
-			return out;
-		}
+		PaletteTable palette = this.palette;
+		if (palette == null)
+			return frameBuffer.getRGB(x, y);
+		else
+			return palette.toIndex(frameBuffer.getRGB(x, y));
 	}
 
 	@Override
 	public void resizeDisplay(Dimension dimension) {
-		BufferedImage bim = bi;
-		bi = new BufferedImage(Math.max(dimension.width, 1), Math.max(dimension.height, 1), bi.getType());
-		bi.getGraphics().drawImage(bim, 0, 0, null);
+		FrameBuffer old = frameBuffer;
+		if (dimension.width == old.getWidth() && dimension.height == old.getHeight())
+			return;
+		frameBuffer = old.resize(dimension.width, dimension.height);
+		old.dispose();
+		TileHashes tileHashes = this.tileHashes;
+		if (tileHashes != null)
+			tileHashes.resize(frameBuffer.getWidth(), frameBuffer.getHeight());
+		DamageAccumulator damage = this.damage;
+		if (damage != null && damage.resize(frameBuffer.getWidth(), frameBuffer.getHeight()))
+			scheduleDamageFlush(damage);
+		for (ClientDamageQueue queue : queues.values())
+			queue.resize(frameBuffer.getWidth(), frameBuffer.getHeight());
+		SessionRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.resize(frameBuffer.getWidth(), frameBuffer.getHeight());
 	}
 
 	public String toString() {
@@ -202,214 +569,153 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 
 	@Override
 	public void init() throws Exception {
+		Metrics.get().register(metrics);
 	}
 
 	@Override
 	public void destroy() {
+		damage = null;
+		FrameBuffer frozen = this.frozen;
+		this.frozen = null;
+		if (frozen != null)
+			frozen.dispose();
+		frameBuffer.dispose();
+		Metrics.get().unregister(metrics);
+		for (ClientDamageQueue queue : queues.values())
+			queue.close();
+		queues.clear();
+		if (tileHashes != null)
+			LOG.info("Tile hashing statistics: " + tileHashes);
+		if (input instanceof InputBatcher)
+			LOG.info("Motion coalescing statistics: " + input);
+		if (metrics.latencyTracer != null)
+			LOG.info("Latency tracing statistics: " + metrics.latencyTracer);
 	}
 
 	@Override
 	public void keyEvent(RFBClient client, boolean down, int key) {
-		char keychar = KeyEvent.CHAR_UNDEFINED;
-		int keycode = KeyEvent.VK_UNDEFINED;
-		int loc = KeyEvent.KEY_LOCATION_UNKNOWN;
-		switch (key) {
-		case RFBConstants.RFBKEY_SHIFT_LEFT:
-			keycode = KeyEvent.VK_SHIFT;
-			loc = KeyEvent.KEY_LOCATION_LEFT;
-			break;
-		case RFBConstants.RFBKEY_SHIFT_RIGHT:
-			keycode = KeyEvent.VK_SHIFT;
-			loc = KeyEvent.KEY_LOCATION_RIGHT;
-			break;
-		case RFBConstants.RFBKEY_CTRL_LEFT:
-			keycode = KeyEvent.VK_CONTROL;
-			loc = KeyEvent.KEY_LOCATION_LEFT;
-			break;
-		case RFBConstants.RFBKEY_CTRL_RIGHT:
-			keycode = KeyEvent.VK_CONTROL;
-			loc = KeyEvent.KEY_LOCATION_RIGHT;
-			break;
-		case RFBConstants.RFBKEY_META_LEFT:
-			keycode = KeyEvent.VK_META;
-			loc = KeyEvent.KEY_LOCATION_LEFT;
-			break;
-		case RFBConstants.RFBKEY_META_RIGHT:
-			keycode = KeyEvent.VK_META;
-			loc = KeyEvent.KEY_LOCATION_RIGHT;
-			break;
-		case RFBConstants.RFBKEY_ALT_LEFT:
-			keycode = KeyEvent.VK_ALT;
-			loc = KeyEvent.KEY_LOCATION_LEFT;
-			break;
-		case RFBConstants.RFBKEY_ALT_RIGHT:
-			keycode = KeyEvent.VK_ALT_GRAPH;
-			loc = KeyEvent.KEY_LOCATION_RIGHT;
-			break;
-		case RFBConstants.RFBKEY_F1:
-		case RFBConstants.RFBKEY_F2:
-		case RFBConstants.RFBKEY_F3:
-		case RFBConstants.RFBKEY_F4:
-		case RFBConstants.RFBKEY_F5:
-		case RFBConstants.RFBKEY_F6:
-		case RFBConstants.RFBKEY_F7:
-		case RFBConstants.RFBKEY_F8:
-		case RFBConstants.RFBKEY_F9:
-		case RFBConstants.RFBKEY_F10:
-		case RFBConstants.RFBKEY_F11:
-		case RFBConstants.RFBKEY_F12:
-			keycode = KeyEvent.VK_F1 + (key - RFBConstants.RFBKEY_F1);
-			break;
-		case RFBConstants.RFBKEY_BACKSPACE:
-			keycode = KeyEvent.VK_BACK_SPACE;
-			break;
-		case RFBConstants.RFBKEY_TAB:
-			keycode = KeyEvent.VK_TAB;
-			break;
-		case RFBConstants.RFBKEY_ENTER:
-			keycode = KeyEvent.VK_ENTER;
-			break;
-		case RFBConstants.RFBKEY_ESCAPE:
-			keycode = KeyEvent.VK_ESCAPE;
-			break;
-		case RFBConstants.RFBKEY_INSERT:
-			keycode = KeyEvent.VK_INSERT;
-			break;
-		case RFBConstants.RFBKEY_DELETE:
-			keycode = KeyEvent.VK_DELETE;
-			break;
-		case RFBConstants.RFBKEY_HOME:
-			keycode = KeyEvent.VK_HOME;
-			break;
-		case RFBConstants.RFBKEY_END:
-			keycode = KeyEvent.VK_END;
-			break;
-		case RFBConstants.RFBKEY_PGUP:
-			keycode = KeyEvent.VK_PAGE_UP;
-			break;
-		case RFBConstants.RFBKEY_PGDN:
-			keycode = KeyEvent.VK_PAGE_DOWN;
-			break;
-		case RFBConstants.RFBKEY_LEFT:
-			keycode = KeyEvent.VK_LEFT;
-			break;
-		case RFBConstants.RFBKEY_RIGHT:
-			keycode = KeyEvent.VK_RIGHT;
-			break;
-		case RFBConstants.RFBKEY_UP:
-			keycode = KeyEvent.VK_UP;
-			break;
-		case RFBConstants.RFBKEY_DOWN:
-			keycode = KeyEvent.VK_UP;
-			break;
-		default:
+		char keychar;
+		int keycode;
+		int loc;
+		if ((key & ~0xff) == SPECIAL_KEY_PAGE && SPECIAL_KEYCODES[key & 0xff] != KeyEvent.VK_UNDEFINED) {
+			int idx = key & 0xff;
+			keychar = KeyEvent.CHAR_UNDEFINED;
+			keycode = SPECIAL_KEYCODES[idx];
+			loc = SPECIAL_LOCATIONS[idx];
+			int modifier = SPECIAL_MODIFIERS[idx];
+			if (modifier != 0) {
+				if (down)
+					keyMods |= modifier;
+				else
+					keyMods &= ~modifier;
+			}
+		} else {
 			keychar = (char) key;
+			loc = KeyEvent.KEY_LOCATION_UNKNOWN;
 			if (keychar == ' ' || (keychar >= 'A' && keychar <= 'Z') || (keychar >= '0' && keychar <= '9'))
 				keycode = keychar;
 			else if (keychar >= 'a' && keychar <= 'z')
 				keycode = keychar - 'a' + 'A';
-			break;
-		}
-		switch (keycode) {
-		case KeyEvent.VK_SHIFT:
-			if (down)
-				keyMods |= KeyEvent.SHIFT_DOWN_MASK;
-			else
-				keyMods &= ~(KeyEvent.SHIFT_DOWN_MASK);
-			break;
-		case KeyEvent.VK_CONTROL:
-			if (down)
-				keyMods |= KeyEvent.CTRL_DOWN_MASK;
-			else
-				keyMods &= ~(KeyEvent.CTRL_DOWN_MASK);
-			break;
-		case KeyEvent.VK_META:
-			if (down)
-				keyMods |= KeyEvent.META_DOWN_MASK;
-			else
-				keyMods &= ~(KeyEvent.META_DOWN_MASK);
-			break;
-		case KeyEvent.VK_ALT:
-			if (down)
-				keyMods |= KeyEvent.ALT_DOWN_MASK;
 			else
-				keyMods &= ~(KeyEvent.ALT_DOWN_MASK);
-			break;
-		case KeyEvent.VK_ALT_GRAPH:
-			if (down)
-				keyMods |= KeyEvent.ALT_GRAPH_DOWN_MASK;
-			else
-				keyMods &= ~(KeyEvent.ALT_GRAPH_DOWN_MASK);
-			break;
-		}
-		EventListener[] l = uiListeners.getListeners(KeyListener.class);
-		for (int i = l.length - 1; i >= 0; i--) {
-			if (down) {
-				((KeyListener) l[i]).keyPressed(new KeyEvent(fakeComponent, KeyEvent.KEY_PRESSED, System.currentTimeMillis(),
-						keyMods, keycode, keychar, loc));
-			} else {
-				((KeyListener) l[i]).keyReleased(new KeyEvent(fakeComponent, KeyEvent.KEY_RELEASED, System.currentTimeMillis(),
-						keyMods, keycode, keychar, loc));
-			}
+				keycode = KeyEvent.VK_UNDEFINED;
 		}
-		for (int i = l.length - 1; i >= 0; i--) {
-			if (!down) {
-				if (keychar != KeyEvent.CHAR_UNDEFINED)
-					((KeyListener) l[i]).keyTyped(new KeyEvent(fakeComponent, KeyEvent.KEY_TYPED, System.currentTimeMillis(),
-							keyMods, KeyEvent.VK_UNDEFINED, keychar, loc));
-			}
+		metrics.inputEvents.increment();
+		LatencyTracer tracer = metrics.latencyTracer;
+		if (tracer != null)
+			tracer.input();
+		InputSink input = this.input;
+		long now = System.currentTimeMillis();
+		if (down)
+			input.keyPressed(now, keyMods, keycode, keychar, loc);
+		else {
+			input.keyReleased(now, keyMods, keycode, keychar, loc);
+			if (keychar != KeyEvent.CHAR_UNDEFINED)
+				input.keyTyped(now, keyMods, keychar, loc);
 		}
 	}
 
 	@Override
 	public void mouseEvent(RFBClient client, int buttonMask, int x, int y) {
+		metrics.inputEvents.increment();
+		InputSink input = this.input;
+		long now = System.currentTimeMillis();
 		if (x != pointer.getX() || y != pointer.getY()) {
 			mouseMoved(x, y);
 			pointer.setX(x);
 			pointer.setY(y);
-			EventListener[] l = uiListeners.getListeners(MouseMotionListener.class);
-			for (int i = l.length - 1; i >= 0; i--) {
-				((MouseMotionListener) l[i]).mouseMoved(
-						new MouseEvent(fakeComponent, MouseEvent.MOUSE_MOVED, System.currentTimeMillis(), keyMods, x, y, 0, false));
-			}
+			input.mouseMoved(now, keyMods, x, y);
 		}
 		// TODO there is a still a bug in noVnc client. If you press button 1,
 		// then button 3, then release
 		// button 3, then release button 1, you never get the final release
 		// event
 		if (buttonMask != this.buttonMask) {
-			EventListener[] l = uiListeners.getListeners(MouseListener.class);
-			EventListener[] w = uiListeners.getListeners(MouseWheelListener.class);
+			/* Motion often only moves the cursor, so only trace buttons */
+			LatencyTracer tracer = metrics.latencyTracer;
+			if (tracer != null)
+				tracer.input();
 			for (int i = 0; i < 8; i++) {
 				int bitval = 1 << i;
 				boolean is = (buttonMask & bitval) != 0;
 				boolean was = (this.buttonMask & bitval) != 0;
 				if (is != was) {
 					if (i == 3 || i == 4) {
-						if (is) {
-							for (int j = w.length - 1; j >= 0; j--) {
-								((MouseWheelListener) w[j]).mouseWheelMoved(new MouseWheelEvent(fakeComponent,
-										MouseEvent.MOUSE_WHEEL, System.currentTimeMillis(), keyMods, x, y, 0, 0, 1, false,
-										MouseWheelEvent.WHEEL_UNIT_SCROLL, i == 3 ? -1 : 1, i == 3 ? -1 : 1));
-							}
-						}
-					} else {
-						for (int j = l.length - 1; j >= 0; j--) {
-							if (is) {
-								((MouseListener) l[j]).mousePressed(new MouseEvent(fakeComponent, MouseEvent.MOUSE_PRESSED,
-										System.currentTimeMillis(), keyMods, x, y, 0, i == 2, i + 1));
-							} else {
-								((MouseListener) l[j]).mouseReleased(new MouseEvent(fakeComponent, MouseEvent.MOUSE_RELEASED,
-										System.currentTimeMillis(), keyMods, x, y, 0, i == 2, i + 1));
-							}
-						}
-					}
+						if (is)
+							input.mouseWheelMoved(now, keyMods, x, y, i == 3 ? -1 : 1);
+					} else if (is)
+						input.mousePressed(now, keyMods, x, y, i + 1);
+					else
+						input.mouseReleased(now, keyMods, x, y, i + 1);
 				}
 			}
 			this.buttonMask = buttonMask;
 		}
 	}
 
+	/**
+	 * Coalesce pointer motion from VNC clients before passing it on to the RDP
+	 * server. Only the last position in each window of <code>interval</code>
+	 * milliseconds is sent. Button and key events are never delayed or
+	 * reordered.
+	 * 
+	 * @param interval window in milliseconds, or zero to send all motion
+	 * @see InputBatcher
+	 */
+	public void setMotionCoalescing(long interval) {
+		InputSink input = this.input;
+		if (input instanceof InputBatcher)
+			((InputBatcher) input).flush();
+		setInputSink(interval > 0 ? new InputBatcher(awtInput, interval) : null);
+	}
+
+	/**
+	 * Change where translated input is sent. By default it is delivered as AWT
+	 * events to the listeners the RDP client has registered.
+	 * 
+	 * @param input input sink, or <code>null</code> to restore the default
+	 */
+	void setInputSink(InputSink input) {
+		this.input = input == null ? awtInput : input;
+	}
+
+	InputSink getAWTInputSink() {
+		return awtInput;
+	}
+
+	private static void special(int keysym, int keycode) {
+		special(keysym, keycode, KeyEvent.KEY_LOCATION_UNKNOWN, 0);
+	}
+
+	private static void special(int keysym, int keycode, int location, int modifier) {
+		if ((keysym & ~0xff) != SPECIAL_KEY_PAGE) {
+			LOG.warn("Key symbol " + Integer.toHexString(keysym) + " is not in the special key page, ignoring.");
+			return;
+		}
+		SPECIAL_KEYCODES[keysym & 0xff] = keycode;
+		SPECIAL_LOCATIONS[keysym & 0xff] = location;
+		SPECIAL_MODIFIERS[keysym & 0xff] = modifier;
+	}
+
 	@Override
 	public void setClipboardText(String string) {
 		if (clipChannel != null) {
@@ -418,9 +724,146 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 		}
 	}
 
+	/**
+	 * Get an area of the frame buffer clients read from. When snapshots are
+	 * enabled the image shares pixels with the published snapshot, which stays
+	 * retained (so is not written to) until the next call to this method on
+	 * the same thread, or until {@link #releaseArea()} is called once the image
+	 * has been encoded.
+	 */
 	@Override
 	public BufferedImage grabArea(Rectangle area) {
-		return bi.getSubimage(area.x, area.y, area.width, area.height);
+		releaseArea();
+		encoding();
+		SnapshotBuffer snapshots = this.snapshots;
+		FrameBuffer fb = retainClientFrameBuffer();
+		boolean held = false;
+		try {
+			area = clip(fb, area);
+			BufferedImage img = fb.grabImage(area.x, area.y, area.width, area.height);
+			if (snapshots != null && fb != frozen && !fb.isDirect()) {
+				grabbed.set(fb);
+				held = true;
+			}
+			return img;
+		} finally {
+			if (!held)
+				fb.release();
+		}
+	}
+
+	/**
+	 * Give back the snapshot the last image from {@link #grabArea(Rectangle)}
+	 * on this thread shares pixels with, so it may be reused. The image must
+	 * not be read afterwards. Does nothing if there is none.
+	 */
+	public void releaseArea() {
+		FrameBuffer fb = grabbed.get();
+		if (fb != null) {
+			grabbed.remove();
+			fb.release();
+		}
+	}
+
+	/**
+	 * Get where the pixels for an area are in the backing array (or, off the
+	 * heap, the buffer) of the frame buffer clients read from (the published
+	 * snapshot if snapshots are enabled), so encoders can read them without
+	 * creating a sub-image or copying them. The area is clipped to the frame
+	 * buffer, as with {@link #grabArea(Rectangle)}, and the frame buffer is
+	 * retained until {@link PixelRegion#release()} is called.
+	 * 
+	 * @param area area
+	 * @param region region to reuse, or <code>null</code> to create one
+	 * @return region, or <code>null</code> if the frame buffer type does not
+	 *         allow direct access, in which case use
+	 *         {@link #getPixels(Rectangle, int[], int, int)}
+	 */
+	public PixelRegion getRegion(Rectangle area, PixelRegion region) {
+		if (region != null)
+			region.release();
+		encoding();
+		FrameBuffer fb = retainClientFrameBuffer();
+		area = clip(fb, area);
+		PixelRegion r = fb.getRegion(area.x, area.y, area.width, area.height, region);
+		if (r == null)
+			fb.release();
+		else
+			r.retain(fb);
+		return r;
+	}
+
+	/**
+	 * Copy the pixels for an area, in the default RGB colour model, from the
+	 * frame buffer clients read from into an array, which may be reused
+	 * between calls. If snapshots are enabled the area is clipped to the
+	 * snapshot, as with {@link #grabArea(Rectangle)}.
+	 * 
+	 * @param area area
+	 * @param data array to fill, or <code>null</code> to allocate one
+	 * @param offset offset of first pixel in data
+	 * @param scansize scanline stride of data
+	 * @return data
+	 */
+	public int[] getPixels(Rectangle area, int[] data, int offset, int scansize) {
+		encoding();
+		FrameBuffer fb = retainClientFrameBuffer();
+		try {
+			area = clip(fb, area);
+			return fb.getRGB(area.x, area.y, area.width, area.height, data, offset, scansize);
+		} finally {
+			fb.release();
+		}
+	}
+
+	private void encoding() {
+		/* The first read after damage is flushed is a client starting the update */
+		LatencyTracer tracer = metrics.latencyTracer;
+		if (tracer != null)
+			tracer.encoding();
+	}
+
+	/**
+	 * Retain the frame buffer clients should read from, either the last frame
+	 * before a reconnect, the published snapshot or the live frame buffer. It
+	 * must be released once read.
+	 */
+	private FrameBuffer retainClientFrameBuffer() {
+		FrameBuffer frozen = this.frozen;
+		if (frozen != null && frozen.retain())
+			return frozen;
+		SnapshotBuffer snapshots = this.snapshots;
+		FrameBuffer fb = snapshots == null ? null : snapshots.acquire();
+		if (fb == null)
+			fb = retainFrameBuffer();
+		if (fb == null)
+			throw new IllegalStateException("Display has been destroyed.");
+		return fb;
+	}
+
+	/**
+	 * Retain the live frame buffer while it is read on a thread other than
+	 * the RDP session's, so a resize cannot dispose of it part way through. It
+	 * must be released once read.
+	 *
+	 * @return frame buffer, or <code>null</code> if the display has been
+	 *         destroyed
+	 */
+	private FrameBuffer retainFrameBuffer() {
+		while (true) {
+			FrameBuffer fb = frameBuffer;
+			if (fb.retain())
+				return fb;
+			if (fb == frameBuffer)
+				return null;
+		}
+	}
+
+	private static Rectangle clip(FrameBuffer fb, Rectangle area) {
+		if (area.x >= 0 && area.y >= 0 && area.x + area.width <= fb.getWidth() && area.y + area.height <= fb.getHeight())
+			return area;
+		Rectangle clipped = area.intersection(new Rectangle(0, 0, fb.getWidth(), fb.getHeight()));
+		return clipped.isEmpty() ? area : clipped;
 	}
 
 	@Override
@@ -430,6 +873,7 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 
 	@Override
 	public void repaint(int x, int y, int cx, int cy) {
+		endDrawing();
 		if (x < 0)
 			x = 0;
 		if (y < 0)
@@ -438,7 +882,33 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 			cy = 1;
 		if (cx < 1)
 			cx = 1;
-		fireDamageEvent("Repaint", new Rectangle(x, y, cx, cy), -1);
+		metrics.damageEvents.increment();
+		metrics.pixelsDamaged.add((long) cx * cy);
+		if (frozen != null) {
+			lastPaint = System.nanoTime();
+			return;
+		}
+		LatencyTracer tracer = metrics.latencyTracer;
+		if (tracer != null)
+			tracer.painted();
+		SessionRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.damage(x, y, cx, cy);
+		DamageAccumulator damage = this.damage;
+		if (damage == null) {
+			TileHashes tileHashes = this.tileHashes;
+			if (tileHashes == null || tileHashes.isAnyChanged(frameBuffer, x, y, cx, cy)) {
+				metrics.damageRectangles.increment();
+				if (tracer != null)
+					tracer.flushed();
+				fireDamageEvent("Repaint", new Rectangle(x, y, cx, cy), -1);
+			}
+		} else {
+			if (damage.add(x, y, cx, cy))
+				scheduleDamageFlush(damage);
+			if (flushDue)
+				flushDamage(damage, false);
+		}
 	}
 
 	@Override
@@ -446,27 +916,82 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 		return new RdpCursor(hotspot, name, data);
 	}
 
-	//
+	/**
+	 * Servers often switch between the same few pointers, and set the
+	 * current one again, so a shape is only passed on (and recorded) if its
+	 * hotspot or pixels differ from the current one. The same cached cursor
+	 * is recognised without reading its pixels, and pixels are only compared
+	 * when the hashes match.
+	 */
 	@Override
 	public void setCursor(RdpCursor cursor) {
-		if (cursor == null) {
-			clearCursor();
-		} else {
-			pointer.setHotX(cursor.getHotspot().x);
-			pointer.setHotY(cursor.getHotspot().y);
-			pointer.setHeight(cursor.getData().getHeight(null));
-			pointer.setWidth(cursor.getData().getWidth(null));
-			pointer.setData((BufferedImage) cursor.getData());
-			firePointerChange(getPointerShape());
+		BufferedImage image = cursor == null ? BLANK_CURSOR : (BufferedImage) cursor.getData();
+		int hotX = cursor == null ? 0 : cursor.getHotspot().x;
+		int hotY = cursor == null ? 0 : cursor.getHotspot().y;
+		BufferedImage current = pointer.getData();
+		if (image == current && hotX == pointer.getHotX() && hotY == pointer.getHotY()) {
+			metrics.pointerShapesUnchanged.increment();
+			return;
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		if (cursorPixels.length < width * height)
+			cursorPixels = new int[width * height];
+		image.getRGB(0, 0, width, height, cursorPixels, 0, width);
+		long hash = hashCursor(hotX, hotY, width, height, cursorPixels);
+		if (hash == pointerHash && hotX == pointer.getHotX() && hotY == pointer.getHotY() && current != null
+				&& width == current.getWidth() && height == current.getHeight()
+				&& samePixels(cursorPixels, pointerPixels, width * height)) {
+			metrics.pointerShapesUnchanged.increment();
+			return;
 		}
+		int[] pixels = pointerPixels;
+		pointerPixels = cursorPixels;
+		cursorPixels = pixels;
+		pointerHash = hash;
+		setPointerShape(hotX, hotY, image);
+		metrics.pointerShapes.increment();
+		firePointerChange(getPointerShape());
+		SessionRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.cursor(hotX, hotY, image);
 	}
 
 	private void clearCursor() {
-		pointer.setHotX(0);
-		pointer.setHotY(0);
-		pointer.setData(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
-		pointer.setHeight(16);
-		pointer.setWidth(16);
+		int width = BLANK_CURSOR.getWidth();
+		int height = BLANK_CURSOR.getHeight();
+		if (pointerPixels.length < width * height)
+			pointerPixels = new int[width * height];
+		BLANK_CURSOR.getRGB(0, 0, width, height, pointerPixels, 0, width);
+		pointerHash = hashCursor(0, 0, width, height, pointerPixels);
+		setPointerShape(0, 0, BLANK_CURSOR);
+	}
+
+	private void setPointerShape(int hotX, int hotY, BufferedImage image) {
+		pointer.setHotX(hotX);
+		pointer.setHotY(hotY);
+		pointer.setHeight(image.getHeight());
+		pointer.setWidth(image.getWidth());
+		pointer.setData(image);
+	}
+
+	private static long hashCursor(int hotX, int hotY, int width, int height, int[] pixels) {
+		long h = FrameBuffer.FNV_OFFSET;
+		h = (h ^ hotX) * FrameBuffer.FNV_PRIME;
+		h = (h ^ hotY) * FrameBuffer.FNV_PRIME;
+		h = (h ^ width) * FrameBuffer.FNV_PRIME;
+		h = (h ^ height) * FrameBuffer.FNV_PRIME;
+		for (int i = 0, n = width * height; i < n; i++)
+			h = (h ^ pixels[i]) * FrameBuffer.FNV_PRIME;
+		return h;
+	}
+
+	private static boolean samePixels(int[] a, int[] b, int n) {
+		for (int i = 0; i < n; i++) {
+			if (a[i] != b[i])
+				return false;
+		}
+		return true;
 	}
 
 	@Override
@@ -482,47 +1007,169 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 
 	@Override
 	public void addMouseListener(MouseListener mouseListener) {
-		uiListeners.add(MouseListener.class, mouseListener);
+		awtInput.addMouseListener(mouseListener);
 	}
 
 	@Override
 	public void removeMouseListener(MouseListener mouseListener) {
-		uiListeners.remove(MouseListener.class, mouseListener);
+		awtInput.removeMouseListener(mouseListener);
 	}
 
 	@Override
 	public void addMouseMotionListener(MouseMotionListener mouseMotionListener) {
-		uiListeners.add(MouseMotionListener.class, mouseMotionListener);
+		awtInput.addMouseMotionListener(mouseMotionListener);
 	}
 
 	@Override
 	public void removeMouseMotionListener(MouseMotionListener mouseMotionListener) {
-		uiListeners.remove(MouseMotionListener.class, mouseMotionListener);
+		awtInput.removeMouseMotionListener(mouseMotionListener);
 	}
 
 	@Override
 	public void addMouseWheelListener(MouseWheelListener mouseWheelListener) {
-		uiListeners.add(MouseWheelListener.class, mouseWheelListener);
+		awtInput.addMouseWheelListener(mouseWheelListener);
 	}
 
 	@Override
 	public void removeMouseWheelListener(MouseWheelListener mouseWheelListener) {
-		uiListeners.remove(MouseWheelListener.class, mouseWheelListener);
+		awtInput.removeMouseWheelListener(mouseWheelListener);
 	}
 
 	@Override
 	public void addKeyListener(KeyListener keyListener) {
-		uiListeners.add(KeyListener.class, keyListener);
+		awtInput.addKeyListener(keyListener);
 	}
 
 	@Override
 	public void removeKeyListener(KeyListener keyListener) {
-		uiListeners.remove(KeyListener.class, keyListener);
+		awtInput.removeKeyListener(keyListener);
 	}
 
 	@Override
 	public void repaint() {
-		fireDamageEvent("FullRepaint", new Rectangle(0, 0, getDisplayWidth(), getDisplayHeight()), -1);
+		endDrawing();
+		if (frozen != null) {
+			lastPaint = System.nanoTime();
+			return;
+		}
+		SessionRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.damageAll();
+		DamageAccumulator damage = this.damage;
+		if (damage == null) {
+			metrics.damageRectangles.increment();
+			fireDamageEvent("FullRepaint", new Rectangle(0, 0, getDisplayWidth(), getDisplayHeight()), -1);
+		}
+		else {
+			if (damage.markAll())
+				scheduleDamageFlush(damage);
+			if (flushDue)
+				flushDamage(damage, false);
+		}
+	}
+
+	/**
+	 * Deliver all accumulated damage now. Should be called between drawing
+	 * operations, on the thread that draws.
+	 */
+	public void flushDamage() {
+		DamageAccumulator damage = this.damage;
+		if (damage != null)
+			flushDamage(damage, false);
+	}
+
+	private void startDrawing() {
+		if (!drawing)
+			drawing = true;
+	}
+
+	private void endDrawing() {
+		/* Count first, so a guard that sees drawing cleared also sees the count change */
+		paints++;
+		drawing = false;
+	}
+
+	/**
+	 * Deliver accumulated damage. A guarded flush may run while the RDP thread
+	 * is drawing, so when snapshots are enabled it only publishes if no order
+	 * was drawn while it copied, otherwise leaving the flush to the RDP thread
+	 * once the order is complete.
+	 */
+	private void flushDamage(DamageAccumulator damage, boolean guarded) {
+		/*
+		 * Damage added while a flush is delivering schedules another flush,
+		 * which must not drain, publish or deliver until this one is done
+		 */
+		synchronized (flushLock) {
+			deliverDamage(damage, guarded);
+		}
+	}
+
+	private void deliverDamage(DamageAccumulator damage, boolean guarded) {
+		final TileHashes tileHashes = this.tileHashes;
+		SnapshotBuffer snapshots = this.snapshots;
+		SnapshotBuffer.Guard guard = null;
+		if (guarded && snapshots != null) {
+			flushDue = true;
+			final int paints = this.paints;
+			if (drawing)
+				return;
+			guard = new SnapshotBuffer.Guard() {
+				@Override
+				public boolean isDrawnTo() {
+					return drawing || RDPDisplayDriver.this.paints != paints;
+				}
+			};
+		}
+		final FrameBuffer frameBuffer = retainFrameBuffer();
+		if (frameBuffer == null)
+			return;
+		List<Rectangle> rects;
+		try {
+			DamageAccumulator.TileFilter filter = null;
+			if (tileHashes != null) {
+				filter = new DamageAccumulator.TileFilter() {
+					@Override
+					public boolean isChanged(int x, int y, int w, int h) {
+						return tileHashes.isChanged(frameBuffer, x, y, w, h);
+					}
+				};
+			}
+			rects = damage.drain(filter);
+			if (snapshots != null && !rects.isEmpty() && !snapshots.publish(frameBuffer, rects, guard)) {
+				/* Hashes were taken part way through an order, so must not filter these again */
+				for (Rectangle r : rects) {
+					if (tileHashes != null)
+						tileHashes.invalidate(r.x, r.y, r.width, r.height);
+					damage.add(r.x, r.y, r.width, r.height);
+				}
+				return;
+			}
+			flushDue = false;
+		} finally {
+			frameBuffer.release();
+		}
+		metrics.damageRectangles.add(rects.size());
+		LatencyTracer tracer = metrics.latencyTracer;
+		if (tracer != null && !rects.isEmpty())
+			tracer.flushed();
+		for (Rectangle r : rects)
+			fireDamageEvent("Repaint", r, -1);
+	}
+
+	private void scheduleDamageFlush(final DamageAccumulator damage) {
+		final long started = System.nanoTime();
+		SharedScheduler.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushDamage(damage, true);
+					metrics.updateLatency.record(System.nanoTime() - started);
+				} catch (RuntimeException re) {
+					LOG.error("Failed to deliver damage.", re);
+				}
+			}
+		}, damageInterval, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
@@ -548,7 +1195,7 @@ public class RDPDisplayDriver extends AbstractDisplayDriver implements Display {
 			try {
 				LOG.info(String.format("Sending new size data to to RDP server %dx%d", screen.getWidth(), screen.getHeight()));
 				displayControlChannel.sendDisplayControlCaps(m);
-				canvas.backingStoreResize(bi.getWidth(), bi.getHeight(), true);
+				canvas.backingStoreResize(frameBuffer.getWidth(), frameBuffer.getHeight(), true);
 				return true;
 			} catch (Exception e) {
 				// TODO should disconnect?
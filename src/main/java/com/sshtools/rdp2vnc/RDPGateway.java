@@ -0,0 +1,236 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.rfbserver.DisplayDriver;
+import com.sshtools.rfbserver.RFBServer;
+import com.sshtools.rfbserver.transport.RFBServerTransport;
+import com.sshtools.rfbserver.transport.RFBServerTransportFactory;
+
+/**
+ * Gateway mode. Listens once for VNC connections, and gives each one its own
+ * RDP session to a target chosen by a {@link SessionResolver}. All sessions
+ * share the same JVM, thread pools and keymaps.
+ */
+public class RDPGateway {
+	final static Logger LOG = LoggerFactory.getLogger(RDPGateway.class);
+
+	private final RDP2VNC app;
+	private final SessionResolver resolver;
+	private final AtomicInteger sessions = new AtomicInteger();
+	private RDPSessionPool pool;
+	private ServerSocket serverSocket;
+	private NioTransportFactory nioFactory;
+	private volatile boolean running;
+
+	public RDPGateway(RDP2VNC app, SessionResolver resolver) {
+		this.app = app;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Set a pool of sessions connected ahead of time to take sessions from
+	 * when possible. The pool is started and closed with the gateway.
+	 *
+	 * @param pool pool, or <code>null</code> to always connect on demand
+	 */
+	public void setSessionPool(RDPSessionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Get the number of sessions currently active.
+	 *
+	 * @return sessions
+	 */
+	public int getSessionCount() {
+		return sessions.get();
+	}
+
+	/**
+	 * Listen for and serve VNC connections until {@link #stop()} is called.
+	 *
+	 * @throws IOException on error
+	 */
+	public void start() throws IOException {
+		if (pool != null)
+			pool.start();
+		try {
+			if (app.getTransport() == RDP2VNC.Transport.nio)
+				startNio();
+			else
+				startBlocking();
+		} finally {
+			if (pool != null)
+				pool.close();
+		}
+	}
+
+	private void startBlocking() throws IOException {
+		serverSocket = new ServerSocket(app.getPort(), app.getListenBacklog(), InetAddress.getByName(app.getAddress()));
+		running = true;
+		LOG.info("Gateway listening on " + app.getAddress() + ":" + app.getPort());
+		try {
+			while (running) {
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException ioe) {
+					if (!running)
+						break;
+					throw ioe;
+				}
+				SharedScheduler.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket, null);
+					}
+				});
+			}
+		} finally {
+			running = false;
+			serverSocket.close();
+		}
+	}
+
+	private void startNio() throws IOException {
+		nioFactory = new NioTransportFactory();
+		nioFactory.init(app);
+		running = true;
+		LOG.info("Gateway listening on " + app.getAddress() + ":" + app.getPort() + " (NIO)");
+		try {
+			while (running) {
+				final NioTransport transport;
+				try {
+					transport = (NioTransport) nioFactory.nextTransport();
+				} catch (IOException ioe) {
+					if (!running)
+						break;
+					throw ioe;
+				}
+				SharedScheduler.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(transport.getSocket(), transport);
+					}
+				});
+			}
+		} finally {
+			running = false;
+			nioFactory.stop();
+		}
+	}
+
+	/**
+	 * Stop listening for new connections. Existing sessions are left running.
+	 */
+	public void stop() {
+		running = false;
+		if (nioFactory != null)
+			nioFactory.stop();
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			LOG.debug("Failed to close gateway socket.", e);
+		}
+	}
+
+	/**
+	 * Serve a single VNC connection. Returns when either side disconnects.
+	 *
+	 * @param socket VNC connection
+	 * @param transport transport to use for the connection, or
+	 *            <code>null</code> to use the socket streams
+	 */
+	protected void serve(Socket socket, RFBServerTransport transport) {
+		RDPTarget target;
+		try {
+			target = resolver.resolve(socket);
+		} catch (IOException ioe) {
+			LOG.error("Failed to resolve RDP target for " + socket.getRemoteSocketAddress() + ".", ioe);
+			target = null;
+		}
+		if (target == null) {
+			LOG.warn("No RDP target for " + socket.getRemoteSocketAddress() + ", refusing connection.");
+			close(socket, transport);
+			return;
+		}
+
+		RDPSessionPool.PooledSession pooled = pool == null ? null : pool.take(target);
+		LOG.info("Bridging " + socket.getRemoteSocketAddress() + " to " + target
+				+ (pooled == null ? "" : " using a session connected ahead of time") + " (" + sessions.incrementAndGet()
+				+ " active sessions)");
+		RDPDisplayDriver underlyingDriver = pooled == null ? app.createDisplayDriver() : pooled.getDriver();
+		DisplayDriver driver = app.createDriverChain(underlyingDriver);
+		RFBServer server = null;
+		RFBServerTransportFactory transportFactory = null;
+		try {
+			final RDPSession session = pooled == null ? app.createSession(target, underlyingDriver)
+					: pooled.getSession();
+			Runnable onClose = new Runnable() {
+				@Override
+				public void run() {
+					session.close();
+				}
+			};
+			transportFactory = new MeteredTransportFactory(
+					transport == null ? new AcceptedSocketTransportFactory(socket, onClose)
+							: new AcceptedSocketTransportFactory(transport, onClose),
+					underlyingDriver.getMetrics());
+			if (pooled == null)
+				session.connect();
+			driver.init();
+			server = new RFBServer(app, driver);
+			app.configureSecurity(server);
+			server.init(transportFactory);
+			final RFBServer fServer = server;
+			SharedScheduler.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fServer.start();
+					} catch (IOException e) {
+						if (!session.isClosed())
+							LOG.error("RFB Server exited with failure.", e);
+					}
+				}
+			});
+			if (pooled == null)
+				session.run();
+			else
+				pooled.run();
+		} catch (Exception e) {
+			LOG.error("Session to " + target + " failed.", e);
+		} finally {
+			if (server != null && server.isStarted())
+				server.stop();
+			if (transportFactory != null)
+				transportFactory.stop();
+			else
+				close(socket, transport);
+			driver.destroy();
+			if (pool != null)
+				pool.release(target);
+			LOG.info("Session to " + target + " ended (" + sessions.decrementAndGet() + " active sessions)");
+		}
+	}
+
+	private void close(Socket socket, RFBServerTransport transport) {
+		if (transport != null)
+			transport.stop();
+		else {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
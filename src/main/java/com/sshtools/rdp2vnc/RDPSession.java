@@ -0,0 +1,140 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.javardp.ConnectionException;
+import com.sshtools.javardp.DefaultCredentialsProvider;
+import com.sshtools.javardp.IContext;
+import com.sshtools.javardp.Options;
+import com.sshtools.javardp.RdesktopDisconnectException;
+import com.sshtools.javardp.RdesktopException;
+import com.sshtools.javardp.State;
+import com.sshtools.javardp.graphics.RdesktopCanvas;
+import com.sshtools.javardp.io.DefaultIO;
+import com.sshtools.javardp.layers.Rdp;
+import com.sshtools.javardp.rdp5.VChannels;
+import com.sshtools.javardp.rdp5.cliprdr.ClipChannel;
+
+/**
+ * A single connection to an RDP server, drawing to an
+ * {@link RDPDisplayDriver}.
+ */
+public abstract class RDPSession {
+	final static Logger LOG = LoggerFactory.getLogger(RDPSession.class);
+
+	private final RDPTarget target;
+	private final Options options;
+	private final RDPDisplayDriver driver;
+	private Rdp rdpLayer;
+	private volatile boolean closed;
+
+	public RDPSession(RDPTarget target, Options options, RDPDisplayDriver driver) {
+		this.target = target;
+		this.options = options;
+		this.driver = driver;
+	}
+
+	public RDPTarget getTarget() {
+		return target;
+	}
+
+	public Options getOptions() {
+		return options;
+	}
+
+	public RDPDisplayDriver getDriver() {
+		return driver;
+	}
+
+	/**
+	 * Connect and log on to the RDP server.
+	 *
+	 * @throws IOException on any error
+	 */
+	public void connect() throws IOException {
+		State state = new State(options);
+		IContext ctx = createContext(state);
+		/*
+		 * Create a canvas. This actually draws to the RFB servers display
+		 * buffer and fires damage events when rectangles are painted. This
+		 * means we don't need to do any polling in the RFB server itself as the
+		 * problem is solved on the target RDP server itself.
+		 */
+		new RdesktopCanvas(ctx, state, driver);
+		VChannels channels = new VChannels(state);
+		ClipChannel clipChannel = new ClipChannel();
+		if (state.isRDP5()) {
+			if (options.isMapClipboard()) {
+				try {
+					channels.register(clipChannel);
+					driver.setClipChannel(clipChannel);
+				} catch (RdesktopException rde) {
+					throw new IOException("Could not initialise clip channel.");
+				}
+			}
+		}
+		rdpLayer = new Rdp(ctx, state, channels);
+		LOG.info("Connecting to " + target + " ...");
+		try {
+			DefaultCredentialsProvider dcp = new DefaultCredentialsProvider();
+			dcp.setUsername(target.getUsername());
+			dcp.setPassword(target.getPassword());
+			dcp.setDomain(target.getDomain());
+			rdpLayer.connect(new DefaultIO(InetAddress.getByName(target.getAddress()), target.getPort()), dcp,
+					options.getCommand(), options.getDirectory());
+			LOG.info("Connection successful");
+		} catch (ConnectionException e) {
+			throw new IOException(e.getMessage(), e);
+		} catch (SocketException s) {
+			throw s;
+		} catch (RdesktopException e) {
+			throw new IOException("Desktop protocol problem.", e);
+		}
+	}
+
+	/**
+	 * Run the RDP loop until the server disconnects or the session is
+	 * closed.
+	 *
+	 * @throws IOException on any error other than disconnection
+	 */
+	public void run() throws IOException {
+		try {
+			rdpLayer.mainLoop();
+		} catch (RdesktopDisconnectException rde) {
+			if (!closed)
+				LOG.error("Connection terminated: " + rde.getMessage(), rde);
+		} catch (SocketException s) {
+			if (!closed)
+				throw s;
+		} catch (RdesktopException e) {
+			throw new IOException("Desktop protocol problem.", e);
+		}
+	}
+
+	/**
+	 * Disconnect from the RDP server, causing {@link #run()} to return.
+	 */
+	public void close() {
+		closed = true;
+		if (rdpLayer != null)
+			rdpLayer.disconnect();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Create the context the RDP client uses to call back to the application.
+	 *
+	 * @param state state
+	 * @return context
+	 */
+	protected abstract IContext createContext(State state);
+}
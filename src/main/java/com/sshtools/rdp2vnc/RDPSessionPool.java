@@ -0,0 +1,375 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps RDP sessions connected ahead of time in gateway mode, so a new VNC
+ * connection can be given one that has already been through the connection
+ * sequence and logged on, and has a desktop to show straight away.
+ * <p>
+ * The RDP client only offers connection and log on as a single step, so a
+ * warm session is for one {@link RDPTarget}, including its credentials, and
+ * is only handed out for an equal target. Each warm session runs its own RDP
+ * loop (drawing to its own {@link RDPDisplayDriver}) while it waits.
+ * <p>
+ * Targets added with {@link #addTarget(RDPTarget)} are kept warm from the
+ * start. Other targets are learnt as they are asked for, and kept warm until
+ * they have not been asked for within the idle time. Warm sessions that have
+ * waited for longer than the idle time are disconnected, so one is never
+ * handed out just as the server decides it has been idle for too long, and
+ * are not replaced until the target is asked for again.
+ * <p>
+ * Many servers only allow one session per user, and connecting another would
+ * disconnect the one being used. So unless more than one warm session per
+ * target is allowed, no session is connected for a target while one taken
+ * for it (or connected by the caller because none was ready) is still in
+ * use. Callers must {@link #release(RDPTarget)} each target they
+ * {@link #take(RDPTarget)}.
+ */
+public class RDPSessionPool implements Closeable {
+	final static Logger LOG = LoggerFactory.getLogger(RDPSessionPool.class);
+
+	final static long RETRY_TIME = TimeUnit.SECONDS.toMillis(30);
+
+	private final RDP2VNC app;
+	private final Map<RDPTarget, Slot> slots = new LinkedHashMap<RDPTarget, Slot>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private int size = 4;
+	private int perTarget = 1;
+	private long idleTime = TimeUnit.MINUTES.toMillis(5);
+	private ScheduledFuture<?> reaper;
+	private boolean closed;
+
+	private final static class Slot {
+		final LinkedList<PooledSession> idle = new LinkedList<PooledSession>();
+		boolean configured;
+		int connecting;
+		int inUse;
+		boolean expired;
+		long lastUsed;
+		long failed;
+	}
+
+	/**
+	 * A session taken from the pool. It is already connected and its RDP loop
+	 * is running, so {@link #run()} should be used instead of
+	 * {@link RDPSession#run()} to wait for it to end.
+	 */
+	public final static class PooledSession {
+		private final RDPSession session;
+		private final long created;
+		private final CountDownLatch ended = new CountDownLatch(1);
+		private IOException error;
+
+		PooledSession(RDPSession session) {
+			this.session = session;
+			this.created = System.currentTimeMillis();
+		}
+
+		public RDPSession getSession() {
+			return session;
+		}
+
+		public RDPDisplayDriver getDriver() {
+			return session.getDriver();
+		}
+
+		/**
+		 * Wait until the server disconnects or the session is closed.
+		 *
+		 * @throws IOException on any error other than disconnection
+		 */
+		public void run() throws IOException {
+			try {
+				ended.await();
+			} catch (InterruptedException ie) {
+				session.close();
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (error != null)
+				throw error;
+		}
+
+		boolean isEnded() {
+			return ended.getCount() == 0;
+		}
+
+		void loop() {
+			try {
+				session.run();
+			} catch (IOException ioe) {
+				error = ioe;
+			} finally {
+				ended.countDown();
+			}
+		}
+	}
+
+	public RDPSessionPool(RDP2VNC app) {
+		this.app = app;
+	}
+
+	/**
+	 * Set the maximum number of warm sessions (including those still
+	 * connecting) across all targets.
+	 *
+	 * @param size size
+	 */
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Set the maximum number of warm sessions for any one target.
+	 *
+	 * @param perTarget sessions per target
+	 */
+	public void setPerTarget(int perTarget) {
+		this.perTarget = perTarget;
+	}
+
+	/**
+	 * Set how long a warm session may wait to be used before it is replaced,
+	 * and how long a learnt target is kept warm after it was last asked for.
+	 * Must be set before {@link #start()}.
+	 *
+	 * @param idleTime idle time in milliseconds
+	 */
+	public void setIdleTime(long idleTime) {
+		this.idleTime = idleTime;
+	}
+
+	/**
+	 * Get how many sessions were taken from the pool.
+	 *
+	 * @return hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get how many times no warm session was available.
+	 *
+	 * @return misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Add a target to always keep warm.
+	 *
+	 * @param target target
+	 */
+	public synchronized void addTarget(RDPTarget target) {
+		slot(target).configured = true;
+	}
+
+	/**
+	 * Start connecting sessions and expiring idle ones.
+	 */
+	public void start() {
+		long period = Math.max(1000, idleTime / 4);
+		reaper = SharedScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expire();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+		LOG.info("Keeping up to " + size + " RDP sessions connected ahead of time (" + perTarget + " per target)");
+		fill();
+	}
+
+	/**
+	 * Take a warm session for a target if there is one. Either way, the target
+	 * is in use until {@link #release(RDPTarget)} is called, and another
+	 * session is only started for it if more than one per target is allowed.
+	 *
+	 * @param target target
+	 * @return session, or <code>null</code> if none are ready
+	 */
+	public PooledSession take(RDPTarget target) {
+		PooledSession session = null;
+		synchronized (this) {
+			if (closed)
+				return null;
+			Slot slot = slot(target);
+			slot.lastUsed = System.currentTimeMillis();
+			slot.expired = false;
+			slot.inUse++;
+			while (session == null && !slot.idle.isEmpty()) {
+				session = slot.idle.removeFirst();
+				if (session.isEnded())
+					session = null;
+			}
+		}
+		if (session == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		fill();
+		return session;
+	}
+
+	/**
+	 * Tell the pool the session for a target passed to
+	 * {@link #take(RDPTarget)} has ended, whether or not it came from the pool.
+	 * Once no sessions for the target are in use, it may be kept warm again.
+	 *
+	 * @param target target
+	 */
+	public void release(RDPTarget target) {
+		synchronized (this) {
+			Slot slot = slots.get(target);
+			if (slot == null || slot.inUse == 0)
+				return;
+			slot.inUse--;
+		}
+		fill();
+	}
+
+	/**
+	 * Stop starting new sessions and disconnect any that are not in use.
+	 */
+	@Override
+	public void close() {
+		List<PooledSession> toClose = new ArrayList<PooledSession>();
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			for (Slot slot : slots.values()) {
+				toClose.addAll(slot.idle);
+				slot.idle.clear();
+			}
+		}
+		if (reaper != null)
+			reaper.cancel(false);
+		for (PooledSession session : toClose)
+			session.getSession().close();
+		LOG.info("Session pool closed, " + hits.get() + " sessions were taken from the pool and " + misses.get()
+				+ " were not ready");
+	}
+
+	private Slot slot(RDPTarget target) {
+		Slot slot = slots.get(target);
+		if (slot == null) {
+			slot = new Slot();
+			slots.put(target, slot);
+		}
+		return slot;
+	}
+
+	private void fill() {
+		List<RDPTarget> toConnect = new ArrayList<RDPTarget>();
+		synchronized (this) {
+			if (closed)
+				return;
+			long now = System.currentTimeMillis();
+			int total = 0;
+			for (Slot slot : slots.values())
+				total += slot.idle.size() + slot.connecting;
+			for (Map.Entry<RDPTarget, Slot> en : slots.entrySet()) {
+				Slot slot = en.getValue();
+				if (slot.expired || (!slot.configured && now - slot.lastUsed > idleTime))
+					continue;
+				if (slot.inUse > 0 && perTarget < 2)
+					continue;
+				if (now - slot.failed < RETRY_TIME)
+					continue;
+				while (total < size && slot.idle.size() + slot.connecting < perTarget) {
+					slot.connecting++;
+					total++;
+					toConnect.add(en.getKey());
+				}
+			}
+		}
+		for (final RDPTarget target : toConnect) {
+			SharedScheduler.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					warm(target);
+				}
+			});
+		}
+	}
+
+	private void warm(RDPTarget target) {
+		PooledSession session;
+		try {
+			session = new PooledSession(app.createSession(target, app.createDisplayDriver()));
+			session.getSession().connect();
+		} catch (IOException ioe) {
+			LOG.warn("Failed to connect ahead of time to " + target + ", will retry in " + RETRY_TIME / 1000 + "s. "
+					+ ioe.getMessage());
+			synchronized (this) {
+				Slot slot = slot(target);
+				slot.connecting--;
+				slot.failed = System.currentTimeMillis();
+			}
+			return;
+		}
+		synchronized (this) {
+			Slot slot = slot(target);
+			slot.connecting--;
+			if (closed) {
+				session.getSession().close();
+				return;
+			}
+			slot.idle.add(session);
+		}
+		LOG.debug("Connected ahead of time to " + target);
+		session.loop();
+		boolean wasIdle;
+		synchronized (this) {
+			wasIdle = slot(target).idle.remove(session);
+		}
+		if (wasIdle) {
+			/* Disconnected before it was used, replace it */
+			LOG.debug("Warm session to " + target + " ended before it was used.");
+			fill();
+		}
+	}
+
+	private void expire() {
+		List<PooledSession> toClose = new ArrayList<PooledSession>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Slot> it = slots.values().iterator(); it.hasNext();) {
+				Slot slot = it.next();
+				for (Iterator<PooledSession> sit = slot.idle.iterator(); sit.hasNext();) {
+					PooledSession session = sit.next();
+					if (now - session.created > idleTime) {
+						sit.remove();
+						toClose.add(session);
+						slot.expired = true;
+					}
+				}
+				if (!slot.configured && slot.idle.isEmpty() && slot.connecting == 0 && slot.inUse == 0
+						&& now - slot.lastUsed > idleTime)
+					it.remove();
+			}
+		}
+		for (PooledSession session : toClose)
+			session.getSession().close();
+		/* Retry targets that failed to connect, expired ones are left alone */
+		fill();
+	}
+}
@@ -0,0 +1,123 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.Arrays;
+
+/**
+ * The address of an RDP server and the credentials to log on to it with.
+ */
+public class RDPTarget {
+	public final static int DEFAULT_PORT = 3389;
+
+	private final String address;
+	private final int port;
+	private String username;
+	private String domain = "";
+	private char[] password;
+
+	public RDPTarget(String address, int port) {
+		this.address = address.equalsIgnoreCase("localhost") ? "127.0.0.1" : address;
+		this.port = port;
+	}
+
+	/**
+	 * Parse a target in the format [&lt;address&gt;][:&lt;port&gt;], or just a
+	 * port number. The address defaults to 127.0.0.1, and the port to 3389.
+	 *
+	 * @param spec target specification
+	 * @return target
+	 * @throws IllegalArgumentException if the port is not a number
+	 */
+	public static RDPTarget parse(String spec) {
+		if (spec == null || spec.length() == 0)
+			return new RDPTarget("127.0.0.1", DEFAULT_PORT);
+		try {
+			// May just be a port number
+			return new RDPTarget("127.0.0.1", Integer.parseInt(spec));
+		} catch (NumberFormatException nfe) {
+			int idx = spec.indexOf(':');
+			if (idx == -1)
+				return new RDPTarget(spec, DEFAULT_PORT);
+			try {
+				return new RDPTarget(idx == 0 ? "127.0.0.1" : spec.substring(0, idx), Integer.parseInt(spec.substring(idx + 1)));
+			} catch (NumberFormatException nfe2) {
+				throw new IllegalArgumentException("Invalid port number.");
+			}
+		}
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public void setDomain(String domain) {
+		this.domain = domain == null ? "" : domain;
+	}
+
+	public char[] getPassword() {
+		return password;
+	}
+
+	public void setPassword(char[] password) {
+		this.password = password == null || password.length == 0 ? null : password;
+	}
+
+	/**
+	 * Create a copy of this target pointing at a different server, but with
+	 * the same credentials.
+	 *
+	 * @param address address
+	 * @param port port
+	 * @return target
+	 */
+	public RDPTarget withAddress(String address, int port) {
+		RDPTarget t = new RDPTarget(address, port);
+		t.username = username;
+		t.domain = domain;
+		t.password = password;
+		return t;
+	}
+
+	/**
+	 * Targets are equal if they are for the same server with the same
+	 * credentials.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof RDPTarget))
+			return false;
+		RDPTarget other = (RDPTarget) obj;
+		return port == other.port && address.equals(other.address) && domain.equals(other.domain)
+				&& (username == null ? other.username == null : username.equals(other.username))
+				&& Arrays.equals(password, other.password);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = address.hashCode() * 31 + port;
+		h = h * 31 + domain.hashCode();
+		return h * 31 + (username == null ? 0 : username.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return address + ":" + port;
+	}
+}
@@ -0,0 +1,183 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures the raw byte stream of an RDP connection for later replay with
+ * {@link RDPTraceServer}. The proxy listens on a loopback port, the RDP
+ * client is pointed at that instead of the real server, and everything is
+ * relayed to the real server while the data it sends is written to the
+ * trace file.
+ * <p>
+ * Only the number of bytes the client sends are written, not the bytes
+ * themselves, so credentials never end up in a trace. The replay server only
+ * needs the counts to keep to the same request and response order.
+ * <p>
+ * The trace is of the bytes on the wire, so is only useful if they are not
+ * encrypted with keys that will differ on replay. TLS and NLA must be
+ * disabled, and the server's encryption level must be <i>Low</i> (which only
+ * encrypts data from the client) or <i>None</i>.
+ * <p>
+ * A trace starts with the 8 byte magic <code>RDP2VNCT</code> and a 4 byte
+ * version. Each record then has a 1 byte direction, a 4 byte time
+ * (milliseconds since the connection was made), and a 4 byte length. Records
+ * from the server are followed by the data. All numbers are big endian.
+ */
+public class RDPTraceProxy implements Runnable, Closeable {
+	final static Logger LOG = LoggerFactory.getLogger(RDPTraceProxy.class);
+
+	final static byte[] MAGIC = { 'R', 'D', 'P', '2', 'V', 'N', 'C', 'T' };
+	final static int VERSION = 1;
+
+	final static int FROM_SERVER = 1;
+	final static int FROM_CLIENT = 2;
+
+	private final RDPTarget target;
+	private final File file;
+	private ServerSocket serverSocket;
+	private Socket client;
+	private Socket server;
+	private DataOutputStream out;
+	private long started;
+	private long serverBytes;
+	private long clientBytes;
+	private volatile boolean closed;
+
+	public RDPTraceProxy(RDPTarget target, File file) {
+		this.target = target;
+		this.file = file;
+	}
+
+	/**
+	 * Start listening for the RDP client.
+	 *
+	 * @return target the RDP client should connect to instead of the real one
+	 * @throws IOException on error
+	 */
+	public RDPTarget start() throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1);
+		Thread thread = new Thread(this, "RDPTraceProxy");
+		thread.setDaemon(true);
+		thread.start();
+		return target.withAddress("127.0.0.1", serverSocket.getLocalPort());
+	}
+
+	@Override
+	public void run() {
+		try {
+			client = serverSocket.accept();
+			serverSocket.close();
+			server = new Socket(target.getAddress(), target.getPort());
+			client.setTcpNoDelay(true);
+			server.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			started = System.currentTimeMillis();
+			LOG.info("Capturing RDP trace of " + target + " to " + file);
+			SharedScheduler.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					relay(client, server, FROM_CLIENT);
+				}
+			});
+			relay(server, client, FROM_SERVER);
+		} catch (IOException ioe) {
+			if (!closed)
+				LOG.error("RDP trace capture failed.", ioe);
+			close();
+		}
+	}
+
+	/**
+	 * Stop relaying and finish the trace.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		closeQuietly(serverSocket);
+		closeQuietly(client);
+		closeQuietly(server);
+		if (out != null) {
+			synchronized (out) {
+				closeQuietly(out);
+				LOG.info(String.format("Captured %d bytes from the server and %d from the client in %s.", serverBytes,
+						clientBytes, file));
+			}
+		}
+	}
+
+	private void relay(Socket from, Socket to, int direction) {
+		byte[] buf = new byte[65536];
+		try {
+			InputStream in = from.getInputStream();
+			OutputStream os = to.getOutputStream();
+			int r;
+			while ((r = in.read(buf)) != -1) {
+				synchronized (out) {
+					out.write(direction);
+					out.writeInt((int) (System.currentTimeMillis() - started));
+					out.writeInt(r);
+					if (direction == FROM_SERVER) {
+						out.write(buf, 0, r);
+						serverBytes += r;
+					} else
+						clientBytes += r;
+				}
+				os.write(buf, 0, r);
+				os.flush();
+			}
+		} catch (IOException ioe) {
+			if (!closed)
+				LOG.debug("Relay ended.", ioe);
+		} finally {
+			close();
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void closeQuietly(ServerSocket s) {
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
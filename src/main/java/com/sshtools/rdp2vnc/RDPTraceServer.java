@@ -0,0 +1,247 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stand-in RDP server that plays back a trace captured by
+ * {@link RDPTraceProxy}, so the whole pipeline (RDP decoding, drawing, the
+ * driver and the RFB server) can be exercised and timed without a real RDP
+ * server.
+ * <p>
+ * Before sending each chunk of server data, the server waits for the client
+ * to have sent as many bytes as it had at that point in the capture, so
+ * requests and responses stay in order. Client data is otherwise discarded.
+ * As the client may send slightly different amounts than when the trace was
+ * captured (a different user name, for example), it stops waiting once the
+ * client has been quiet for {@link #CLIENT_IDLE_MS}. The client should be
+ * configured the same way as it was for the capture (size, colour depth and
+ * security), as the server's responses were negotiated for that.
+ */
+public class RDPTraceServer implements Runnable, Closeable {
+	final static Logger LOG = LoggerFactory.getLogger(RDPTraceServer.class);
+
+	final static long CLIENT_IDLE_MS = 500;
+
+	private final File file;
+	private final Object lock = new Object();
+	private boolean realTime;
+	private ServerSocket serverSocket;
+	private Socket socket;
+	private long clientBytes;
+	private long lastClientRead;
+	private long serverBytes;
+	private long started;
+	private long elapsed;
+	private volatile boolean finished;
+	private volatile boolean closed;
+
+	public RDPTraceServer(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Set whether to wait between chunks for the time that passed when the
+	 * trace was captured. By default data is sent as fast as the client will
+	 * take it.
+	 *
+	 * @param realTime real time
+	 */
+	public void setRealTime(boolean realTime) {
+		this.realTime = realTime;
+	}
+
+	/**
+	 * Check the trace and start listening for the RDP client.
+	 *
+	 * @param target target to copy credentials from
+	 * @return target the RDP client should connect to
+	 * @throws IOException on error
+	 */
+	public RDPTarget start(RDPTarget target) throws IOException {
+		DataInputStream in = open();
+		in.close();
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1);
+		Thread thread = new Thread(this, "RDPTraceServer");
+		thread.setDaemon(true);
+		thread.start();
+		return target.withAddress("127.0.0.1", serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Get whether the whole trace has been sent.
+	 *
+	 * @return finished
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Get how many bytes of server data have been sent.
+	 *
+	 * @return bytes
+	 */
+	public long getServerBytes() {
+		return serverBytes;
+	}
+
+	/**
+	 * Get how long it took to send the whole trace.
+	 *
+	 * @return milliseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	@Override
+	public void run() {
+		DataInputStream in = null;
+		try {
+			socket = serverSocket.accept();
+			serverSocket.close();
+			socket.setTcpNoDelay(true);
+			lastClientRead = System.currentTimeMillis();
+			in = open();
+			SharedScheduler.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					drainClient();
+				}
+			});
+			LOG.info("Replaying RDP trace " + file);
+			play(in, socket.getOutputStream());
+			finished = true;
+			LOG.info(String.format("Replayed %d bytes of RDP trace in %dms (%.2f MB/s).", serverBytes, elapsed,
+					elapsed == 0 ? 0 : serverBytes / 1048.576d / elapsed));
+		} catch (InterruptedException ie) {
+		} catch (IOException ioe) {
+			if (!closed)
+				LOG.error("RDP trace replay failed.", ioe);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+			if (socket != null)
+				socket.close();
+		} catch (IOException ioe) {
+		}
+	}
+
+	private void play(DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+		byte[] buf = new byte[65536];
+		long expected = 0;
+		started = System.currentTimeMillis();
+		while (!closed) {
+			int direction;
+			try {
+				direction = in.readUnsignedByte();
+			} catch (EOFException eofe) {
+				break;
+			}
+			int time = in.readInt();
+			int length = in.readInt();
+			if (direction == RDPTraceProxy.FROM_CLIENT) {
+				expected += length;
+				continue;
+			}
+			if (direction != RDPTraceProxy.FROM_SERVER || length < 0)
+				throw new IOException(file + " is corrupt.");
+			if (buf.length < length)
+				buf = new byte[length];
+			in.readFully(buf, 0, length);
+			awaitClient(expected);
+			if (realTime) {
+				long wait = time - (System.currentTimeMillis() - started);
+				if (wait > 0)
+					Thread.sleep(wait);
+			}
+			out.write(buf, 0, length);
+			out.flush();
+			serverBytes += length;
+		}
+		elapsed = System.currentTimeMillis() - started;
+	}
+
+	private void awaitClient(long expected) throws InterruptedException {
+		synchronized (lock) {
+			while (!closed && clientBytes < expected) {
+				long idle = System.currentTimeMillis() - lastClientRead;
+				if (idle >= CLIENT_IDLE_MS)
+					break;
+				lock.wait(CLIENT_IDLE_MS - idle);
+			}
+		}
+	}
+
+	private void drainClient() {
+		byte[] buf = new byte[65536];
+		try {
+			InputStream in = socket.getInputStream();
+			int r;
+			while ((r = in.read(buf)) != -1) {
+				synchronized (lock) {
+					clientBytes += r;
+					lastClientRead = System.currentTimeMillis();
+					lock.notifyAll();
+				}
+			}
+		} catch (IOException ioe) {
+			if (!closed)
+				LOG.debug("Client read ended.", ioe);
+		} finally {
+			synchronized (lock) {
+				closed = true;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private DataInputStream open() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			byte[] magic = new byte[RDPTraceProxy.MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, RDPTraceProxy.MAGIC))
+				throw new IOException(file + " is not an RDP trace.");
+			int version = in.readInt();
+			if (version != RDPTraceProxy.VERSION)
+				throw new IOException(file + " is trace version " + version + ", only version " + RDPTraceProxy.VERSION
+						+ " is supported.");
+			return in;
+		} catch (IOException ioe) {
+			in.close();
+			throw ioe;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.Parser;
+
+/**
+ * Opens a number of simulated VNC viewers ({@link LoadTestClient}) against a
+ * running server, such as {@link RDP2VNC}, and reports the update throughput
+ * and latency each of them sees. Used to find out how many viewers one
+ * process can serve before latency suffers.
+ */
+public class RFBLoadTest {
+
+	private static final char OPT_HELP = '?';
+	private static final char OPT_CLIENTS = 'c';
+	private static final char OPT_DURATION = 'd';
+	private static final char OPT_ENCODINGS = 'e';
+	private static final char OPT_BPP = 'b';
+	private static final char OPT_FPS = 'f';
+	private static final char OPT_INPUT_RATE = 'i';
+	private static final char OPT_PASSWORD = 'w';
+	private static final char OPT_RAMP = 'r';
+	private static final char OPT_REPORT_INTERVAL = 'R';
+
+	private final static Map<String, Integer> ENCODINGS = new LinkedHashMap<String, Integer>();
+
+	static {
+		ENCODINGS.put("zrle", LoadTestClient.ZRLE);
+		ENCODINGS.put("hextile", LoadTestClient.HEXTILE);
+		ENCODINGS.put("rre", LoadTestClient.RRE);
+		ENCODINGS.put("copyrect", LoadTestClient.COPY_RECT);
+		ENCODINGS.put("raw", LoadTestClient.RAW);
+	}
+
+	private final List<LoadTestClient> clients = new ArrayList<LoadTestClient>();
+	private String host = "127.0.0.1";
+	private int port = 5900;
+	private int clientCount = 10;
+	private long duration = 60;
+	private int[] encodings;
+	private int bitsPerPixel = 32;
+	private long updateInterval;
+	private long inputInterval;
+	private long ramp = 100;
+	private long reportInterval = 10;
+	private char[] password;
+
+	protected int parseArguments(String[] args) {
+		Options options = new Options();
+		options.addOption(new Option(String.valueOf(OPT_HELP), "help", false, "Display help"));
+		options.addOption(new Option(String.valueOf(OPT_CLIENTS), "clients", true, "Number of clients. Defaults to 10."));
+		options.addOption(
+				new Option(String.valueOf(OPT_DURATION), "duration", true, "How long to run for in seconds. Defaults to 60."));
+		options.addOption(new Option(String.valueOf(OPT_ENCODINGS), "encodings", true,
+				"Comma separated list of encodings to ask for, most preferred first. May contain "
+						+ toCommaSeparatedString(ENCODINGS.keySet()) + ". Defaults to all of them."));
+		options.addOption(new Option(String.valueOf(OPT_BPP), "bpp", true,
+				"Bits per pixel to ask for, 8 (BGR233), 16 (RGB565) or 32 (RGB888). Defaults to 32."));
+		options.addOption(new Option(String.valueOf(OPT_FPS), "fps", true,
+				"Maximum updates per second each client requests, or 0 for as many as possible. Defaults to 0."));
+		options.addOption(new Option(String.valueOf(OPT_INPUT_RATE), "input-rate", true,
+				"Synthetic key and pointer events each client sends per second. Defaults to 0."));
+		options.addOption(new Option(String.valueOf(OPT_PASSWORD), "password", true, "VNC password, if required."));
+		options.addOption(new Option(String.valueOf(OPT_RAMP), "ramp", true,
+				"Milliseconds to wait between starting each client. Defaults to 100."));
+		options.addOption(new Option(String.valueOf(OPT_REPORT_INTERVAL), "report-interval", true,
+				"Seconds between progress reports, or 0 for none. Defaults to 10."));
+		Parser parser = new GnuParser();
+		try {
+			CommandLine cli = parser.parse(options, args);
+			if (cli.hasOption(OPT_HELP)) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp(getClass().getSimpleName() + " [<address>][:port]",
+						"Load test a VNC server with simulated clients", options, "Provided by SSHTOOLS Limited.", true);
+				return -1;
+			}
+			clientCount = parseInt(cli, OPT_CLIENTS, clientCount);
+			duration = parseInt(cli, OPT_DURATION, (int) duration);
+			bitsPerPixel = parseInt(cli, OPT_BPP, bitsPerPixel);
+			if (bitsPerPixel != 8 && bitsPerPixel != 16 && bitsPerPixel != 32)
+				throw new ParseException("Bits per pixel must be 8, 16 or 32.");
+			int fps = parseInt(cli, OPT_FPS, 0);
+			updateInterval = fps > 0 ? 1000 / fps : 0;
+			int inputRate = parseInt(cli, OPT_INPUT_RATE, 0);
+			inputInterval = inputRate > 0 ? Math.max(1, 1000 / inputRate) : 0;
+			ramp = parseInt(cli, OPT_RAMP, (int) ramp);
+			reportInterval = parseInt(cli, OPT_REPORT_INTERVAL, (int) reportInterval);
+			if (cli.hasOption(OPT_PASSWORD))
+				password = cli.getOptionValue(OPT_PASSWORD).toCharArray();
+			if (cli.hasOption(OPT_ENCODINGS)) {
+				String[] names = cli.getOptionValue(OPT_ENCODINGS).split(",");
+				encodings = new int[names.length + 2];
+				for (int i = 0; i < names.length; i++) {
+					Integer e = ENCODINGS.get(names[i].trim().toLowerCase());
+					if (e == null)
+						throw new ParseException("Unknown encoding " + names[i] + ". May be one of "
+								+ toCommaSeparatedString(ENCODINGS.keySet()));
+					encodings[i] = e;
+				}
+				encodings[names.length] = LoadTestClient.CURSOR;
+				encodings[names.length + 1] = LoadTestClient.DESKTOP_SIZE;
+			}
+			String[] remainingArgs = cli.getArgs();
+			if (remainingArgs.length > 1)
+				throw new ParseException("Expected at most a single argument containing [<address>][:port]");
+			else if (remainingArgs.length == 1) {
+				String spec = remainingArgs[0];
+				int idx = spec.indexOf(':');
+				try {
+					if (idx == -1) {
+						try {
+							port = Integer.parseInt(spec);
+						} catch (NumberFormatException nfe) {
+							host = spec;
+						}
+					} else {
+						if (idx > 0)
+							host = spec.substring(0, idx);
+						port = Integer.parseInt(spec.substring(idx + 1));
+					}
+				} catch (NumberFormatException nfe) {
+					throw new ParseException("Invalid port number.");
+				}
+			}
+			return 0;
+		} catch (ParseException pe) {
+			System.err.println(getClass().getName() + ": " + pe.getMessage() + " Use -? or --help for more information.");
+			return 2;
+		}
+	}
+
+	/**
+	 * Start the clients, wait for the duration and report.
+	 *
+	 * @param out where to write reports
+	 * @throws InterruptedException if interrupted
+	 */
+	public void run(PrintStream out) throws InterruptedException {
+		out.println(String.format("Starting %d clients against %s:%d for %ds", clientCount, host, port, duration));
+		for (int i = 0; i < clientCount; i++) {
+			LoadTestClient client = new LoadTestClient(i + 1, host, port);
+			if (encodings != null)
+				client.setEncodings(encodings);
+			client.setBitsPerPixel(bitsPerPixel);
+			client.setUpdateInterval(updateInterval);
+			client.setInputInterval(inputInterval);
+			client.setPassword(password);
+			clients.add(client);
+			Thread t = new Thread(client, "LoadTestClient" + client.getId());
+			t.setDaemon(true);
+			t.start();
+			if (ramp > 0)
+				Thread.sleep(ramp);
+		}
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(duration);
+		long now;
+		while ((now = System.currentTimeMillis()) < end) {
+			long wait = end - now;
+			if (reportInterval > 0)
+				wait = Math.min(wait, TimeUnit.SECONDS.toMillis(reportInterval));
+			Thread.sleep(wait);
+			if (reportInterval > 0 && System.currentTimeMillis() < end)
+				progress(out);
+		}
+		for (LoadTestClient client : clients)
+			client.close();
+		report(out);
+	}
+
+	private void progress(PrintStream out) {
+		long updates = 0, bytes = 0;
+		int running = 0;
+		for (LoadTestClient client : clients) {
+			updates += client.getUpdates();
+			bytes += client.getBytes();
+			if (client.getError() == null)
+				running++;
+		}
+		out.println(String.format("%d/%d clients running, %d updates, %.1f MB", running, clients.size(), updates,
+				bytes / 1048576d));
+	}
+
+	private void report(PrintStream out) {
+		String header = String.format("%-8s %8s %8s %8s %9s %8s %8s %8s %8s %8s %8s %8s", "Client", "Updates", "Upd/s",
+				"Rects", "MB", "MB/s", "p50ms", "p90ms", "p99ms", "In p50", "In p99", "Error");
+		out.println();
+		out.println(header);
+		Histogram allUpdates = new Histogram(LoadTestClient.LATENCY_BOUNDS_MS);
+		Histogram allInput = new Histogram(LoadTestClient.LATENCY_BOUNDS_MS);
+		long updates = 0, rects = 0, bytes = 0;
+		double updatesPerSecond = 0, bytesPerSecond = 0;
+		for (LoadTestClient client : clients) {
+			double secs = Math.max(1, client.getElapsed()) / 1000d;
+			row(out, String.valueOf(client.getId()), client.getUpdates(), client.getUpdates() / secs,
+					client.getRectangles(), client.getBytes(), client.getBytes() / secs, client.getUpdateLatency(),
+					client.getInputLatency(), client.getError() == null ? "" : client.getError().getClass().getSimpleName());
+			allUpdates.add(client.getUpdateLatency());
+			allInput.add(client.getInputLatency());
+			updates += client.getUpdates();
+			rects += client.getRectangles();
+			bytes += client.getBytes();
+			updatesPerSecond += client.getUpdates() / secs;
+			bytesPerSecond += client.getBytes() / secs;
+		}
+		row(out, "Total", updates, updatesPerSecond, rects, bytes, bytesPerSecond, allUpdates, allInput, "");
+	}
+
+	private static void row(PrintStream out, String name, long updates, double updatesPerSecond, long rects, long bytes,
+			double bytesPerSecond, Histogram latency, Histogram input, String error) {
+		out.println(String.format("%-8s %8d %8.1f %8d %9.1f %8.2f %8.1f %8.1f %8.1f %8.1f %8.1f %8s", name, updates,
+				updatesPerSecond, rects, bytes / 1048576d, bytesPerSecond / 1048576d, latency.getPercentileMs(50),
+				latency.getPercentileMs(90), latency.getPercentileMs(99), input.getPercentileMs(50),
+				input.getPercentileMs(99), error));
+	}
+
+	private static int parseInt(CommandLine cli, char opt, int defaultValue) throws ParseException {
+		String val = cli.getOptionValue(opt);
+		if (val == null)
+			return defaultValue;
+		try {
+			int i = Integer.parseInt(val);
+			if (i < 0)
+				throw new NumberFormatException();
+			return i;
+		} catch (NumberFormatException nfe) {
+			throw new ParseException("Invalid value for -" + opt + ".");
+		}
+	}
+
+	private static String toCommaSeparatedString(Iterable<String> values) {
+		StringBuilder b = new StringBuilder();
+		for (String v : values) {
+			if (b.length() > 0)
+				b.append(",");
+			b.append(v);
+		}
+		return b.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		RFBLoadTest test = new RFBLoadTest();
+		int result = test.parseArguments(args);
+		if (result == 0)
+			test.run(System.out);
+		else if (result > 0)
+			System.exit(result);
+	}
+}
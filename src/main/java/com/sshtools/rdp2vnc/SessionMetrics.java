@@ -0,0 +1,180 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters for a single RDP session, kept by its {@link RDPDisplayDriver}.
+ * Registered with {@link Metrics} while the session is running, which
+ * exposes them as an MBean and on the <code>/metrics</code> endpoint.
+ */
+public class SessionMetrics implements SessionMetricsMBean {
+
+	private final String name;
+	final StripedCounter damageEvents = new StripedCounter();
+	final StripedCounter pixelsDamaged = new StripedCounter();
+	final StripedCounter damageRectangles = new StripedCounter();
+	final StripedCounter clientUpdates = new StripedCounter();
+	final StripedCounter inputEvents = new StripedCounter();
+	final StripedCounter pointerShapes = new StripedCounter();
+	final StripedCounter pointerShapesUnchanged = new StripedCounter();
+	final AtomicInteger clients = new AtomicInteger();
+	final Histogram updateLatency = new Histogram();
+	volatile LatencyTracer latencyTracer;
+
+	public SessionMetrics(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get how many times the RDP server has painted an area.
+	 */
+	@Override
+	public long getDamageEvents() {
+		return damageEvents.get();
+	}
+
+	/**
+	 * Get the total area of everything the RDP server has painted.
+	 */
+	@Override
+	public long getPixelsDamaged() {
+		return pixelsDamaged.get();
+	}
+
+	/**
+	 * Get how many (possibly merged) damage rectangles have been passed on to
+	 * the RFB server.
+	 */
+	@Override
+	public long getDamageRectangles() {
+		return damageRectangles.get();
+	}
+
+	/**
+	 * Get how many damage rectangles have been delivered to individual VNC
+	 * clients through their own queues.
+	 */
+	@Override
+	public long getClientUpdates() {
+		return clientUpdates.get();
+	}
+
+	/**
+	 * Get how many key and pointer events have been received from VNC
+	 * clients.
+	 */
+	@Override
+	public long getInputEvents() {
+		return inputEvents.get();
+	}
+
+	/**
+	 * Get how many pointer shape changes have been passed on to the RFB
+	 * server.
+	 */
+	@Override
+	public long getPointerShapes() {
+		return pointerShapes.get();
+	}
+
+	/**
+	 * Get how many pointer shapes set by the RDP server were the same as the
+	 * current one, so were not passed on.
+	 */
+	@Override
+	public long getPointerShapesUnchanged() {
+		return pointerShapesUnchanged.get();
+	}
+
+	/**
+	 * Get how many VNC clients are currently connected.
+	 */
+	@Override
+	public int getClients() {
+		return clients.get();
+	}
+
+	/**
+	 * Get how many batches of coalesced damage have been delivered.
+	 */
+	@Override
+	public long getUpdateCount() {
+		return updateLatency.getCount();
+	}
+
+	/**
+	 * Get the mean time from the RDP server first painting an area to the
+	 * damage being passed on to the RFB server.
+	 */
+	@Override
+	public double getMeanUpdateLatencyMs() {
+		return updateLatency.getMeanMs();
+	}
+
+	public Histogram getUpdateLatency() {
+		return updateLatency;
+	}
+
+	/**
+	 * Get the input latency tracer, or <code>null</code> if tracing is not
+	 * enabled for this session.
+	 *
+	 * @return tracer
+	 */
+	public LatencyTracer getLatencyTracer() {
+		return latencyTracer;
+	}
+
+	/**
+	 * Get how many inputs have been traced through to an update.
+	 */
+	@Override
+	public long getInputLatencyTraces() {
+		LatencyTracer tracer = latencyTracer;
+		return tracer == null ? 0 : tracer.getTotal().getCount();
+	}
+
+	/**
+	 * Get the mean time from input to the RDP server painting.
+	 */
+	@Override
+	public double getMeanUpstreamLatencyMs() {
+		LatencyTracer tracer = latencyTracer;
+		return tracer == null ? 0 : tracer.getUpstream().getMeanMs();
+	}
+
+	/**
+	 * Get the mean time from the first paint after input to the damage being
+	 * passed to the RFB server.
+	 */
+	@Override
+	public double getMeanCoalesceLatencyMs() {
+		LatencyTracer tracer = latencyTracer;
+		return tracer == null ? 0 : tracer.getCoalesce().getMeanMs();
+	}
+
+	/**
+	 * Get the mean time from damage being passed to the RFB server to a
+	 * client's encoder reading it.
+	 */
+	@Override
+	public double getMeanDownstreamLatencyMs() {
+		LatencyTracer tracer = latencyTracer;
+		return tracer == null ? 0 : tracer.getDownstream().getMeanMs();
+	}
+
+	/**
+	 * Get the mean time from input to the resulting damage being delivered
+	 * to a client.
+	 */
+	@Override
+	public double getMeanInputLatencyMs() {
+		LatencyTracer tracer = latencyTracer;
+		return tracer == null ? 0 : tracer.getTotal().getMeanMs();
+	}
+}
@@ -0,0 +1,39 @@
+package com.sshtools.rdp2vnc;
+
+/**
+ * Management interface for {@link SessionMetrics}.
+ */
+public interface SessionMetricsMBean {
+
+	String getName();
+
+	long getDamageEvents();
+
+	long getPixelsDamaged();
+
+	long getDamageRectangles();
+
+	long getClientUpdates();
+
+	long getInputEvents();
+
+	long getPointerShapes();
+
+	long getPointerShapesUnchanged();
+
+	int getClients();
+
+	long getUpdateCount();
+
+	double getMeanUpdateLatencyMs();
+
+	long getInputLatencyTraces();
+
+	double getMeanUpstreamLatencyMs();
+
+	double getMeanCoalesceLatencyMs();
+
+	double getMeanDownstreamLatencyMs();
+
+	double getMeanInputLatencyMs();
+}
@@ -0,0 +1,314 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sshtools.javardp.graphics.Display;
+
+/**
+ * Plays back a recording made by {@link SessionRecorder} to a
+ * {@link Display}, such as an {@link RDPDisplayDriver}, either in real time or
+ * as fast as possible.
+ * <p>
+ * A recording starts with the 8 byte magic <code>RDP2VNCR</code>, a 4 byte
+ * version and the 8 byte time the recording started (milliseconds since the
+ * epoch). Each record then has a 1 byte type, a 4 byte time (milliseconds
+ * since the start), a 4 byte payload length and the payload. All numbers are
+ * big endian. Pixel data is deflated, as RGB for the frame and ARGB for
+ * pointer shapes.
+ * <ul>
+ * <li>End (0) - no more records. Also the value of unwritten space.</li>
+ * <li>Keyframe (1) - width, height, pixels.</li>
+ * <li>Rectangles (2) - count, then x, y, width, height for each, then the
+ * pixels for all of them.</li>
+ * <li>Cursor (3) - hotspot x, hotspot y, width, height, pixels.</li>
+ * <li>Resize (4) - width, height.</li>
+ * </ul>
+ */
+public class SessionPlayer implements Closeable {
+	final static Logger LOG = LoggerFactory.getLogger(SessionPlayer.class);
+
+	private final static int HEADER_SIZE = 20;
+	private final static int RECORD_HEADER_SIZE = 9;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long size;
+	private final long started;
+	private final Inflater inflater = new Inflater();
+	private MappedByteBuffer region;
+	private long regionStart;
+	private byte[] payload = new byte[0];
+	private byte[] bytes = new byte[0];
+	private int[] pixels = new int[0];
+	private int type;
+	private int time;
+	private int length;
+	private volatile boolean stopped;
+
+	public SessionPlayer(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			channel = raf.getChannel();
+			size = channel.size();
+			seek(0);
+			if (!available(HEADER_SIZE))
+				throw new IOException(file + " is not a session recording.");
+			byte[] magic = new byte[SessionRecorder.MAGIC.length];
+			region.get(magic);
+			if (!Arrays.equals(magic, SessionRecorder.MAGIC))
+				throw new IOException(file + " is not a session recording.");
+			int version = region.getInt();
+			if (version != SessionRecorder.VERSION)
+				throw new IOException(file + " is recording version " + version + ", only version "
+						+ SessionRecorder.VERSION + " is supported.");
+			started = region.getLong();
+		} catch (IOException ioe) {
+			raf.close();
+			throw ioe;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get when the recording was started.
+	 *
+	 * @return time in milliseconds since the epoch
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Play the whole recording.
+	 *
+	 * @param display display to draw to
+	 * @param realTime wait between records for the time that passed while
+	 *            recording, otherwise play as fast as possible
+	 * @throws IOException on error
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void play(Display display, boolean realTime) throws IOException, InterruptedException {
+		play(display, realTime, 0);
+	}
+
+	/**
+	 * Play the recording from a point in time. Playback starts at the last
+	 * keyframe at or before that time, and anything before the time itself is
+	 * played without waiting.
+	 *
+	 * @param display display to draw to
+	 * @param realTime wait between records for the time that passed while
+	 *            recording, otherwise play as fast as possible
+	 * @param from time in milliseconds from the start of the recording
+	 * @throws IOException on error
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void play(Display display, boolean realTime, long from) throws IOException, InterruptedException {
+		stopped = false;
+		seek(findKeyframe(from));
+		long base = -1;
+		long wallBase = 0;
+		while (!stopped && next()) {
+			read();
+			if (realTime && time >= from) {
+				if (base == -1) {
+					base = time;
+					wallBase = System.nanoTime();
+				} else {
+					long wait = TimeUnit.MILLISECONDS.toNanos(time - base) - (System.nanoTime() - wallBase);
+					if (wait > 0)
+						TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			apply(display);
+		}
+	}
+
+	/**
+	 * Stop playback after the current record.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		region = null;
+		inflater.end();
+		raf.close();
+	}
+
+	private long findKeyframe(long from) throws IOException {
+		long position = HEADER_SIZE;
+		seek(position);
+		while (next() && time <= from) {
+			if (type == SessionRecorder.KEYFRAME)
+				position = regionStart + region.position() - RECORD_HEADER_SIZE;
+			skip();
+		}
+		return position;
+	}
+
+	private void apply(Display display) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(payload, 0, length);
+		switch (type) {
+		case SessionRecorder.KEYFRAME: {
+			int width = buf.getInt();
+			int height = buf.getInt();
+			if (width != display.getDisplayWidth() || height != display.getDisplayHeight())
+				display.resizeDisplay(new Dimension(width, height));
+			int[] pixels = inflateRGB(buf, width * height);
+			display.setRGBNoConversion(0, 0, width, height, pixels, 0, width);
+			display.repaint(0, 0, width, height);
+			break;
+		}
+		case SessionRecorder.RECTANGLES: {
+			int count = buf.getInt();
+			int[] rects = new int[count * 4];
+			int total = 0;
+			for (int i = 0; i < rects.length; i += 4) {
+				rects[i] = buf.getInt();
+				rects[i + 1] = buf.getInt();
+				rects[i + 2] = buf.getInt();
+				rects[i + 3] = buf.getInt();
+				total += rects[i + 2] * rects[i + 3];
+			}
+			int[] pixels = inflateRGB(buf, total);
+			int offset = 0;
+			for (int i = 0; i < rects.length; i += 4) {
+				display.setRGBNoConversion(rects[i], rects[i + 1], rects[i + 2], rects[i + 3], pixels, offset,
+						rects[i + 2]);
+				display.repaint(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+				offset += rects[i + 2] * rects[i + 3];
+			}
+			break;
+		}
+		case SessionRecorder.CURSOR: {
+			int hotX = buf.getInt();
+			int hotY = buf.getInt();
+			int width = buf.getInt();
+			int height = buf.getInt();
+			byte[] bytes = inflate(buf, width * height * 4);
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			int[] pixels = pixels(width * height);
+			for (int i = 0, j = 0, n = width * height; i < n; i++, j += 4)
+				pixels[i] = (bytes[j] & 0xff) << 24 | (bytes[j + 1] & 0xff) << 16 | (bytes[j + 2] & 0xff) << 8
+						| (bytes[j + 3] & 0xff);
+			image.setRGB(0, 0, width, height, pixels, 0, width);
+			display.setCursor(display.createCursor("recorded", new Point(hotX, hotY), image));
+			break;
+		}
+		case SessionRecorder.RESIZE:
+			display.resizeDisplay(new Dimension(buf.getInt(), buf.getInt()));
+			break;
+		default:
+			LOG.warn("Skipping unknown record type " + type + " in " + file + ".");
+			break;
+		}
+	}
+
+	private int[] inflateRGB(ByteBuffer buf, int count) throws IOException {
+		byte[] bytes = inflate(buf, count * 3);
+		int[] pixels = pixels(count);
+		for (int i = 0, j = 0; i < count; i++, j += 3)
+			pixels[i] = 0xff000000 | (bytes[j] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8 | (bytes[j + 2] & 0xff);
+		return pixels;
+	}
+
+	private byte[] inflate(ByteBuffer buf, int length) throws IOException {
+		if (bytes.length < length)
+			bytes = new byte[length];
+		inflater.reset();
+		inflater.setInput(buf.array(), buf.position(), buf.remaining());
+		try {
+			int off = 0;
+			while (off < length) {
+				int n = inflater.inflate(bytes, off, length - off);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					throw new IOException("Truncated pixel data in " + file + ".");
+				off += n;
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Corrupt pixel data in " + file + ".", dfe);
+		}
+		return bytes;
+	}
+
+	private int[] pixels(int size) {
+		if (pixels.length < size)
+			pixels = new int[size];
+		return pixels;
+	}
+
+	/**
+	 * Read the next record header.
+	 *
+	 * @return false at the end of the recording
+	 */
+	private boolean next() throws IOException {
+		if (!available(RECORD_HEADER_SIZE))
+			return false;
+		type = region.get() & 0xff;
+		if (type == SessionRecorder.END)
+			return false;
+		time = region.getInt();
+		length = region.getInt();
+		if (length < 0 || !available(length)) {
+			LOG.warn("Recording " + file + " is truncated.");
+			return false;
+		}
+		return true;
+	}
+
+	private void read() {
+		if (payload.length < length)
+			payload = new byte[length];
+		region.get(payload, 0, length);
+	}
+
+	private void skip() {
+		region.position(region.position() + length);
+	}
+
+	private boolean available(int n) throws IOException {
+		if (region.remaining() >= n)
+			return true;
+		long position = regionStart + region.position();
+		if (position + n > size)
+			return false;
+		seek(position, n);
+		return true;
+	}
+
+	private void seek(long position) throws IOException {
+		seek(position, 0);
+	}
+
+	private void seek(long position, int needed) throws IOException {
+		regionStart = position;
+		region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+				Math.min(size - position, Math.max(SessionRecorder.REGION_SIZE, needed)));
+	}
+}
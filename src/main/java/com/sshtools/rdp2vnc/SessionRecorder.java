@@ -0,0 +1,442 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the screen of a session to a file, for auditing or later replay
+ * with {@link SessionPlayer}.
+ * <p>
+ * The driver only tells the recorder which areas have been painted, which
+ * just marks tiles in a {@link DamageAccumulator}, and queues pointer shape
+ * changes and resizes. Everything else happens on the recorder's own thread,
+ * which at each interval reads the pixels for the damaged areas, compresses
+ * them and appends them to the file. If it falls behind, damage is merged
+ * rather than queued, so the RDP thread is never held up.
+ * <p>
+ * The file is written through memory mapped regions of {@link #REGION_SIZE},
+ * and consists of a header followed by records (see {@link SessionPlayer}
+ * for the format). A full frame is written as a keyframe periodically and
+ * after each resize, followed by the current pointer shape, so replay can
+ * start at any keyframe.
+ */
+public class SessionRecorder implements Runnable, Closeable {
+	final static Logger LOG = LoggerFactory.getLogger(SessionRecorder.class);
+
+	final static byte[] MAGIC = { 'R', 'D', 'P', '2', 'V', 'N', 'C', 'R' };
+	final static int VERSION = 1;
+
+	final static int END = 0;
+	final static int KEYFRAME = 1;
+	final static int RECTANGLES = 2;
+	final static int CURSOR = 3;
+	final static int RESIZE = 4;
+
+	final static int REGION_SIZE = 16 * 1024 * 1024;
+	final static int DEFAULT_TILE_SIZE = 32;
+	final static int DEFAULT_MAX_RECTANGLES = 64;
+
+	private final RDPDisplayDriver driver;
+	private final File file;
+	private final DamageAccumulator damage;
+	private final Queue<Object> events = new ConcurrentLinkedQueue<Object>();
+	private final Object lock = new Object();
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final RecordBuffer record = new RecordBuffer();
+	private final long started;
+	private long interval = 100;
+	private long keyframeInterval = TimeUnit.SECONDS.toMillis(30);
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long lastKeyframe;
+	private boolean keyframeDue = true;
+	private Cursor cursor;
+	private int[] pixels = new int[0];
+	private byte[] bytes = new byte[0];
+	private byte[] deflated = new byte[65536];
+	private Thread thread;
+	private volatile boolean closed;
+
+	private final static class Resize {
+		final int width;
+		final int height;
+
+		Resize(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	private final static class Cursor {
+		final int hotX;
+		final int hotY;
+		final BufferedImage image;
+
+		Cursor(int hotX, int hotY, BufferedImage image) {
+			this.hotX = hotX;
+			this.hotY = hotY;
+			this.image = image;
+		}
+	}
+
+	private final static class RecordBuffer extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+
+		void writeInt(int v) {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+
+		void setInt(int index, int v) {
+			buf[index] = (byte) (v >>> 24);
+			buf[index + 1] = (byte) (v >>> 16);
+			buf[index + 2] = (byte) (v >>> 8);
+			buf[index + 3] = (byte) v;
+		}
+	}
+
+	public SessionRecorder(RDPDisplayDriver driver, File file) {
+		this.driver = driver;
+		this.file = file;
+		damage = new DamageAccumulator(driver.getDisplayWidth(), driver.getDisplayHeight(), DEFAULT_TILE_SIZE,
+				DEFAULT_MAX_RECTANGLES);
+		started = System.currentTimeMillis();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Set how often damaged areas are written. Damage within an interval is
+	 * merged. Must be set before {@link #start()}.
+	 *
+	 * @param interval interval in milliseconds
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Set how often a full frame is written. Must be set before
+	 * {@link #start()}.
+	 *
+	 * @param keyframeInterval interval in milliseconds
+	 */
+	public void setKeyframeInterval(long keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Create the file, write the header and start the recording thread.
+	 *
+	 * @throws IOException on error
+	 */
+	public void start() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+		region.put(MAGIC);
+		region.putInt(VERSION);
+		region.putLong(started);
+		thread = new Thread(this, "SessionRecorder");
+		thread.setDaemon(true);
+		thread.start();
+		LOG.info("Recording session to " + file);
+	}
+
+	/**
+	 * Called by the driver when an area has been painted.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param w width
+	 * @param h height
+	 */
+	public void damage(int x, int y, int w, int h) {
+		damage.add(x, y, w, h);
+	}
+
+	/**
+	 * Called by the driver when the whole display should be recorded again.
+	 */
+	public void damageAll() {
+		damage.markAll();
+	}
+
+	/**
+	 * Called by the driver when the pointer shape changes. The image must not
+	 * be modified afterwards.
+	 *
+	 * @param hotX hotspot x
+	 * @param hotY hotspot y
+	 * @param image pointer image
+	 */
+	public void cursor(int hotX, int hotY, BufferedImage image) {
+		if (image != null)
+			events.add(new Cursor(hotX, hotY, image));
+	}
+
+	/**
+	 * Called by the driver when the display has been resized.
+	 *
+	 * @param width width
+	 * @param height height
+	 */
+	public void resize(int width, int height) {
+		damage.resize(width, height);
+		events.add(new Resize(width, height));
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				synchronized (lock) {
+					if (!closed)
+						lock.wait(interval);
+				}
+				write();
+			}
+			/* Catch anything that happened since the last interval */
+			write();
+		} catch (InterruptedException ie) {
+		} catch (Exception e) {
+			LOG.error("Recording to " + file + " failed, stopping.", e);
+			closed = true;
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Stop recording, writing anything outstanding and closing the file.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		Thread thread = this.thread;
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void write() throws IOException {
+		Object event;
+		while ((event = events.poll()) != null) {
+			if (event instanceof Resize) {
+				Resize r = (Resize) event;
+				begin(RESIZE);
+				record.writeInt(r.width);
+				record.writeInt(r.height);
+				end();
+				keyframeDue = true;
+			} else {
+				cursor = (Cursor) event;
+				writeCursor(cursor);
+			}
+		}
+		long now = System.currentTimeMillis();
+		if (keyframeDue || now - lastKeyframe >= keyframeInterval) {
+			keyframeDue = false;
+			lastKeyframe = now;
+			damage.drain();
+			writeKeyframe();
+			if (cursor != null)
+				writeCursor(cursor);
+		} else {
+			List<Rectangle> rects = damage.drain();
+			if (!rects.isEmpty())
+				writeRectangles(rects);
+		}
+	}
+
+	private void writeKeyframe() throws IOException {
+		int width = driver.getDisplayWidth();
+		int height = driver.getDisplayHeight();
+		int[] pixels = pixels(width * height);
+		driver.getPixels(new Rectangle(0, 0, width, height), pixels, 0, width);
+		begin(KEYFRAME);
+		record.writeInt(width);
+		record.writeInt(height);
+		deflateRGB(pixels, width * height);
+		end();
+	}
+
+	private void writeRectangles(List<Rectangle> rects) throws IOException {
+		/*
+		 * The display may have been resized since the damage was added, and
+		 * the resize will not be seen until the next interval, so only read
+		 * what is still on the display
+		 */
+		Rectangle bounds = new Rectangle(0, 0, driver.getDisplayWidth(), driver.getDisplayHeight());
+		for (Iterator<Rectangle> it = rects.iterator(); it.hasNext();) {
+			Rectangle r = it.next();
+			Rectangle.intersect(r, bounds, r);
+			if (r.isEmpty())
+				it.remove();
+		}
+		if (rects.isEmpty())
+			return;
+		int total = 0;
+		for (Rectangle r : rects)
+			total += r.width * r.height;
+		int[] pixels = pixels(total);
+		begin(RECTANGLES);
+		record.writeInt(rects.size());
+		int offset = 0;
+		for (Rectangle r : rects) {
+			record.writeInt(r.x);
+			record.writeInt(r.y);
+			record.writeInt(r.width);
+			record.writeInt(r.height);
+			driver.getPixels(r, pixels, offset, r.width);
+			offset += r.width * r.height;
+		}
+		deflateRGB(pixels, total);
+		end();
+	}
+
+	private void writeCursor(Cursor cursor) throws IOException {
+		int width = cursor.image.getWidth();
+		int height = cursor.image.getHeight();
+		int[] pixels = pixels(width * height);
+		cursor.image.getRGB(0, 0, width, height, pixels, 0, width);
+		begin(CURSOR);
+		record.writeInt(cursor.hotX);
+		record.writeInt(cursor.hotY);
+		record.writeInt(width);
+		record.writeInt(height);
+		byte[] bytes = bytes(width * height * 4);
+		for (int i = 0, j = 0, n = width * height; i < n; i++) {
+			int p = pixels[i];
+			bytes[j++] = (byte) (p >>> 24);
+			bytes[j++] = (byte) (p >>> 16);
+			bytes[j++] = (byte) (p >>> 8);
+			bytes[j++] = (byte) p;
+		}
+		deflate(bytes, width * height * 4);
+		end();
+	}
+
+	private void begin(int type) {
+		record.reset();
+		record.write(type);
+		record.writeInt((int) (System.currentTimeMillis() - started));
+		/* Length, filled in by end() */
+		record.writeInt(0);
+	}
+
+	private void end() throws IOException {
+		int size = record.size();
+		record.setInt(5, size - 9);
+		if (region.remaining() < size + 1) {
+			/*
+			 * Map the next region from the end of this one. Unwritten space is
+			 * zero filled, which reads as an end record if the recording is
+			 * cut short
+			 */
+			long position = regionStart + region.position();
+			region.force();
+			regionStart = position;
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, size + 1));
+		}
+		region.put(record.buffer(), 0, size);
+	}
+
+	private void deflateRGB(int[] pixels, int count) {
+		byte[] bytes = bytes(count * 3);
+		for (int i = 0, j = 0; i < count; i++) {
+			int p = pixels[i];
+			bytes[j++] = (byte) (p >> 16);
+			bytes[j++] = (byte) (p >> 8);
+			bytes[j++] = (byte) p;
+		}
+		deflate(bytes, count * 3);
+	}
+
+	private void deflate(byte[] bytes, int length) {
+		deflater.reset();
+		deflater.setInput(bytes, 0, length);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(deflated);
+			record.write(deflated, 0, n);
+		}
+	}
+
+	private int[] pixels(int size) {
+		if (pixels.length < size)
+			pixels = new int[size];
+		return pixels;
+	}
+
+	private byte[] bytes(int size) {
+		if (bytes.length < size)
+			bytes = new byte[size];
+		return bytes;
+	}
+
+	private void finish() {
+		try {
+			if (region != null) {
+				long length = regionStart + region.position();
+				if (region.remaining() > 0)
+					region.put((byte) END);
+				region.force();
+				region = null;
+				/*
+				 * Mapped regions cannot be unmapped explicitly, so on some
+				 * platforms the file cannot be truncated until they have been
+				 * garbage collected. Readers stop at the end record anyway.
+				 */
+				try {
+					channel.truncate(length + 1);
+				} catch (IOException ioe) {
+					LOG.debug("Could not truncate recording.", ioe);
+				}
+			}
+		} catch (Exception e) {
+			LOG.error("Failed to finish recording to " + file + ".", e);
+		} finally {
+			deflater.end();
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+			LOG.info("Finished recording session to " + file);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.sshtools.rdp2vnc;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Used in gateway mode to decide which RDP server an incoming VNC connection
+ * should be bridged to. Implementations must have a public no-argument
+ * constructor if they are to be selected using the
+ * <code>--gateway-resolver</code> option.
+ */
+public interface SessionResolver {
+
+	/**
+	 * Initialise the resolver.
+	 *
+	 * @param defaultTarget the target given on the command line, including any
+	 *            credentials given on the command line.
+	 * @throws IOException on error
+	 */
+	void init(RDPTarget defaultTarget) throws IOException;
+
+	/**
+	 * Choose the RDP server for a newly accepted VNC connection. Nothing will
+	 * have been read from or written to the socket yet.
+	 *
+	 * @param socket VNC connection
+	 * @return target, or <code>null</code> to refuse the connection
+	 * @throws IOException on error
+	 */
+	RDPTarget resolve(Socket socket) throws IOException;
+}
@@ -0,0 +1,65 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process wide scheduler for the small, short lived timed tasks the bridge
+ * needs (such as flushing accumulated damage), so that each session does not
+ * need its own timer thread, and a process wide pool for long running tasks
+ * such as session loops. All threads are daemons.
+ */
+public class SharedScheduler {
+
+	private static ScheduledExecutorService scheduler;
+	private static ExecutorService executor;
+
+	private SharedScheduler() {
+	}
+
+	/**
+	 * Get the shared scheduler, creating it if required.
+	 *
+	 * @return scheduler
+	 */
+	public static synchronized ScheduledExecutorService get() {
+		if (scheduler == null) {
+			final AtomicInteger seq = new AtomicInteger();
+			scheduler = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "RDP2VNCScheduler" + seq.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Get the shared pool for long running tasks, creating it if required.
+	 * Threads are created as needed and reused when idle.
+	 *
+	 * @return executor
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger seq = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RDP2VNCWorker" + seq.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,154 @@
+package com.sshtools.rdp2vnc;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Double buffered, consistent copies of a {@link FrameBuffer} for RFB encoders
+ * to read from, while the RDP thread carries on writing to the live frame
+ * buffer.
+ * <p>
+ * Each time damage is flushed, the damaged areas are copied from the live
+ * frame buffer into the spare snapshot, which is then atomically published.
+ * The previously published snapshot becomes the new spare. As the spare is
+ * always one publish behind, both the previous and the current damage are
+ * copied into it. Neither the RDP thread nor readers ever wait on a lock.
+ * <p>
+ * Readers {@link #acquire()} the published snapshot, which retains it, and
+ * release it when they are done. A spare that is still retained by a reader
+ * is never written to. Instead it is left to its readers, and a new spare is
+ * copied from the live frame buffer.
+ * <p>
+ * Snapshots are kept on or off the heap, as the live frame buffer is. When
+ * its size or where it is kept changes, new snapshots are created rather than
+ * resizing the old ones, so any encoders still using the old snapshot keep a
+ * stable image.
+ * <p>
+ * A snapshot is only consistent if the live frame buffer is not drawn to
+ * while it is copied. Publish from the thread that draws, between drawing
+ * operations, or pass a {@link Guard} that detects drawing that happened
+ * during the copy, in which case nothing is published.
+ */
+public class SnapshotBuffer {
+
+	private volatile FrameBuffer published;
+	private FrameBuffer spare;
+	private List<Rectangle> previous = new ArrayList<Rectangle>();
+
+	/**
+	 * Checks, once damage has been copied from the live frame buffer, that it
+	 * was not drawn to while it was being copied.
+	 */
+	public interface Guard {
+		/**
+		 * Get whether the live frame buffer may have been drawn to since the
+		 * copy started.
+		 *
+		 * @return drawn to
+		 */
+		boolean isDrawnTo();
+	}
+
+	public SnapshotBuffer(FrameBuffer live) {
+		published = copyOf(live);
+		spare = copyOf(live);
+	}
+
+	/**
+	 * Get the most recently published snapshot and retain it. The returned
+	 * frame buffer must only be read from, and must be released with
+	 * {@link FrameBuffer#release()} once reading is done. It will not be
+	 * written to until then.
+	 *
+	 * @return snapshot
+	 */
+	public FrameBuffer acquire() {
+		while (true) {
+			FrameBuffer fb = published;
+			if (fb.retain()) {
+				/*
+				 * If it was replaced before being retained, the publisher may
+				 * already be writing to it
+				 */
+				if (fb == published)
+					return fb;
+				fb.release();
+			}
+		}
+	}
+
+	/**
+	 * Copy damaged areas from the live frame buffer and publish a new
+	 * snapshot. The live frame buffer must not be drawn to meanwhile.
+	 *
+	 * @param live live frame buffer
+	 * @param damage damaged areas since last publish
+	 */
+	public void publish(FrameBuffer live, List<Rectangle> damage) {
+		publish(live, damage, null);
+	}
+
+	/**
+	 * Copy damaged areas from the live frame buffer and publish a new
+	 * snapshot, unless the guard finds the live frame buffer was drawn to
+	 * while copying. In that case nothing is published, and the same damage
+	 * must be published again later.
+	 *
+	 * @param live live frame buffer
+	 * @param damage damaged areas since last publish
+	 * @param guard guard, or <code>null</code> if the caller knows nothing is
+	 *            drawing
+	 * @return <code>false</code> if the copy was discarded
+	 */
+	public synchronized boolean publish(FrameBuffer live, List<Rectangle> damage, Guard guard) {
+		FrameBuffer next = spare;
+		FrameBuffer current = published;
+		if (next.getWidth() != live.getWidth() || next.getHeight() != live.getHeight() || next.getType() != live.getType()
+				|| next.isDirect() != live.isDirect()) {
+			FrameBuffer resized = copyOf(live);
+			if (guard != null && guard.isDrawnTo()) {
+				resized.dispose();
+				return false;
+			}
+			next.dispose();
+			spare = copyOf(resized);
+			previous = new ArrayList<Rectangle>();
+			published = resized;
+			current.dispose();
+			return true;
+		}
+		if (next.isRetained()) {
+			/* Readers still have the spare, leave it to them */
+			FrameBuffer copy = copyOf(live);
+			if (guard != null && guard.isDrawnTo()) {
+				copy.dispose();
+				return false;
+			}
+			next.dispose();
+			next = copy;
+		} else {
+			for (Rectangle r : previous)
+				next.copyArea(live, r.x, r.y, r.width, r.height);
+			for (Rectangle r : damage)
+				next.copyArea(live, r.x, r.y, r.width, r.height);
+			if (guard != null && guard.isDrawnTo()) {
+				/* The spare now has some of this damage, so copy it again next time */
+				previous.addAll(damage);
+				return false;
+			}
+		}
+		spare = current;
+		published = next;
+		previous = new ArrayList<Rectangle>(damage);
+		return true;
+	}
+
+	private static FrameBuffer copyOf(FrameBuffer live) {
+		/* Snapshots are as large as the desktop, so live where it does */
+		FrameBuffer fb = live.isDirect() ? FrameBuffer.createDirect(live.getWidth(), live.getHeight(), live.getType())
+				: FrameBuffer.create(live.getWidth(), live.getHeight(), live.getType());
+		fb.copyArea(live, 0, 0, live.getWidth(), live.getHeight());
+		return fb;
+	}
+}
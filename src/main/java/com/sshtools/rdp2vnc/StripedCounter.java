@@ -0,0 +1,47 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on a single
+ * memory location. Each thread adds to one of a number of stripes chosen by
+ * its thread ID, and the stripes are summed when the value is read. Stripes
+ * are spaced a cache line apart so they do not share one.
+ */
+public class StripedCounter {
+	private final static int SPACING = 8;
+	private final static int STRIPES;
+
+	static {
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+		STRIPES = Math.min(64, stripes);
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long n) {
+		cells.addAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * SPACING, n);
+	}
+
+	/**
+	 * Get the current total. This is not an atomic snapshot if other threads
+	 * are adding at the same time.
+	 *
+	 * @return total
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * SPACING);
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(get());
+	}
+}
@@ -0,0 +1,185 @@
+package com.sshtools.rdp2vnc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers a 64 bit hash of the content of each tile of a
+ * {@link FrameBuffer}, so that damage for tiles whose pixels did not actually
+ * change can be dropped before it reaches any clients. RDP servers frequently
+ * repaint areas with exactly the same content (caret blinks, full repaints
+ * after focus changes and so on).
+ * <p>
+ * Hits (tiles that were damaged but unchanged) and misses (tiles that really
+ * did change) are counted so the saving can be monitored.
+ */
+public class TileHashes {
+
+	private final int tileSize;
+	private int cols;
+	private int rows;
+	private long[] hashes;
+	private boolean[] known;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong suppressedPixels = new AtomicLong();
+
+	public TileHashes(int width, int height, int tileSize) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be at least 1.");
+		this.tileSize = tileSize;
+		resize(width, height);
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Get the number of damaged tiles that turned out to be unchanged, and so
+	 * were not sent.
+	 *
+	 * @return hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of damaged tiles that had really changed.
+	 *
+	 * @return misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the total number of pixels in tiles that were not sent because they
+	 * were unchanged.
+	 *
+	 * @return suppressed pixels
+	 */
+	public long getSuppressedPixels() {
+		return suppressedPixels.get();
+	}
+
+	/**
+	 * Change the size of the area being tracked. All hashes are forgotten, so
+	 * the next check of every tile will report it as changed.
+	 *
+	 * @param width new width
+	 * @param height new height
+	 */
+	public synchronized void resize(int width, int height) {
+		cols = (Math.max(width, 1) + tileSize - 1) / tileSize;
+		rows = (Math.max(height, 1) + tileSize - 1) / tileSize;
+		hashes = new long[cols * rows];
+		known = new boolean[cols * rows];
+	}
+
+	/**
+	 * Forget all hashes, so the next check of every tile will report it as
+	 * changed.
+	 */
+	public synchronized void invalidate() {
+		known = new boolean[cols * rows];
+	}
+
+	/**
+	 * Forget the hashes of the tiles covering a rectangle, so their next check
+	 * will report them as changed.
+	 *
+	 * @param x x
+	 * @param y y
+	 * @param w width
+	 * @param h height
+	 */
+	public synchronized void invalidate(int x, int y, int w, int h) {
+		if (w < 1 || h < 1)
+			return;
+		int c0 = Math.max(x, 0) / tileSize;
+		int r0 = Math.max(y, 0) / tileSize;
+		int c1 = Math.min((x + w - 1) / tileSize, cols - 1);
+		int r1 = Math.min((y + h - 1) / tileSize, rows - 1);
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++)
+				known[r * cols + c] = false;
+		}
+	}
+
+	/**
+	 * Check whether any of the tiles covering a rectangle have changed since
+	 * they were last checked. Every tile is checked (and its hash updated),
+	 * even after a changed one has been found.
+	 *
+	 * @param frameBuffer frame buffer
+	 * @param x x
+	 * @param y y
+	 * @param w width
+	 * @param h height
+	 * @return changed
+	 */
+	public boolean isAnyChanged(FrameBuffer frameBuffer, int x, int y, int w, int h) {
+		int fw = frameBuffer.getWidth();
+		int fh = frameBuffer.getHeight();
+		int x2 = Math.min(x + w, fw);
+		int y2 = Math.min(y + h, fh);
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if (x2 <= x || y2 <= y)
+			return false;
+		boolean changed = false;
+		int c0 = x / tileSize;
+		int c1 = (x2 - 1) / tileSize;
+		int r1 = (y2 - 1) / tileSize;
+		for (int r = y / tileSize; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				int tx = c * tileSize;
+				int ty = r * tileSize;
+				if (isChanged(frameBuffer, tx, ty, Math.min(tileSize, fw - tx), Math.min(tileSize, fh - ty)))
+					changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Check whether a single tile has changed since it was last checked, and
+	 * remember its new hash.
+	 *
+	 * @param frameBuffer frame buffer
+	 * @param x x of tile
+	 * @param y y of tile
+	 * @param w width of tile
+	 * @param h height of tile
+	 * @return changed
+	 */
+	public boolean isChanged(FrameBuffer frameBuffer, int x, int y, int w, int h) {
+		long hash = frameBuffer.hash(x, y, w, h);
+		boolean changed;
+		synchronized (this) {
+			int col = x / tileSize;
+			int idx = (y / tileSize) * cols + col;
+			if (col >= cols || idx >= hashes.length) {
+				/* Resized while hashing */
+				return true;
+			}
+			changed = !known[idx] || hashes[idx] != hash;
+			hashes[idx] = hash;
+			known[idx] = true;
+		}
+		if (changed)
+			misses.incrementAndGet();
+		else {
+			hits.incrementAndGet();
+			suppressedPixels.addAndGet((long) w * h);
+		}
+		return changed;
+	}
+
+	@Override
+	public String toString() {
+		return "TileHashes [tileSize=" + tileSize + ", hits=" + hits + ", misses=" + misses + ", suppressedPixels="
+				+ suppressedPixels + "]";
+	}
+}
@@ -0,0 +1,142 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.rfbserver.DisplayDriver;
+import com.sshtools.rfbserver.DisplayDriver.DamageListener;
+
+public class ClientDamageQueueTest {
+
+	private final static int SIZE = 256;
+	private final static int TILE_SIZE = 16;
+	private final static int MAX_RECTANGLES = 4;
+
+	private ExecutorService executor;
+
+	/**
+	 * Records the damage it receives, optionally blocking on the first
+	 * rectangle until released.
+	 */
+	private static class Listener implements DamageListener {
+		final BlockingQueue<Rectangle> received = new LinkedBlockingQueue<Rectangle>();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release;
+
+		Listener(boolean block) {
+			release = new CountDownLatch(block ? 1 : 0);
+		}
+
+		@Override
+		public void damage(DisplayDriver driver, String name, Rectangle rectangle, int preferredEncoding) {
+			received.add(rectangle);
+			entered.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testSlowListenerDoesNotBlockOthers() throws Exception {
+		Listener slow = new Listener(true);
+		Listener fast = new Listener(false);
+		ClientDamageQueue slowQueue = queue(slow);
+		ClientDamageQueue fastQueue = queue(fast);
+
+		damage(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE), slowQueue, fastQueue);
+		assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+		assertEquals(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE), fast.received.poll(5, TimeUnit.SECONDS));
+
+		/* The slow listener is still stuck on its first rectangle */
+		List<Rectangle> damaged = new ArrayList<Rectangle>();
+		for (int i = 0; i < 32; i++) {
+			int x = (i * 7 % 16) * TILE_SIZE;
+			int y = (i * 5 % 16) * TILE_SIZE;
+			Rectangle r = new Rectangle(x, y, TILE_SIZE, TILE_SIZE);
+			damaged.add(r);
+			damage(r, slowQueue, fastQueue);
+		}
+		Rectangle last = damaged.get(damaged.size() - 1);
+		List<Rectangle> fastReceived = new ArrayList<Rectangle>();
+		while (!covers(fastReceived, last)) {
+			Rectangle r = fast.received.poll(5, TimeUnit.SECONDS);
+			assertNotNull("Fast listener did not receive its damage", r);
+			fastReceived.add(r);
+		}
+		assertEquals(1, slow.received.size());
+		assertTrue(slowQueue.isPending());
+
+		/* Once released, the slow listener gets its backlog merged */
+		slow.release.countDown();
+		List<Rectangle> slowReceived = new ArrayList<Rectangle>();
+		slow.received.take();
+		while (slowReceived.size() < MAX_RECTANGLES) {
+			Rectangle r = slow.received.poll(500, TimeUnit.MILLISECONDS);
+			if (r == null)
+				break;
+			slowReceived.add(r);
+		}
+		assertFalse(slowReceived.isEmpty());
+		assertNull(slow.received.poll(200, TimeUnit.MILLISECONDS));
+		for (Rectangle r : damaged)
+			assertTrue(r + " was not delivered", covers(slowReceived, r));
+		assertFalse(slowQueue.isPending());
+	}
+
+	@Test
+	public void testClosedQueueDeliversNothing() throws Exception {
+		Listener listener = new Listener(false);
+		ClientDamageQueue queue = queue(listener);
+		queue.close();
+		damage(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE), queue);
+		assertNull(listener.received.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	private ClientDamageQueue queue(DamageListener listener) {
+		return new ClientDamageQueue(null, listener, new DamageAccumulator(SIZE, SIZE, TILE_SIZE, MAX_RECTANGLES),
+				executor, new SessionMetrics("test"));
+	}
+
+	private static void damage(Rectangle r, ClientDamageQueue... queues) {
+		for (ClientDamageQueue queue : queues)
+			queue.damage(null, "Repaint", r, -1);
+	}
+
+	private static boolean covers(List<Rectangle> rects, Rectangle r) {
+		for (Rectangle c : rects) {
+			if (c.contains(r))
+				return true;
+		}
+		return false;
+	}
+}
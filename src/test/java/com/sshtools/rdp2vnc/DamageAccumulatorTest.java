@@ -0,0 +1,94 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DamageAccumulatorTest {
+
+	@Test
+	public void testEmpty() {
+		DamageAccumulator acc = new DamageAccumulator(100, 100, 10, 8);
+		assertFalse(acc.isDamaged());
+		assertTrue(acc.drain().isEmpty());
+	}
+
+	@Test
+	public void testSnapsToTiles() {
+		DamageAccumulator acc = new DamageAccumulator(100, 100, 10, 8);
+		assertTrue(acc.add(12, 13, 5, 5));
+		assertFalse(acc.add(14, 14, 1, 1));
+		assertTrue(acc.isDamaged());
+		List<Rectangle> rects = acc.drain();
+		assertEquals(1, rects.size());
+		assertEquals(new Rectangle(10, 10, 10, 10), rects.get(0));
+		assertFalse(acc.isDamaged());
+		assertTrue(acc.drain().isEmpty());
+	}
+
+	@Test
+	public void testClipsToArea() {
+		DamageAccumulator acc = new DamageAccumulator(95, 95, 10, 8);
+		assertFalse(acc.add(100, 100, 10, 10));
+		assertFalse(acc.add(-20, 0, 10, 10));
+		acc.add(85, 85, 50, 50);
+		assertEquals(new Rectangle(80, 80, 15, 15), acc.drain().get(0));
+	}
+
+	@Test
+	public void testMergesRows() {
+		DamageAccumulator acc = new DamageAccumulator(100, 100, 10, 8);
+		acc.add(10, 10, 30, 10);
+		acc.add(10, 20, 30, 10);
+		acc.add(10, 30, 30, 10);
+		List<Rectangle> rects = acc.drain();
+		assertEquals(1, rects.size());
+		assertEquals(new Rectangle(10, 10, 30, 30), rects.get(0));
+	}
+
+	@Test
+	public void testMaxRectangles() {
+		DamageAccumulator acc = new DamageAccumulator(100, 100, 10, 3);
+		for (int i = 0; i < 10; i += 2)
+			acc.add(i * 10, i * 10, 10, 10);
+		List<Rectangle> rects = acc.drain();
+		assertEquals(3, rects.size());
+		for (int i = 0; i < 10; i += 2) {
+			Rectangle damaged = new Rectangle(i * 10, i * 10, 10, 10);
+			boolean covered = false;
+			for (Rectangle r : rects)
+				covered |= r.contains(damaged);
+			assertTrue(damaged + " not covered", covered);
+		}
+	}
+
+	@Test
+	public void testFilter() {
+		DamageAccumulator acc = new DamageAccumulator(100, 100, 10, 8);
+		acc.add(0, 0, 20, 10);
+		List<Rectangle> rects = acc.drain(new DamageAccumulator.TileFilter() {
+			@Override
+			public boolean isChanged(int x, int y, int w, int h) {
+				return x != 0;
+			}
+		});
+		assertEquals(1, rects.size());
+		assertEquals(new Rectangle(10, 0, 10, 10), rects.get(0));
+	}
+
+	@Test
+	public void testResize() {
+		DamageAccumulator acc = new DamageAccumulator(100, 100, 10, 8);
+		acc.add(0, 0, 10, 10);
+		assertFalse(acc.resize(40, 30));
+		List<Rectangle> rects = acc.drain();
+		assertEquals(1, rects.size());
+		assertEquals(new Rectangle(0, 0, 40, 30), rects.get(0));
+		assertTrue(acc.resize(50, 50));
+	}
+}
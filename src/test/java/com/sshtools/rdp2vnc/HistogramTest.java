@@ -0,0 +1,70 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testBuckets() {
+		Histogram h = new Histogram(1, 10);
+		h.record(500000);
+		h.record(1000000);
+		h.record(5000000);
+		h.record(20000000);
+		assertArrayEquals(new long[] { 2, 1, 1 }, h.getCounts());
+		assertEquals(4, h.getCount());
+	}
+
+	@Test
+	public void testSumAndMean() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getMeanMs(), 0);
+		h.record(2000000);
+		h.record(4000000);
+		assertEquals(6000000, h.getSumNanos());
+		assertEquals(3, h.getMeanMs(), 0.0001);
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram h = new Histogram(10, 20, 30);
+		assertEquals(0, h.getPercentileMs(50), 0);
+		for (int i = 0; i < 10; i++)
+			h.record(15000000);
+		h.record(25000000);
+		assertEquals(16, h.getPercentileMs(50), 0.0001);
+		assertEquals(20, h.getPercentileMs(90), 0.0001);
+		assertEquals(30, h.getPercentileMs(100), 0.0001);
+		h.record(100000000);
+		assertEquals(30, h.getPercentileMs(100), 0);
+	}
+
+	@Test
+	public void testAdd() {
+		Histogram a = new Histogram(1, 10);
+		Histogram b = new Histogram(1, 10);
+		a.record(500000);
+		b.record(5000000);
+		b.record(20000000);
+		a.add(b);
+		assertArrayEquals(new long[] { 1, 1, 1 }, a.getCounts());
+		assertEquals(25500000, a.getSumNanos());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddDifferentBounds() {
+		new Histogram(1, 10).add(new Histogram(1, 20));
+	}
+
+	@Test
+	public void testBoundsAreCopied() {
+		double[] bounds = { 1, 2 };
+		Histogram h = new Histogram(bounds);
+		bounds[0] = 100;
+		h.getBoundsMs()[1] = 100;
+		assertArrayEquals(new double[] { 1, 2 }, h.getBoundsMs(), 0);
+	}
+}
@@ -0,0 +1,127 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InputBatcherTest {
+
+	/* Long enough that the window never ends by itself during a test */
+	private final static long NEVER = 60000;
+
+	/**
+	 * Records the input it receives as strings, in order.
+	 */
+	private static class Recorder implements InputSink {
+		final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+		@Override
+		public void keyPressed(long when, int modifiers, int keyCode, char keyChar, int location) {
+			received.add("keyPressed " + keyCode);
+		}
+
+		@Override
+		public void keyReleased(long when, int modifiers, int keyCode, char keyChar, int location) {
+			received.add("keyReleased " + keyCode);
+		}
+
+		@Override
+		public void keyTyped(long when, int modifiers, char keyChar, int location) {
+			received.add("keyTyped " + keyChar);
+		}
+
+		@Override
+		public void mouseMoved(long when, int modifiers, int x, int y) {
+			received.add("moved " + x + "," + y);
+		}
+
+		@Override
+		public void mousePressed(long when, int modifiers, int x, int y, int button) {
+			received.add("pressed " + button + " " + x + "," + y);
+		}
+
+		@Override
+		public void mouseReleased(long when, int modifiers, int x, int y, int button) {
+			received.add("released " + button + " " + x + "," + y);
+		}
+
+		@Override
+		public void mouseWheelMoved(long when, int modifiers, int x, int y, int rotation) {
+			received.add("wheel " + rotation + " " + x + "," + y);
+		}
+
+		List<String> drain() {
+			List<String> events = new ArrayList<String>();
+			received.drainTo(events);
+			return events;
+		}
+	}
+
+	@Test
+	public void testTransitionsKeepOrderAndPosition() {
+		Recorder recorder = new Recorder();
+		InputBatcher batcher = new InputBatcher(recorder, NEVER);
+		for (int i = 1; i <= 3; i++)
+			batcher.mouseMoved(i, 0, i, i);
+		batcher.mousePressed(4, 0, 3, 3, 1);
+		batcher.mouseMoved(5, 0, 4, 4);
+		batcher.mouseMoved(6, 0, 5, 5);
+		batcher.mouseReleased(7, 0, 5, 5, 1);
+		batcher.keyPressed(8, 0, 65, 'a', 0);
+		batcher.mouseMoved(9, 0, 6, 6);
+		batcher.keyTyped(10, 0, 'a', 0);
+		batcher.keyReleased(11, 0, 65, 'a', 0);
+		batcher.mouseMoved(12, 0, 7, 7);
+		batcher.mouseWheelMoved(13, 0, 7, 7, -1);
+		batcher.mousePressed(14, 0, 7, 7, 3);
+		batcher.mouseReleased(15, 0, 7, 7, 3);
+		batcher.mouseMoved(16, 0, 8, 8);
+		batcher.mouseMoved(17, 0, 9, 9);
+
+		/* The last motion is still waiting for its window to end */
+		List<String> events = recorder.drain();
+		assertEquals(Arrays.asList("moved 3,3", "pressed 1 3,3", "moved 5,5", "released 1 5,5", "keyPressed 65",
+				"moved 6,6", "keyTyped a", "keyReleased 65", "moved 7,7", "wheel -1 7,7", "pressed 3 7,7",
+				"released 3 7,7"), events);
+		batcher.flush();
+		assertEquals(Arrays.asList("moved 9,9"), recorder.drain());
+		batcher.flush();
+		assertEquals(0, recorder.drain().size());
+
+		assertEquals(9, batcher.getReceived());
+		assertEquals(5, batcher.getSent());
+		assertEquals(2, count(events, "pressed "));
+		assertEquals(2, count(events, "released "));
+		assertEquals(1, count(events, "keyPressed "));
+		assertEquals(1, count(events, "keyReleased "));
+	}
+
+	@Test
+	public void testMotionPassedOnAfterInterval() throws Exception {
+		Recorder recorder = new Recorder();
+		InputBatcher batcher = new InputBatcher(recorder, 20);
+		for (int i = 1; i <= 10; i++)
+			batcher.mouseMoved(i, 0, i, i * 2);
+		assertEquals("moved 10,20", recorder.received.poll(5, TimeUnit.SECONDS));
+		assertNull(recorder.received.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(10, batcher.getReceived());
+		assertEquals(1, batcher.getSent());
+	}
+
+	private static int count(List<String> events, String prefix) {
+		int n = 0;
+		for (String e : events) {
+			if (e.startsWith(prefix))
+				n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,66 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyTracerTest {
+
+	@Test
+	public void testTrace() throws Exception {
+		LatencyTracer tracer = new LatencyTracer();
+		tracer.input();
+		Thread.sleep(5);
+		tracer.painted();
+		tracer.flushed();
+		Thread.sleep(5);
+		tracer.encoding();
+		assertEquals(1, tracer.getTotal().getCount());
+		assertEquals(1, tracer.getUpstream().getCount());
+		assertEquals(1, tracer.getCoalesce().getCount());
+		assertEquals(1, tracer.getDownstream().getCount());
+		assertTrue(tracer.getUpstream().getMeanMs() >= 5);
+		assertTrue(tracer.getDownstream().getMeanMs() >= 5);
+		assertTrue(tracer.getTotal().getSumNanos() >= tracer.getUpstream().getSumNanos()
+				+ tracer.getDownstream().getSumNanos());
+	}
+
+	@Test
+	public void testOutOfOrderIgnored() {
+		LatencyTracer tracer = new LatencyTracer();
+		tracer.painted();
+		tracer.flushed();
+		tracer.encoding();
+		assertEquals(0, tracer.getTotal().getCount());
+
+		tracer.input();
+		/* Reads before the damage reaches the RFB server are not for the update */
+		tracer.encoding();
+		tracer.painted();
+		tracer.encoding();
+		assertEquals(0, tracer.getTotal().getCount());
+		tracer.flushed();
+		tracer.encoding();
+		tracer.encoding();
+		assertEquals(1, tracer.getTotal().getCount());
+	}
+
+	@Test
+	public void testOneTraceAtATime() {
+		LatencyTracer tracer = new LatencyTracer();
+		tracer.input();
+		tracer.painted();
+		tracer.input();
+		tracer.flushed();
+		tracer.encoding();
+		assertEquals(1, tracer.getTotal().getCount());
+		assertEquals(0, tracer.getAbandoned());
+
+		tracer.input();
+		tracer.painted();
+		tracer.flushed();
+		tracer.encoding();
+		assertEquals(2, tracer.getTotal().getCount());
+	}
+}
@@ -0,0 +1,146 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sshtools.rfbserver.DisplayDriver;
+import com.sshtools.rfbserver.DisplayDriver.DamageListener;
+
+public class RDPDisplayDriverTest {
+
+	private final static int TILE_SIZE = 16;
+
+	private RDPDisplayDriver driver;
+
+	/**
+	 * Records the damage it receives and how many calls overlapped, blocking
+	 * on the first rectangle until released.
+	 */
+	private static class Listener implements DamageListener {
+		final BlockingQueue<Rectangle> received = new LinkedBlockingQueue<Rectangle>();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger active = new AtomicInteger();
+		volatile boolean overlapped;
+
+		@Override
+		public void damage(DisplayDriver driver, String name, Rectangle rectangle, int preferredEncoding) {
+			if (active.incrementAndGet() > 1)
+				overlapped = true;
+			try {
+				received.add(rectangle);
+				entered.countDown();
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		driver = new RDPDisplayDriver(64, 64, BufferedImage.TYPE_INT_RGB);
+		driver.setDamageCoalescing(TILE_SIZE, 16, 1);
+	}
+
+	@After
+	public void tearDown() {
+		driver.destroy();
+	}
+
+	@Test
+	public void testFlushesDoNotOverlap() throws Exception {
+		Listener listener = new Listener();
+		driver.addDamageListener(listener);
+		driver.repaint(0, 0, TILE_SIZE, TILE_SIZE);
+		assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+		assertEquals(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE), listener.received.take());
+
+		/* The first flush is stuck delivering, so this one must wait for it */
+		driver.repaint(32, 32, TILE_SIZE, TILE_SIZE);
+		assertNull(listener.received.poll(200, TimeUnit.MILLISECONDS));
+		listener.release.countDown();
+		assertEquals(new Rectangle(32, 32, TILE_SIZE, TILE_SIZE), listener.received.poll(5, TimeUnit.SECONDS));
+		assertFalse(listener.overlapped);
+	}
+
+	@Test
+	public void testSnapshotsArePublishedBetweenOrders() throws Exception {
+		driver.setDamageCoalescing(TILE_SIZE, 16, 50);
+		driver.setSnapshots(true);
+		Listener listener = new Listener();
+		listener.release.countDown();
+		driver.addDamageListener(listener);
+		driver.setRGB(1, 1, 1);
+		driver.repaint(0, 0, TILE_SIZE, TILE_SIZE);
+
+		/* The next order is part way through when the flush is due */
+		driver.setRGB(40, 40, 2);
+		assertNull(listener.received.poll(300, TimeUnit.MILLISECONDS));
+		driver.repaint(32, 32, TILE_SIZE, TILE_SIZE);
+		assertEquals(2, listener.received.size());
+		BufferedImage img = driver.grabArea(new Rectangle(0, 0, 64, 64));
+		assertEquals(0xff000001, img.getRGB(1, 1));
+		assertEquals(0xff000002, img.getRGB(40, 40));
+	}
+
+	@Test
+	public void testGrabbedSnapshotIsNotReused() {
+		driver.setSnapshots(true);
+		driver.setRGB(1, 1, 1);
+		driver.repaint(0, 0, TILE_SIZE, TILE_SIZE);
+		driver.flushDamage();
+		BufferedImage img = driver.grabArea(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE));
+		for (int i = 2; i <= 4; i++) {
+			driver.setRGB(1, 1, i);
+			driver.repaint(0, 0, TILE_SIZE, TILE_SIZE);
+			driver.flushDamage();
+			assertEquals(0xff000001, img.getRGB(1, 1));
+		}
+		driver.releaseArea();
+		img = driver.grabArea(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE));
+		assertEquals(0xff000004, img.getRGB(1, 1));
+		driver.releaseArea();
+	}
+
+	@Test
+	public void testCursorChanges() {
+		BufferedImage arrow = cursorImage(1);
+		driver.setCursor(driver.createCursor("arrow", new Point(0, 0), arrow));
+		assertSame(arrow, driver.getPointerShape().getData());
+
+		/* The same shape again, from a different image, is not passed on */
+		driver.setCursor(driver.createCursor("arrow", new Point(0, 0), cursorImage(1)));
+		assertSame(arrow, driver.getPointerShape().getData());
+
+		BufferedImage other = cursorImage(2);
+		driver.setCursor(driver.createCursor("other", new Point(0, 0), other));
+		assertSame(other, driver.getPointerShape().getData());
+		driver.setCursor(driver.createCursor("other", new Point(1, 1), other));
+		assertEquals(1, driver.getPointerShape().getHotX());
+	}
+
+	private static BufferedImage cursorImage(int color) {
+		BufferedImage img = new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB);
+		img.setRGB(3, 3, 0xff000000 | color);
+		return img;
+	}
+}
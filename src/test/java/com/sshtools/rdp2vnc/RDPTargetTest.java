@@ -0,0 +1,61 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RDPTargetTest {
+
+	@Test
+	public void testEqual() {
+		RDPTarget a = target("host", 3389, "DOM", "user", "secret");
+		RDPTarget b = target("host", 3389, "DOM", "user", "secret");
+		assertTrue(a.equals(b));
+		assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	@Test
+	public void testLocalhost() {
+		assertEquals(RDPTarget.parse("127.0.0.1:3390"), new RDPTarget("localhost", 3390));
+	}
+
+	@Test
+	public void testNotEqual() {
+		RDPTarget a = target("host", 3389, "DOM", "user", "secret");
+		assertFalse(a.equals(target("other", 3389, "DOM", "user", "secret")));
+		assertFalse(a.equals(target("host", 3390, "DOM", "user", "secret")));
+		assertFalse(a.equals(target("host", 3389, "OTHER", "user", "secret")));
+		assertFalse(a.equals(target("host", 3389, "DOM", "other", "secret")));
+		assertFalse(a.equals(target("host", 3389, "DOM", null, "secret")));
+		assertFalse(a.equals(target("host", 3389, "DOM", "user", "other")));
+		assertFalse(a.equals(target("host", 3389, "DOM", "user", null)));
+		assertFalse(a.equals(null));
+		assertFalse(a.equals("host"));
+	}
+
+	@Test
+	public void testEmptyCredentials() {
+		RDPTarget a = target("host", 3389, null, null, "");
+		RDPTarget b = target("host", 3389, "", null, null);
+		assertTrue(a.equals(b));
+		assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	@Test
+	public void testWithAddress() {
+		RDPTarget a = target("host", 3389, "DOM", "user", "secret");
+		RDPTarget b = a.withAddress("other", 3390);
+		assertEquals(target("other", 3390, "DOM", "user", "secret"), b);
+		assertEquals(a, b.withAddress("host", 3389));
+	}
+
+	private static RDPTarget target(String address, int port, String domain, String username, String password) {
+		RDPTarget t = new RDPTarget(address, port);
+		t.setDomain(domain);
+		t.setUsername(username);
+		t.setPassword(password == null ? null : password.toCharArray());
+		return t;
+	}
+}
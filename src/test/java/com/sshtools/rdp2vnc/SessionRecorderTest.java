@@ -0,0 +1,105 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionRecorderTest {
+
+	private File file;
+	private RDPDisplayDriver driver;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("rdp2vnc", ".rec");
+		driver = new RDPDisplayDriver(64, 48, BufferedImage.TYPE_INT_RGB);
+		fill(driver, 0, 0, 64, 48, 0);
+	}
+
+	@After
+	public void tearDown() {
+		driver.destroy();
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		SessionRecorder recorder = record();
+		fill(driver, 8, 8, 16, 16, 1);
+		recorder.damage(8, 8, 16, 16);
+		Thread.sleep(100);
+		fill(driver, 40, 20, 10, 10, 2);
+		recorder.damage(40, 20, 10, 10);
+		recorder.close();
+
+		RDPDisplayDriver played = play(64, 48);
+		try {
+			assertArrayEquals(pixels(driver), pixels(played));
+		} finally {
+			played.destroy();
+		}
+	}
+
+	@Test
+	public void testResize() throws Exception {
+		SessionRecorder recorder = record();
+		/* Damage that was added before the display shrank */
+		fill(driver, 40, 30, 24, 18, 1);
+		recorder.damage(40, 30, 24, 18);
+		driver.resizeDisplay(new Dimension(48, 40));
+		fill(driver, 0, 0, 48, 40, 2);
+		recorder.damage(0, 0, 48, 40);
+		recorder.close();
+
+		RDPDisplayDriver played = play(64, 48);
+		try {
+			assertEquals(48, played.getDisplayWidth());
+			assertEquals(40, played.getDisplayHeight());
+			assertArrayEquals(pixels(driver), pixels(played));
+		} finally {
+			played.destroy();
+		}
+	}
+
+	private SessionRecorder record() throws Exception {
+		SessionRecorder recorder = new SessionRecorder(driver, file);
+		recorder.setInterval(10);
+		driver.setRecorder(recorder);
+		recorder.start();
+		/* Let the first keyframe be written */
+		Thread.sleep(100);
+		return recorder;
+	}
+
+	private RDPDisplayDriver play(int width, int height) throws Exception {
+		RDPDisplayDriver played = new RDPDisplayDriver(width, height, BufferedImage.TYPE_INT_RGB);
+		SessionPlayer player = new SessionPlayer(file);
+		try {
+			player.play(played, false);
+		} finally {
+			player.close();
+		}
+		return played;
+	}
+
+	private static void fill(RDPDisplayDriver driver, int x, int y, int w, int h, int seed) {
+		int[] data = new int[w * h];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (int) (i * 2654435761L + seed * 40503) & 0xffffff;
+		driver.setRGB(x, y, w, h, data, 0, w);
+	}
+
+	private static int[] pixels(RDPDisplayDriver driver) {
+		int w = driver.getDisplayWidth();
+		int h = driver.getDisplayHeight();
+		return driver.getPixels(new Rectangle(0, 0, w, h), null, 0, w);
+	}
+}
@@ -0,0 +1,118 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SnapshotBufferTest {
+
+	private final static List<Rectangle> DAMAGE = Collections.singletonList(new Rectangle(0, 0, 8, 8));
+
+	@Test
+	public void testPublish() {
+		FrameBuffer live = FrameBuffer.create(32, 32, BufferedImage.TYPE_INT_RGB);
+		SnapshotBuffer snapshots = new SnapshotBuffer(live);
+		for (int i = 1; i <= 4; i++) {
+			live.setRGB(1, 1, i);
+			snapshots.publish(live, DAMAGE);
+			FrameBuffer fb = snapshots.acquire();
+			try {
+				assertEquals(0xff000000 | i, fb.getRGB(1, 1));
+			} finally {
+				fb.release();
+			}
+		}
+	}
+
+	@Test
+	public void testRetainedSnapshotIsNotReused() {
+		FrameBuffer live = FrameBuffer.create(32, 32, BufferedImage.TYPE_INT_RGB);
+		SnapshotBuffer snapshots = new SnapshotBuffer(live);
+		live.setRGB(1, 1, 1);
+		snapshots.publish(live, DAMAGE);
+		FrameBuffer held = snapshots.acquire();
+		assertTrue(held.isRetained());
+		for (int i = 2; i <= 5; i++) {
+			live.setRGB(1, 1, i);
+			snapshots.publish(live, DAMAGE);
+			assertEquals(0xff000001, held.getRGB(1, 1));
+		}
+		held.release();
+		assertFalse(held.isRetained());
+		FrameBuffer fb = snapshots.acquire();
+		assertEquals(0xff000005, fb.getRGB(1, 1));
+		fb.release();
+	}
+
+	@Test
+	public void testDrawnToWhileCopying() {
+		FrameBuffer live = FrameBuffer.create(32, 32, BufferedImage.TYPE_INT_RGB);
+		SnapshotBuffer snapshots = new SnapshotBuffer(live);
+		live.setRGB(1, 1, 1);
+		snapshots.publish(live, DAMAGE);
+		live.setRGB(1, 1, 2);
+		assertFalse(snapshots.publish(live, DAMAGE, new SnapshotBuffer.Guard() {
+			@Override
+			public boolean isDrawnTo() {
+				return true;
+			}
+		}));
+		FrameBuffer fb = snapshots.acquire();
+		assertEquals(0xff000001, fb.getRGB(1, 1));
+		fb.release();
+		assertTrue(snapshots.publish(live, DAMAGE, null));
+		live.setRGB(20, 20, 3);
+		snapshots.publish(live, Collections.singletonList(new Rectangle(16, 16, 8, 8)));
+		fb = snapshots.acquire();
+		assertEquals(0xff000002, fb.getRGB(1, 1));
+		assertEquals(0xff000003, fb.getRGB(20, 20));
+		fb.release();
+	}
+
+	@Test
+	public void testResize() {
+		FrameBuffer live = FrameBuffer.create(32, 32, BufferedImage.TYPE_INT_RGB);
+		SnapshotBuffer snapshots = new SnapshotBuffer(live);
+		FrameBuffer held = snapshots.acquire();
+		FrameBuffer old = live;
+		live = old.resize(16, 8);
+		old.dispose();
+		live.setRGB(1, 1, 7);
+		snapshots.publish(live, DAMAGE);
+		assertEquals(32, held.getWidth());
+		held.release();
+		FrameBuffer fb = snapshots.acquire();
+		assertEquals(16, fb.getWidth());
+		assertEquals(8, fb.getHeight());
+		assertEquals(0xff000007, fb.getRGB(1, 1));
+		fb.release();
+	}
+
+	@Test
+	public void testSnapshotsShareBackend() {
+		FrameBuffer live = FrameBuffer.createDirect(32, 32, BufferedImage.TYPE_INT_RGB);
+		SnapshotBuffer snapshots = new SnapshotBuffer(live);
+		live.setRGB(1, 1, 1);
+		snapshots.publish(live, DAMAGE);
+		FrameBuffer fb = snapshots.acquire();
+		assertTrue(fb.isDirect());
+		assertEquals(0xff000001, fb.getRGB(1, 1));
+		fb.release();
+
+		FrameBuffer heap = FrameBuffer.create(32, 32, BufferedImage.TYPE_INT_RGB);
+		heap.copyArea(live, 0, 0, 32, 32);
+		live.dispose();
+		snapshots.publish(heap, DAMAGE);
+		fb = snapshots.acquire();
+		assertFalse(fb.isDirect());
+		assertEquals(0xff000001, fb.getRGB(1, 1));
+		fb.release();
+	}
+}
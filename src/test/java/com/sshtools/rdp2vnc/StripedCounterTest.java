@@ -0,0 +1,37 @@
+package com.sshtools.rdp2vnc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void testAdd() {
+		StripedCounter c = new StripedCounter();
+		assertEquals(0, c.get());
+		c.increment();
+		c.add(41);
+		assertEquals(42, c.get());
+		assertEquals("42", c.toString());
+	}
+
+	@Test
+	public void testConcurrentAdd() throws Exception {
+		final StripedCounter c = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++)
+						c.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(80000, c.get());
+	}
+}